@@ -0,0 +1,68 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pipeline completa su un lotto di pagine sintetiche, al variare del numero di thread.
+ * Il tempo riportato è per lotto: il throughput in pagine/s è <code>pages</code> / tempo.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class BatchBenchmark {
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"16"})
+    public int pages;
+
+    @Param({"200", "300"})
+    public int dpi;
+
+    private File inputDirectory;
+    private BatchProcessor batch;
+
+    @Setup
+    public void setup() throws IOException {
+        ImageProcessor processor = new ImageProcessor();
+
+        inputDirectory = Files.createTempDirectory("bogey-bench").toFile();
+        BenchmarkImages.writePages(inputDirectory, pages, dpi);
+        batch = new BatchProcessor(processor, threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkImages.delete(inputDirectory);
+    }
+
+    /**
+     * Senza directory di output: misura l'elaborazione, non la codifica delle immagini annotate
+     */
+    @Benchmark
+    public int process() throws IOException {
+        List<PageResult> results = batch.process(inputDirectory, null);
+        return results.size();
+    }
+}
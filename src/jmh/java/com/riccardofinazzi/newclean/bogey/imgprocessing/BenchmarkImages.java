@@ -0,0 +1,140 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.opencv.imgproc.Imgproc.*;
+
+/**
+ * Immagini di input dei benchmark: le scansioni incluse nelle risorse oppure pagine A4
+ * sintetiche ad alta risoluzione.
+ * <p>
+ * Una sorgente è il nome di una risorsa (es. <code>input2.jpg</code>) oppure
+ * <code>synthetic-&lt;dpi&gt;</code> (es. <code>synthetic-600</code>).
+ */
+class BenchmarkImages {
+
+    private static final String SYNTHETIC = "synthetic-";
+
+    /**
+     * A4 in pollici
+     */
+    private static final double A4_WIDTH = 8.27;
+    private static final double A4_HEIGHT = 11.69;
+
+    /**
+     * Lato delle checkbox disegnate: resta fisso a ogni risoluzione, così la detection
+     * (27-32 px) trova lo stesso numero di candidati e lo scoring ha sempre lavoro da fare
+     */
+    private static final int BOX_SIDE = 29;
+
+    /**
+     * Inclinazione delle pagine sintetiche, in gradi
+     */
+    static final double SYNTHETIC_ANGLE = 1.5;
+
+    private BenchmarkImages() {
+    }
+
+    /**
+     * Carica una sorgente a colori (CV_8UC3). La Mat va rilasciata dal chiamante.
+     */
+    static Mat load(ImageProcessor processor, String source) throws IOException {
+        if (source.startsWith(SYNTHETIC)) {
+            return page(Integer.parseInt(source.substring(SYNTHETIC.length())), SYNTHETIC_ANGLE, 42L);
+        }
+        return processor.readImage(source, ImageProcessor.LOAD_COLOR);
+    }
+
+    /**
+     * Genera una pagina A4 con righe di testo fittizio e una griglia di checkbox, alcune
+     * barrate, ruotata di <code>angle</code> gradi.
+     *
+     * @param dpi   risoluzione della pagina
+     * @param angle inclinazione in gradi
+     * @param seed  seme per la scelta delle checkbox barrate
+     * @return Mat CV_8UC3
+     */
+    static Mat page(int dpi, double angle, long seed) {
+        int width = (int) Math.round(A4_WIDTH * dpi);
+        int height = (int) Math.round(A4_HEIGHT * dpi);
+        Scalar black = new Scalar(0, 0, 0);
+        Scalar white = new Scalar(255, 255, 255);
+        Random random = new Random(seed);
+
+        Mat page = new Mat(height, width, CvType.CV_8UC3, white);
+
+        int margin = dpi / 2;
+        int rowHeight = Math.max(BOX_SIDE * 2, dpi / 4);
+        int columns = 4;
+        int columnWidth = (width - 2 * margin) / columns;
+        double fontScale = dpi / 200.0;
+
+        for (int y = margin; y + rowHeight < height - margin; y += rowHeight) {
+            for (int c = 0; c < columns; c++) {
+                int x = margin + c * columnWidth;
+                Rect box = new Rect(x, y, BOX_SIDE, BOX_SIDE);
+
+                rectangle(page, box.tl(), box.br(), black, 2);
+                if (random.nextInt(3) == 0) {
+                    line(page, new Point(x + 6, y + 6), new Point(x + BOX_SIDE - 6, y + BOX_SIDE - 6), black, 3);
+                    line(page, new Point(x + BOX_SIDE - 6, y + 6), new Point(x + 6, y + BOX_SIDE - 6), black, 3);
+                }
+                putText(page, "Opzione " + (c + 1), new Point(x + BOX_SIDE * 2, y + BOX_SIDE),
+                        Core.FONT_HERSHEY_SIMPLEX, fontScale, black, Math.max(1, dpi / 200));
+            }
+        }
+
+        if (angle != 0) {
+            Mat rotation = getRotationMatrix2D(new Point(width / 2.0, height / 2.0), angle, 1.0);
+            Mat rotated = new Mat();
+
+            warpAffine(page, rotated, rotation, new Size(width, height), INTER_LINEAR, Core.BORDER_CONSTANT, white);
+            rotation.release();
+            page.release();
+            page = rotated;
+        }
+
+        return page;
+    }
+
+    /**
+     * Scrive <code>count</code> pagine sintetiche in formato JPEG dentro <code>directory</code>
+     */
+    static void writePages(File directory, int count, int dpi) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        for (int i = 0; i < count; i++) {
+            Mat page = page(dpi, (i % 5 - 2) * 0.75, i);
+            try {
+                Imgcodecs.imwrite(new File(directory, String.format("page%03d.jpg", i)).getPath(), page);
+            } finally {
+                page.release();
+            }
+        }
+    }
+
+    /**
+     * Cancella una directory temporanea creata da un benchmark
+     */
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,82 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ricerca delle checkbox e calcolo del riempimento su una pagina già binarizzata
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CheckboxBenchmark {
+
+    @Param({"input2.jpg", "synthetic-300", "synthetic-600"})
+    public String source;
+
+    @Param({"CONTOURS", "COMPONENTS"})
+    public DetectionMode mode;
+
+    private ImageProcessor processor;
+    private WorkBuffers buffers;
+    private Mat binary;
+    private BoxList boxes;
+
+    @Setup
+    public void setup() throws IOException {
+        processor = new ImageProcessor();
+        processor.setDetectionMode(mode);
+        buffers = new WorkBuffers();
+
+        Mat image = BenchmarkImages.load(processor, source);
+        try {
+            binary = processor.preprocess(image);
+        } finally {
+            image.release();
+        }
+
+        try (MatScope scope = new MatScope()) {
+            boxes = processor.detectCheckboxes(binary, buffers, scope, processor.getProfile());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        binary.release();
+        buffers.release();
+    }
+
+    @Benchmark
+    public int detect() {
+        try (MatScope scope = new MatScope()) {
+            return processor.detectCheckboxes(binary, buffers, scope, processor.getProfile()).size();
+        }
+    }
+
+    @Benchmark
+    public int score() {
+        return processor.scoreCheckboxes(binary, boxes, buffers, null, processor.getProfile()).size();
+    }
+
+    @Benchmark
+    public int readingOrder() {
+        return ReadingOrder.of(boxes).rows();
+    }
+}
@@ -0,0 +1,53 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stima dell'inclinazione con la trasformata di Radon
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeskewBenchmark {
+
+    @Param({"input2.jpg", "synthetic-300", "synthetic-600"})
+    public String source;
+
+    @Param({"EXACT", "COARSE_TO_FINE"})
+    public DeskewMode mode;
+
+    private Mat image;
+
+    @Setup
+    public void setup() throws IOException {
+        image = BenchmarkImages.load(new ImageProcessor(), source);
+    }
+
+    @TearDown
+    public void tearDown() {
+        image.release();
+    }
+
+    @Benchmark
+    public double calculateAngle() {
+        return RadonDeskewer.estimateAngle(image, mode).getAngle();
+    }
+}
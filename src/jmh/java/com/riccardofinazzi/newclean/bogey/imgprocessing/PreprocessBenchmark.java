@@ -0,0 +1,76 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Preprocessing (grigi, sfocatura, soglia adattiva) e rotazione della pagina
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PreprocessBenchmark {
+
+    @Param({"input2.jpg", "synthetic-300", "synthetic-600"})
+    public String source;
+
+    private ImageProcessor processor;
+    private WorkBuffers buffers;
+    private Mat image;
+
+    @Setup
+    public void setup() throws IOException {
+        processor = new ImageProcessor();
+        buffers = new WorkBuffers();
+        image = BenchmarkImages.load(processor, source);
+    }
+
+    @TearDown
+    public void tearDown() {
+        image.release();
+        buffers.release();
+    }
+
+    /**
+     * Versione pubblica, alloca tre Mat a ogni chiamata
+     */
+    @Benchmark
+    public int preprocess() {
+        Mat binary = processor.preprocess(image);
+        try {
+            return binary.rows();
+        } finally {
+            binary.release();
+        }
+    }
+
+    /**
+     * Versione usata dalla pipeline, scrive nei buffer del thread
+     */
+    @Benchmark
+    public int preprocessBuffered() {
+        return processor.preprocess(image, buffers, processor.getProfile()).rows();
+    }
+
+    @Benchmark
+    public int adjustRotation() {
+        return processor.adjustRotation(image, BenchmarkImages.SYNTHETIC_ANGLE, buffers.rotated).rows();
+    }
+}
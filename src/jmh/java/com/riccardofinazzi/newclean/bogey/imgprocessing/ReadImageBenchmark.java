@@ -0,0 +1,87 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodifica delle scansioni incluse nelle risorse: imdecode sul file mappato in memoria,
+ * imdecode su un array già in memoria e decodifica con ImageIO
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadImageBenchmark {
+
+    @Param({"input.jpg", "input2.jpg", "input4.png"})
+    public String resource;
+
+    private ImageProcessor processor;
+    private URL url;
+    private byte[] bytes;
+
+    @Setup
+    public void setup() throws IOException {
+        processor = new ImageProcessor();
+        url = getClass().getClassLoader().getResource(resource);
+
+        try (InputStream is = url.openStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = is.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            bytes = out.toByteArray();
+        }
+    }
+
+    @Benchmark
+    public int readImage() throws IOException {
+        Mat image = processor.readImage(resource, ImageProcessor.LOAD_COLOR);
+        try {
+            return image.rows();
+        } finally {
+            image.release();
+        }
+    }
+
+    @Benchmark
+    public int decodeBytes() throws IOException {
+        Mat image = processor.readImage(ImageSource.of(bytes), ImageProcessor.LOAD_COLOR);
+        try {
+            return image.rows();
+        } finally {
+            image.release();
+        }
+    }
+
+    @Benchmark
+    public int imageIoFallback() throws IOException {
+        Mat image = ImageConversionUtils.toMat(ImageIO.read(url), ImageProcessor.LOAD_COLOR);
+        try {
+            return image.rows();
+        } finally {
+            image.release();
+        }
+    }
+}
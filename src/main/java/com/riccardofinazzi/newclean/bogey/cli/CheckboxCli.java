@@ -0,0 +1,116 @@
+package com.riccardofinazzi.newclean.bogey.cli;
+
+import com.riccardofinazzi.newclean.bogey.imgprocessing.BatchProcessor;
+import com.riccardofinazzi.newclean.bogey.imgprocessing.ImageProcessor;
+import com.riccardofinazzi.newclean.bogey.imgprocessing.JsonLinesResultSink;
+import com.riccardofinazzi.newclean.bogey.imgprocessing.ResultSink;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Elaborazione da riga di comando, pensata per processi di breve durata:
+ * <pre>
+ * CheckboxCli [-o cartella output] [-r risultati.jsonl|.csv] [-t thread] file...
+ * </pre>
+ * I risultati vanno su standard output in JSON Lines, se non è indicato un file con <code>-r</code>.
+ * I TIFF multipagina e i PDF di scansioni vengono elaborati pagina per pagina (vedi {@link BatchProcessor}).
+ * <p>
+ * Per avviarsi in fretta usa la copia della libreria nativa già estratta nella cache (vedi
+ * {@link com.riccardofinazzi.newclean.bogey.imgprocessing.NativeLibrary}), non legge le properties
+ * dell'applicazione e configura logback con <code>logback-cli.xml</code>: solo avvisi ed errori, su
+ * standard error. La libreria nativa viene caricata solo dopo aver controllato gli argomenti.
+ * <p>
+ * Exit code: 0 se tutte le pagine sono state elaborate, 1 se almeno una è fallita, 2 per argomenti errati.
+ */
+public class CheckboxCli {
+
+    private static final String USAGE = "Usage: CheckboxCli [-o output directory] [-r results.jsonl|.csv] [-t threads] file...";
+
+    public static void main(String[] args) throws IOException {
+        // prima di qualunque logger: logback legge la proprietà alla prima inizializzazione
+        if (System.getProperty("logback.configurationFile") == null) {
+            System.setProperty("logback.configurationFile", "logback-cli.xml");
+        }
+        System.exit(run(args, System.out, System.err));
+    }
+
+    /**
+     * @return exit code
+     */
+    static int run(String[] args, PrintStream out, PrintStream err) throws IOException {
+        File outputDirectory = null;
+        File results = null;
+        int threads = 1;
+        List<File> files = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-o") || arg.equals("-r") || arg.equals("-t")) {
+                if (i + 1 == args.length) {
+                    err.println("Missing value for " + arg);
+                    err.println(USAGE);
+                    return 2;
+                }
+                String value = args[++i];
+                if (arg.equals("-o")) {
+                    outputDirectory = new File(value);
+                } else if (arg.equals("-r")) {
+                    results = new File(value);
+                } else {
+                    try {
+                        threads = Integer.parseInt(value);
+                    } catch (NumberFormatException e) {
+                        threads = 0;
+                    }
+                    if (threads < 1) {
+                        err.println("Invalid number of threads: " + value);
+                        return 2;
+                    }
+                }
+            } else if (arg.equals("-h") || arg.equals("--help")) {
+                out.println(USAGE);
+                return 0;
+            } else if (arg.startsWith("-")) {
+                err.println("Unknown option: " + arg);
+                err.println(USAGE);
+                return 2;
+            } else {
+                files.add(new File(arg));
+            }
+        }
+
+        if (files.isEmpty()) {
+            err.println(USAGE);
+            return 2;
+        }
+        if (outputDirectory != null && !outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            err.println("Cannot create " + outputDirectory);
+            return 2;
+        }
+
+        ImageProcessor processor = new ImageProcessor();
+        BatchProcessor batch = new BatchProcessor(processor, threads);
+
+        int failures;
+        ResultSink sink = results != null
+                ? ResultSink.forFile(results)
+                : new JsonLinesResultSink(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        try {
+            failures = batch.process(files, outputDirectory, sink);
+        } finally {
+            sink.close();
+        }
+
+        if (failures > 0) {
+            err.println(failures + " of " + files.size() + " pages failed");
+            return 1;
+        }
+        return 0;
+    }
+}
@@ -10,37 +10,62 @@ public class ApplicationProperties {
 
     private static final Logger log = LoggerFactory.getLogger(ApplicationProperties.class);
 
-    private static ApplicationProperties applicationProperties;
-    private static Properties properties;
+    private static volatile Properties properties;
 
     private ApplicationProperties() {
     }
 
+    /**
+     * Istanza creata dalla JVM al primo accesso, una sola anche se richiesta da più thread
+     */
+    private static final class Holder {
+        private static final ApplicationProperties INSTANCE = new ApplicationProperties();
+    }
+
     public static ApplicationProperties getInstance() {
-        return null == applicationProperties ? applicationProperties = new ApplicationProperties() : applicationProperties;
+        return Holder.INSTANCE;
     }
 
     public void init() {
 
-        properties = new Properties();
+        Properties loaded = new Properties();
 
         try (InputStream is = getClass().getResourceAsStream("/app.properties");) {
             log.info("Loading properties from classpath: /app.properties");
-            properties.load(is);
+            loaded.load(is);
 
-            log.info("{}, version {}", properties.get("name"), properties.get("version"));
+            log.info("{}, version {}", loaded.get("name"), loaded.get("version"));
+            // visibili agli altri thread solo dopo il caricamento completo
+            properties = loaded;
         } catch (Exception e) {
             log.error("Error loading properties: " + e.getMessage(), e);
             throw new RuntimeException("Error loading properties: " + e.getMessage(), e);
         }
     }
 
+    /**
+     * Se {@link #init()} non è ancora stato chiamato, carica le properties al primo accesso: chi
+     * non ne legge nessuna non paga il caricamento
+     */
+    private Properties properties() {
+        Properties p = properties;
+        if (p == null) {
+            synchronized (ApplicationProperties.class) {
+                if (properties == null) {
+                    init();
+                }
+                p = properties;
+            }
+        }
+        return p;
+    }
+
     public String getProperty(String key) {
-        return properties.getProperty(key);
+        return properties().getProperty(key);
     }
 
     public String getRequiredProperty(String key) {
-        String value = properties.getProperty(key);
+        String value = properties().getProperty(key);
         if (value == null || value.trim().length() == 0) {
             throw new IllegalStateException(String.format("Missing property: %s", key));
         }
@@ -48,7 +73,17 @@ public class ApplicationProperties {
     }
 
     public String getProperty(String key, String defaultValue) {
-        return properties.getProperty(key, defaultValue);
+        return properties().getProperty(key, defaultValue);
+    }
+
+    /**
+     * @return una copia delle properties, ad esempio per ricavarne un
+     * {@link com.riccardofinazzi.newclean.bogey.imgprocessing.ProcessingProfile} una volta sola
+     */
+    public Properties getProperties() {
+        Properties copy = new Properties();
+        copy.putAll(properties());
+        return copy;
     }
 
 }
@@ -0,0 +1,72 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decide per quali pagine scrivere l'immagine annotata. Codificare una pagina intera costa quanto
+ * la ricerca delle checkbox: in produzione conviene scriverne solo una parte, o solo quelle dubbie.
+ * <p>
+ * L'immagine viene comunque scritta solo se è stato indicato un file di output.
+ */
+public interface AnnotationPolicy {
+
+    AnnotationPolicy NEVER = new AnnotationPolicy() {
+        @Override
+        public boolean shouldAnnotate(SkewEstimate skew, List<CheckboxResult> results, float fillThreshold) {
+            return false;
+        }
+    };
+
+    AnnotationPolicy ALWAYS = new AnnotationPolicy() {
+        @Override
+        public boolean shouldAnnotate(SkewEstimate skew, List<CheckboxResult> results, float fillThreshold) {
+            return true;
+        }
+    };
+
+    /**
+     * @param skew          angolo applicato alla pagina
+     * @param results       checkbox valutate
+     * @param fillThreshold soglia di riempimento usata per valutarle, in percentuale
+     * @return <code>true</code> per scrivere l'immagine annotata della pagina
+     */
+    boolean shouldAnnotate(SkewEstimate skew, List<CheckboxResult> results, float fillThreshold);
+
+    /**
+     * Una pagina ogni <code>n</code>, a partire dalla prima
+     */
+    static AnnotationPolicy sampled(final int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("n must be positive: " + n);
+        }
+        final AtomicLong pages = new AtomicLong();
+        return new AnnotationPolicy() {
+            @Override
+            public boolean shouldAnnotate(SkewEstimate skew, List<CheckboxResult> results, float fillThreshold) {
+                return pages.getAndIncrement() % n == 0;
+            }
+        };
+    }
+
+    /**
+     * Solo le pagine dubbie: angolo di inclinazione non affidabile oppure almeno una checkbox con
+     * riempimento a meno di <code>margin</code> punti percentuali dalla soglia
+     */
+    static AnnotationPolicy lowConfidence(final float margin) {
+        return new AnnotationPolicy() {
+            @Override
+            public boolean shouldAnnotate(SkewEstimate skew, List<CheckboxResult> results, float fillThreshold) {
+                if (!skew.isReliable()) {
+                    return true;
+                }
+                for (CheckboxResult result : results) {
+                    if (Math.abs(result.getPercentage() - fillThreshold) < margin) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+}
@@ -0,0 +1,479 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.opencv.core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.FilenameFilter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Elabora un insieme di pagine all'interno della stessa JVM, distribuendole su un pool di thread
+ * di dimensione fissa. L'errore su una pagina non interrompe l'elaborazione delle altre: viene
+ * riportato nel relativo {@link PageResult}.
+ */
+public class BatchProcessor {
+
+    private static final Logger log = LoggerFactory.getLogger(BatchProcessor.class);
+
+    private static final FilenameFilter IMAGE_FILTER = new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+            String lower = name.toLowerCase(Locale.ROOT);
+            return lower.endsWith(".jpg") || lower.endsWith(".jpeg") || lower.endsWith(".png")
+                    || lower.endsWith(".tif") || lower.endsWith(".tiff") || lower.endsWith(".bmp")
+                    || lower.endsWith(".pdf");
+        }
+    };
+
+    private final ImageProcessor processor;
+    private final int threads;
+    private final FormTemplate template;
+    private int pagesInFlight;
+
+    /**
+     * Usa un thread per ogni core disponibile
+     */
+    public BatchProcessor(ImageProcessor processor) {
+        this(processor, Runtime.getRuntime().availableProcessors());
+    }
+
+    public BatchProcessor(ImageProcessor processor, int threads) {
+        this(processor, threads, null);
+    }
+
+    /**
+     * @param template modello del modulo a cui appartengono tutte le pagine, <code>null</code> per
+     *                 cercare le checkbox su ogni pagina
+     */
+    public BatchProcessor(ImageProcessor processor, int threads, FormTemplate template) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        processor.checkTemplate(template);
+        this.processor = processor;
+        this.threads = threads;
+        this.template = template;
+        this.pagesInFlight = 2 * threads;
+    }
+
+    /**
+     * Elabora tutte le immagini contenute in una cartella, in ordine di nome
+     *
+     * @param inputDirectory  cartella delle scansioni
+     * @param outputDirectory cartella in cui scrivere le immagini annotate, <code>null</code> per non scriverle
+     * @return un risultato per ogni pagina, nello stesso ordine dei file
+     */
+    public List<PageResult> process(File inputDirectory, File outputDirectory) throws FileNotFoundException {
+        return process(listImages(inputDirectory), outputDirectory);
+    }
+
+    /**
+     * Elabora tutte le immagini contenute in una cartella, in ordine di nome, scrivendo i risultati
+     * su <code>sink</code> man mano che le pagine vengono completate invece di tenerli in memoria
+     *
+     * @param sink destinazione dei risultati, non viene chiusa
+     * @return numero di pagine non elaborate per un errore
+     */
+    public int process(File inputDirectory, File outputDirectory, ResultSink sink) throws IOException {
+        return process(listImages(inputDirectory), outputDirectory, sink);
+    }
+
+    private static List<File> listImages(File inputDirectory) throws FileNotFoundException {
+        File[] files = inputDirectory.listFiles(IMAGE_FILTER);
+
+        if (files == null) {
+            throw new FileNotFoundException(inputDirectory.getPath());
+        }
+        Arrays.sort(files);
+
+        return Arrays.asList(files);
+    }
+
+    /**
+     * Elabora un elenco di pagine
+     *
+     * @param files           scansioni da elaborare
+     * @param outputDirectory cartella in cui scrivere le immagini annotate, <code>null</code> per non scriverle
+     * @return un risultato per ogni pagina, nello stesso ordine dei file
+     */
+    public List<PageResult> process(List<File> files, File outputDirectory) {
+        final List<PageResult> results = new ArrayList<>(files.size());
+        try {
+            process(files, outputDirectory, new ResultSink() {
+                @Override
+                public void write(PageResult result) {
+                    results.add(result);
+                }
+
+                @Override
+                public void close() {
+                }
+            });
+        } catch (IOException e) {
+            // la sink in memoria non scrive su disco
+            throw new IllegalStateException(e);
+        }
+        return results;
+    }
+
+    /**
+     * Elabora un elenco di pagine scrivendo i risultati su <code>sink</code>, nello stesso ordine
+     * dei file, appena ogni pagina e tutte le precedenti sono state completate.
+     * <p>
+     * I TIFF multipagina e i PDF vengono letti una pagina alla volta dal thread chiamante, che
+     * consegna ogni pagina al pool appena decodificata: la lettura del file prosegue mentre le
+     * pagine precedenti vengono elaborate. Le pagine decodificate in attesa o in elaborazione non
+     * sono mai più di {@link #setPagesInFlight(int)}; i risultati seguono l'ordine delle pagine nel file.
+     *
+     * @param sink destinazione dei risultati, non viene chiusa
+     * @return numero di pagine non elaborate per un errore
+     */
+    public int process(List<File> files, final File outputDirectory, ResultSink sink) throws IOException {
+
+        if (outputDirectory != null && !outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IllegalStateException("Cannot create output directory: " + outputDirectory);
+        }
+
+        log.info("Processing {} files on {} threads", files.size(), threads);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactory() {
+                    private final ThreadFactory delegate = Executors.defaultThreadFactory();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return delegate.newThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    r.run();
+                                } finally {
+                                    // il thread termina: libero subito la memoria nativa dei suoi buffer
+                                    processor.releaseWorkBuffers();
+                                }
+                            }
+                        });
+                    }
+                });
+        OrderedWriter writer = new OrderedWriter(sink);
+        try {
+            Semaphore inFlight = new Semaphore(pagesInFlight);
+            for (final File file : files) {
+                if (isMultiPage(file)) {
+                    this.submitPages(executor, inFlight, file, outputDirectory, writer);
+                } else {
+                    writer.add(file, 0, executor.submit(new Callable<PageResult>() {
+                        @Override
+                        public PageResult call() {
+                            return processPage(file, outputDirectory);
+                        }
+                    }));
+                }
+                writer.flush(false);
+            }
+            writer.flush(true);
+
+            log.info("Processed {} pages, {} failed", writer.pages, writer.failures);
+            return writer.failures;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while processing " + writer.current(), e);
+        } finally {
+            executor.shutdownNow();
+            // le pagine mai avviate, se il lotto si è interrotto, non verranno più elaborate
+            writer.releasePending();
+            // le tabelle della trasformata di Radon servono solo fino alla fine del lotto
+            RadonDeskewer.releaseScratch();
+        }
+    }
+
+    /**
+     * @param pages numero massimo di pagine di un file multipagina già decodificate e non ancora
+     *              elaborate, oltre a quella in lettura; limita la memoria occupata dalle immagini.
+     *              Di default il doppio dei thread
+     */
+    public void setPagesInFlight(int pages) {
+        if (pages < 1) {
+            throw new IllegalArgumentException("pages must be positive: " + pages);
+        }
+        this.pagesInFlight = pages;
+    }
+
+    public int getPagesInFlight() {
+        return pagesInFlight;
+    }
+
+    /**
+     * Solo i file con estensione TIFF o PDF vengono esaminati: gli altri vengono letti dai thread del pool
+     */
+    private static boolean isMultiPage(File file) {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        if (!name.endsWith(".tif") && !name.endsWith(".tiff") && !name.endsWith(".pdf")) {
+            return false;
+        }
+        try {
+            return MultiPageReader.isMultiPage(file);
+        } catch (IOException e) {
+            // l'errore viene riportato dall'elaborazione della pagina
+            return false;
+        }
+    }
+
+    /**
+     * Legge le pagine del file sul thread chiamante e le consegna al pool man mano che vengono
+     * decodificate, attendendo quando le pagine in memoria raggiungono il limite
+     */
+    private void submitPages(final ExecutorService executor, final Semaphore inFlight, final File file,
+                             final File outputDirectory, final OrderedWriter writer) throws IOException, InterruptedException {
+        // numero dell'ultima pagina consegnata o segnalata dal lettore
+        final int[] lastPage = new int[1];
+        final IOException[] sinkError = new IOException[1];
+
+        MultiPageReader.Listener listener = new MultiPageReader.Listener() {
+            private long start = System.nanoTime();
+
+            @Override
+            public boolean page(int index, final Mat image, final double dpi) throws InterruptedException {
+                processor.getMetrics().record(PipelineMetrics.Stage.DECODE, System.nanoTime() - start);
+                final int page = index + 1;
+                try {
+                    inFlight.acquire();
+                } catch (InterruptedException e) {
+                    image.release();
+                    throw e;
+                }
+                PageTask task = new PageTask(file, page, image, dpi, outputDirectory, inFlight);
+                writer.add(file, page, executor.submit(task), task);
+                lastPage[0] = page;
+                return this.flush();
+            }
+
+            @Override
+            public boolean failed(int index, IOException error) throws InterruptedException {
+                int page = index + 1;
+                log.error("Error while reading {}: {}", file, error.getMessage(), error);
+                processor.getMetrics().increment(PipelineMetrics.Counter.FAILURES, 1);
+                writer.add(file, page, PageResult.failed(file, page, error));
+                lastPage[0] = page;
+                return this.flush();
+            }
+
+            private boolean flush() throws InterruptedException {
+                try {
+                    writer.flush(false);
+                } catch (IOException e) {
+                    sinkError[0] = e;
+                    return false;
+                }
+                start = System.nanoTime();
+                return true;
+            }
+        };
+
+        log.debug("Reading pages of {}", file);
+        try {
+            MultiPageReader.read(file, processor.decodeFlags(outputDirectory != null), listener);
+        } catch (IOException e) {
+            // le pagine già lette vengono elaborate comunque; l'errore riguarda la pagina successiva
+            log.error("Error while reading {}: {}", file, e.getMessage(), e);
+            processor.getMetrics().increment(PipelineMetrics.Counter.FAILURES, 1);
+            writer.add(file, lastPage[0] + 1, PageResult.failed(file, lastPage[0] + 1, e));
+        }
+        if (sinkError[0] != null) {
+            throw sinkError[0];
+        }
+    }
+
+    private PageResult processPage(File file, File outputDirectory) {
+        try {
+            File output = outputDirectory == null ? null : new File(outputDirectory, outputName(file, 0));
+            return processor.evaluateCheckboxes(file, template, output);
+        } catch (Exception e) {
+            log.error("Error while processing {}: {}", file, e.getMessage(), e);
+            processor.getMetrics().increment(PipelineMetrics.Counter.FAILURES, 1);
+            return PageResult.failed(file, e);
+        }
+    }
+
+    private PageResult processPage(File file, int page, Mat image, double dpi, File outputDirectory) {
+        Page decoded = null;
+        try {
+            decoded = processor.toPage(file, image, dpi);
+            File output = outputDirectory == null ? null : new File(outputDirectory, outputName(file, page));
+            return processor.evaluateCheckboxes(decoded, template, output).withPage(page);
+        } catch (Exception e) {
+            log.error("Error while processing page {} of {}: {}", page, file, e.getMessage(), e);
+            processor.getMetrics().increment(PipelineMetrics.Counter.FAILURES, 1);
+            return PageResult.failed(file, page, e);
+        } finally {
+            if (decoded != null) {
+                decoded.release();
+            }
+            image.release();
+        }
+    }
+
+    /**
+     * Elaborazione di una pagina di un file multipagina. L'immagine appartiene a chi la prende per
+     * primo: il task, o {@link #release()} se il task non è mai stato avviato.
+     */
+    private final class PageTask implements Callable<PageResult> {
+
+        private final File file;
+        private final int page;
+        private final AtomicReference<Mat> image;
+        private final double dpi;
+        private final File outputDirectory;
+        private final Semaphore inFlight;
+
+        PageTask(File file, int page, Mat image, double dpi, File outputDirectory, Semaphore inFlight) {
+            this.file = file;
+            this.page = page;
+            this.image = new AtomicReference<>(image);
+            this.dpi = dpi;
+            this.outputDirectory = outputDirectory;
+            this.inFlight = inFlight;
+        }
+
+        @Override
+        public PageResult call() {
+            Mat taken = image.getAndSet(null);
+            try {
+                if (taken == null) {
+                    throw new IllegalStateException("Page " + page + " of " + file + " already released");
+                }
+                return processPage(file, page, taken, dpi, outputDirectory);
+            } finally {
+                inFlight.release();
+            }
+        }
+
+        /**
+         * Libera l'immagine se il task non l'ha ancora presa
+         */
+        void release() {
+            Mat taken = image.getAndSet(null);
+            if (taken != null) {
+                taken.release();
+                inFlight.release();
+            }
+        }
+    }
+
+    private static String outputName(File file, int page) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return (dot > 0 ? name.substring(0, dot) : name) + (page > 0 ? String.format("_p%04d", page) : "") + "_out.png";
+    }
+
+    /**
+     * Consegna i risultati alla sink nell'ordine in cui le pagine sono state sottoposte
+     */
+    private final class OrderedWriter {
+
+        private final ResultSink sink;
+        private final Deque<Pending> pending = new ArrayDeque<>();
+        private Pending current;
+        private int pages;
+        private int failures;
+
+        OrderedWriter(ResultSink sink) {
+            this.sink = sink;
+        }
+
+        void add(File file, int page, Future<PageResult> future) {
+            pending.addLast(new Pending(file, page, future, null, null));
+        }
+
+        void add(File file, int page, Future<PageResult> future, PageTask task) {
+            pending.addLast(new Pending(file, page, future, null, task));
+        }
+
+        void add(File file, int page, PageResult result) {
+            pending.addLast(new Pending(file, page, null, result, null));
+        }
+
+        /**
+         * Libera le immagini delle pagine non ancora elaborate, dopo lo spegnimento del pool
+         */
+        void releasePending() {
+            for (Pending p : pending) {
+                if (p.task != null) {
+                    p.task.release();
+                }
+            }
+            pending.clear();
+        }
+
+        /**
+         * @param wait <code>true</code> per attendere tutte le pagine, <code>false</code> per
+         *             scrivere solo quelle già completate
+         */
+        void flush(boolean wait) throws IOException, InterruptedException {
+            while (!pending.isEmpty() && (wait || pending.peekFirst().isDone())) {
+                current = pending.pollFirst();
+                PageResult result = current.get();
+                pages++;
+                if (!result.isSuccess()) {
+                    failures++;
+                }
+                // il risultato viene consegnato subito: non lo trattengo fino alla fine del lotto
+                sink.write(result);
+            }
+        }
+
+        String current() {
+            return current == null ? "" : current.file.getPath();
+        }
+    }
+
+    private final class Pending {
+
+        private final File file;
+        private final int page;
+        private final Future<PageResult> future;
+        private final PageResult result;
+        private final PageTask task;
+
+        Pending(File file, int page, Future<PageResult> future, PageResult result, PageTask task) {
+            this.file = file;
+            this.page = page;
+            this.future = future;
+            this.result = result;
+            this.task = task;
+        }
+
+        boolean isDone() {
+            return future == null || future.isDone();
+        }
+
+        PageResult get() throws InterruptedException {
+            if (future == null) {
+                return result;
+            }
+            try {
+                return future.get();
+            } catch (ExecutionException e) {
+                processor.getMetrics().increment(PipelineMetrics.Counter.FAILURES, 1);
+                return PageResult.failed(file, page, e);
+            }
+        }
+    }
+}
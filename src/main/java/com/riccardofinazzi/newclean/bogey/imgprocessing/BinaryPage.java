@@ -0,0 +1,190 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Pagina binarizzata a 1 bit per pixel. Ogni riga occupa {@link #getWordsPerRow()} long: il pixel
+ * <code>x</code> sta nella parola <code>x / 64</code>, al bit <code>x % 64</code> (bit meno
+ * significativo a sinistra). Nero = 1, i bit oltre la larghezza della pagina sono 0.
+ * <p>
+ * Occupa un ottavo di una Mat CV_8UC1 della stessa pagina. Il numero di pixel neri di un
+ * rettangolo si ottiene con una <code>Long.bitCount</code> ogni 64 pixel, e letta byte per byte
+ * (little endian) la stessa riga è già nel formato della trasformata di {@link RadonDeskewer}.
+ */
+public final class BinaryPage {
+
+    /**
+     * Byte letti dalla Mat a ogni copia dalla memoria nativa
+     */
+    private static final int STRIP_BYTES = 64 * 1024;
+
+    private final int width;
+    private final int height;
+    private final int wordsPerRow;
+    private final long[] words;
+
+    /**
+     * @param words almeno <code>height * wordsPerRow(width)</code> elementi, nel layout descritto sopra
+     */
+    BinaryPage(int width, int height, long[] words) {
+        if (words.length < height * wordsPerRow(width)) {
+            throw new IllegalArgumentException("words too short for a " + width + "x" + height + " page: " + words.length);
+        }
+        this.width = width;
+        this.height = height;
+        this.wordsPerRow = wordsPerRow(width);
+        this.words = words;
+    }
+
+    /**
+     * Binarizza con una soglia globale
+     *
+     * @param image     immagine CV_8UC3 (BGR), CV_8UC4 (BGRA) o CV_8UC1
+     * @param threshold i pixel con luminosità minore diventano neri
+     */
+    public static BinaryPage of(Mat image, int threshold) {
+        return of(image, threshold, null);
+    }
+
+    /**
+     * Come {@link #of(Mat, int)}, riutilizzando gli array e la Mat in scala di grigi del thread
+     * corrente. La pagina restituita è valida fino alla successiva chiamata con gli stessi buffer.
+     * <p>
+     * I pixel vengono letti dalla Mat a strisce di righe e impacchettati subito: non viene fatta
+     * nessuna copia a 8 bit dell'intera pagina, e una Mat non continua (es. una sotto-matrice) non
+     * va prima clonata.
+     *
+     * @param buffers buffer del thread corrente, <code>null</code> per allocare nuovi array
+     */
+    static BinaryPage of(Mat image, int threshold, WorkBuffers buffers) {
+        final int width = image.cols();
+        final int height = image.rows();
+
+        Mat gray = image;
+        if (image.channels() == 3 || image.channels() == 4) {
+            gray = buffers != null && buffers.gray != image ? buffers.gray : new Mat();
+            Imgproc.cvtColor(image, gray, image.channels() == 3 ? Imgproc.COLOR_BGR2GRAY : Imgproc.COLOR_BGRA2GRAY);
+        }
+
+        final int stride = wordsPerRow(width);
+        final long[] words = buffers != null ? buffers.wordArray(stride * height) : new long[stride * height];
+        final int strip = Math.max(1, Math.min(height, STRIP_BYTES / Math.max(1, width)));
+        final byte[] pixels = buffers != null ? buffers.pixelArray(width * strip) : new byte[width * strip];
+        // un array più grande (già allocato per un'intera pagina) permette strisce più alte
+        final int stripRows = Math.max(1, pixels.length / Math.max(1, width));
+
+        for (int first = 0; first < height; first += stripRows) {
+            // copia dalla memoria nativa le righe della striscia, anche da una Mat non continua
+            gray.get(first, 0, pixels);
+            final int last = Math.min(height, first + stripRows);
+            for (int row = first; row < last; row++) {
+                final int src = (row - first) * width;
+                final int dst = row * stride;
+                for (int col = 0; col < width; col += 64) {
+                    final int end = Math.min(64, width - col);
+                    long word = 0;
+                    for (int bit = 0; bit < end; bit++) {
+                        if ((pixels[src + col + bit] & 0xFF) < threshold) {
+                            word |= 1L << bit;
+                        }
+                    }
+                    words[dst + (col >>> 6)] = word;
+                }
+            }
+        }
+
+        if (gray != image && (buffers == null || gray != buffers.gray)) {
+            gray.release();
+        }
+        return new BinaryPage(width, height, words);
+    }
+
+    private static int wordsPerRow(int width) {
+        return (width + 63) >>> 6;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getWordsPerRow() {
+        return wordsPerRow;
+    }
+
+    /**
+     * @return le parole della pagina, righe di {@link #getWordsPerRow()} elementi; l'array non viene copiato
+     */
+    public long[] getWords() {
+        return words;
+    }
+
+    public boolean isBlack(int x, int y) {
+        return (words[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+    }
+
+    /**
+     * @return numero di pixel neri del rettangolo, che deve essere interamente contenuto nella pagina
+     */
+    public int countBlack(int x, int y, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return 0;
+        }
+
+        final int first = x >>> 6;
+        final int last = (x + width - 1) >>> 6;
+        // lo shift dei long usa solo i 6 bit bassi
+        final long firstMask = -1L << x;
+        final long lastMask = -1L >>> (63 - ((x + width - 1) & 63));
+
+        int count = 0;
+        for (int row = y; row < y + height; row++) {
+            final int base = row * wordsPerRow;
+            if (first == last) {
+                count += Long.bitCount(words[base + first] & firstMask & lastMask);
+                continue;
+            }
+            count += Long.bitCount(words[base + first] & firstMask);
+            for (int k = first + 1; k < last; k++) {
+                count += Long.bitCount(words[base + k]);
+            }
+            count += Long.bitCount(words[base + last] & lastMask);
+        }
+        return count;
+    }
+
+    /**
+     * @return la pagina in righe di <code>(width + 7) / 8</code> byte, nero = 1, bit meno
+     * significativo a sinistra: il formato della trasformata di {@link RadonDeskewer}
+     */
+    byte[] toBytes() {
+        return toBytes(new byte[(width + 7) / 8 * height]);
+    }
+
+    /**
+     * Come {@link #toBytes()}, scrivendo in un array esistente
+     *
+     * @param data almeno <code>(width + 7) / 8 * height</code> elementi
+     * @return <code>data</code>
+     */
+    byte[] toBytes(byte[] data) {
+        final int byteWidth = (width + 7) / 8;
+        for (int row = 0; row < height; row++) {
+            final int src = row * wordsPerRow;
+            final int dst = row * byteWidth;
+            for (int col = 0; col < byteWidth; col++) {
+                data[dst + col] = (byte) (words[src + (col >>> 3)] >>> ((col & 7) << 3));
+            }
+        }
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return "BinaryPage{" + width + "x" + height + '}';
+    }
+}
@@ -0,0 +1,117 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.opencv.core.Rect;
+
+import java.util.Arrays;
+
+/**
+ * Elenco di rettangoli memorizzato in array di primitivi, senza un oggetto per elemento.
+ * Usato per i candidati della ricerca delle checkbox, che su pagine rumorose sono migliaia.
+ */
+public class BoxList {
+
+    private int size;
+    private int[] x;
+    private int[] y;
+    private int[] width;
+    private int[] height;
+    private int[] area;
+
+    public BoxList() {
+        this(16);
+    }
+
+    public BoxList(int capacity) {
+        capacity = Math.max(1, capacity);
+        x = new int[capacity];
+        y = new int[capacity];
+        width = new int[capacity];
+        height = new int[capacity];
+        area = new int[capacity];
+    }
+
+    /**
+     * @param area area effettiva dell'elemento (pixel), che può essere minore di quella del rettangolo
+     */
+    void add(int x, int y, int width, int height, int area) {
+        if (size == this.x.length) {
+            int capacity = size * 2;
+            this.x = Arrays.copyOf(this.x, capacity);
+            this.y = Arrays.copyOf(this.y, capacity);
+            this.width = Arrays.copyOf(this.width, capacity);
+            this.height = Arrays.copyOf(this.height, capacity);
+            this.area = Arrays.copyOf(this.area, capacity);
+        }
+        this.x[size] = x;
+        this.y[size] = y;
+        this.width[size] = width;
+        this.height[size] = height;
+        this.area[size] = area;
+        size++;
+    }
+
+    void add(Rect rect) {
+        add(rect.x, rect.y, rect.width, rect.height, rect.width * rect.height);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getX(int i) {
+        return x[i];
+    }
+
+    public int getY(int i) {
+        return y[i];
+    }
+
+    public int getWidth(int i) {
+        return width[i];
+    }
+
+    public int getHeight(int i) {
+        return height[i];
+    }
+
+    public int getArea(int i) {
+        return area[i];
+    }
+
+    public Rect getRect(int i) {
+        return new Rect(x[i], y[i], width[i], height[i]);
+    }
+
+    /**
+     * @return una copia traslata di (dx, dy)
+     */
+    public BoxList translate(int dx, int dy) {
+        BoxList moved = new BoxList(size);
+        for (int i = 0; i < size; i++) {
+            moved.add(x[i] + dx, y[i] + dy, width[i], height[i], area[i]);
+        }
+        return moved;
+    }
+
+    /**
+     * Riordina gli elementi
+     *
+     * @param order indici degli elementi nel nuovo ordine
+     * @see ReadingOrder#sort(BoxList)
+     */
+    void reorder(int[] order) {
+        x = permute(x, order);
+        y = permute(y, order);
+        width = permute(width, order);
+        height = permute(height, order);
+        area = permute(area, order);
+    }
+
+    private static int[] permute(int[] values, int[] order) {
+        int[] sorted = new int[values.length];
+        for (int i = 0; i < order.length; i++) {
+            sorted[i] = values[order[i]];
+        }
+        return sorted;
+    }
+}
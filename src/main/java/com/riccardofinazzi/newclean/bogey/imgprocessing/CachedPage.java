@@ -0,0 +1,144 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Risultato di una pagina salvato in {@link ResultCache}: l'angolo di inclinazione e, se la pagina
+ * è stata elaborata per intero, le checkbox con la relativa percentuale di riempimento.
+ * <p>
+ * Lo stato selezionato/non selezionato non viene salvato: dipende dalla soglia, che può cambiare
+ * tra un'elaborazione e l'altra, e viene ricalcolato con {@link #toResults(float)}.
+ */
+class CachedPage {
+
+    /**
+     * Versione del formato delle voci, parte dell'impronta della configurazione: va incrementata a
+     * ogni modifica del formato o del significato dei risultati salvati, così le voci precedenti
+     * non vengono più lette.
+     * <ol>
+     * <li>angolo, rettangoli e percentuali, nell'ordine di lettura per righe;</li>
+     * <li>anche riga e colonna di ogni checkbox.</li>
+     * </ol>
+     */
+    static final int FORMAT_VERSION = 2;
+
+    private final SkewEstimate skew;
+
+    /**
+     * Rettangoli su cui è stata calcolata la percentuale, <code>null</code> se è salvato solo l'angolo
+     */
+    private final BoxList boxes;
+    private final float[] percentages;
+
+    /**
+     * Riga e colonna di ciascuna checkbox, calcolate sui rettangoli esterni e non ricavabili dai ritagli
+     */
+    private final int[] rows;
+    private final int[] columns;
+
+    private CachedPage(SkewEstimate skew, BoxList boxes, float[] percentages, int[] rows, int[] columns) {
+        this.skew = skew;
+        this.boxes = boxes;
+        this.percentages = percentages;
+        this.rows = rows;
+        this.columns = columns;
+    }
+
+    static CachedPage angleOnly(SkewEstimate skew) {
+        return new CachedPage(skew, null, null, null, null);
+    }
+
+    static CachedPage of(SkewEstimate skew, List<CheckboxResult> results) {
+        BoxList boxes = new BoxList(results.size());
+        float[] percentages = new float[results.size()];
+        int[] rows = new int[results.size()];
+        int[] columns = new int[results.size()];
+
+        for (int i = 0; i < results.size(); i++) {
+            CheckboxResult result = results.get(i);
+            boxes.add(result.getBox());
+            percentages[i] = result.getPercentage();
+            rows[i] = result.getRow();
+            columns[i] = result.getColumn();
+        }
+        return new CachedPage(skew, boxes, percentages, rows, columns);
+    }
+
+    SkewEstimate getSkew() {
+        return skew;
+    }
+
+    /**
+     * @return <code>true</code> se contiene anche le checkbox
+     */
+    boolean isComplete() {
+        return boxes != null;
+    }
+
+    /**
+     * @param fillThreshold soglia di riempimento corrente, in percentuale
+     */
+    List<CheckboxResult> toResults(float fillThreshold) {
+        List<CheckboxResult> results = new ArrayList<>(boxes.size());
+        for (int i = 0; i < boxes.size(); i++) {
+            results.add(new CheckboxResult(i, rows[i], columns[i], boxes.getRect(i),
+                    percentages[i], percentages[i] >= fillThreshold));
+        }
+        return results;
+    }
+
+    Properties toProperties() {
+        Properties p = new Properties();
+        p.setProperty("angle", String.valueOf(skew.getAngle()));
+        p.setProperty("confidence", String.valueOf(skew.getConfidence()));
+        p.setProperty("refined", String.valueOf(skew.isRefined()));
+        p.setProperty("fallback", String.valueOf(skew.isFallback()));
+
+        if (boxes != null) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < boxes.size(); i++) {
+                if (i > 0) {
+                    sb.append(';');
+                }
+                sb.append(boxes.getX(i)).append(',').append(boxes.getY(i)).append(',')
+                        .append(boxes.getWidth(i)).append(',').append(boxes.getHeight(i)).append(',')
+                        .append(percentages[i]).append(',')
+                        .append(rows[i]).append(',').append(columns[i]);
+            }
+            p.setProperty("boxes", sb.toString());
+        }
+        return p;
+    }
+
+    static CachedPage fromProperties(Properties p) {
+        SkewEstimate skew = new SkewEstimate(
+                Double.parseDouble(p.getProperty("angle")),
+                Double.parseDouble(p.getProperty("confidence")),
+                Boolean.parseBoolean(p.getProperty("refined")),
+                Boolean.parseBoolean(p.getProperty("fallback")));
+
+        String value = p.getProperty("boxes");
+        if (value == null) {
+            return angleOnly(skew);
+        }
+
+        String[] entries = value.isEmpty() ? new String[0] : value.split(";");
+        BoxList boxes = new BoxList(entries.length);
+        float[] percentages = new float[entries.length];
+        int[] rows = new int[entries.length];
+        int[] columns = new int[entries.length];
+
+        for (int i = 0; i < entries.length; i++) {
+            String[] v = entries[i].split(",");
+            int width = Integer.parseInt(v[2]);
+            int height = Integer.parseInt(v[3]);
+            boxes.add(Integer.parseInt(v[0]), Integer.parseInt(v[1]), width, height, width * height);
+            percentages[i] = Float.parseFloat(v[4]);
+            rows[i] = Integer.parseInt(v[5]);
+            columns[i] = Integer.parseInt(v[6]);
+        }
+        return new CachedPage(skew, boxes, percentages, rows, columns);
+    }
+}
@@ -0,0 +1,78 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.opencv.core.Rect;
+
+/**
+ * Esito della valutazione di una singola checkbox
+ */
+public class CheckboxResult {
+
+    private final int index;
+    private final int row;
+    private final int column;
+    private final Rect box;
+    private final float percentage;
+    private final boolean marked;
+
+    public CheckboxResult(int index, Rect box, float percentage, boolean marked) {
+        this(index, -1, -1, box, percentage, marked);
+    }
+
+    /**
+     * @param row    riga della checkbox nella pagina, da 0
+     * @param column colonna della checkbox nella pagina, da 0
+     */
+    public CheckboxResult(int index, int row, int column, Rect box, float percentage, boolean marked) {
+        this.index = index;
+        this.row = row;
+        this.column = column;
+        this.box = box;
+        this.percentage = percentage;
+        this.marked = marked;
+    }
+
+    /**
+     * @return posizione della checkbox nell'ordine di lettura della pagina
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return riga della checkbox, da 0 in alto; -1 se non nota
+     */
+    public int getRow() {
+        return row;
+    }
+
+    /**
+     * @return colonna della checkbox, da 0 a sinistra; -1 se non nota. Le colonne sono comuni a
+     * tutta la pagina: checkbox allineate in verticale hanno la stessa colonna anche in righe diverse.
+     */
+    public int getColumn() {
+        return column;
+    }
+
+    /**
+     * @return area interna della checkbox sulla quale è stata calcolata la percentuale
+     */
+    public Rect getBox() {
+        return box;
+    }
+
+    /**
+     * @return percentuale di pixel marcati
+     */
+    public float getPercentage() {
+        return percentage;
+    }
+
+    public boolean isMarked() {
+        return marked;
+    }
+
+    @Override
+    public String toString() {
+        return "CheckboxResult{index=" + index + ", row=" + row + ", column=" + column + ", box=" + box + ", percentage=" + percentage + ", marked=" + marked + '}';
+    }
+}
@@ -0,0 +1,70 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import static org.opencv.core.Core.bitwise_not;
+import static org.opencv.imgproc.Imgproc.*;
+
+/**
+ * Ricerca dei candidati checkbox tramite le statistiche delle componenti connesse: un'unica
+ * passata nativa restituisce rettangolo e area di tutte le componenti, che vengono filtrate
+ * per dimensione direttamente sull'array, senza creare un MatOfPoint per ogni contorno.
+ * <p>
+ * Restituisce gli stessi rettangoli di <code>findContours(RETR_LIST)</code> + <code>boundingRect</code>:
+ * <ul>
+ * <li>i contorni esterni delle zone bianche corrispondono alle componenti bianche (connettività 8);</li>
+ * <li>i contorni dei buchi corrispondono alle componenti nere (connettività 4), ma vengono tracciati
+ * sui pixel bianchi circostanti, quindi il rettangolo è più largo di un pixel per lato.</li>
+ * </ul>
+ */
+class ComponentCandidateFinder {
+
+    private ComponentCandidateFinder() {
+    }
+
+    /**
+     * @param binary  immagine binarizzata (sfondo bianco)
+     * @param minSize lato minimo escluso
+     * @param maxSize lato massimo escluso
+     * @param metrics dove contare le componenti esaminate
+     * @return i rettangoli con entrambi i lati in <code>(minSize, maxSize)</code>, nell'ordine di lettura
+     */
+    static BoxList find(Mat binary, int minSize, int maxSize, WorkBuffers buffers, PipelineMetrics metrics) {
+        BoxList boxes = new BoxList();
+
+        int candidates = collect(binary, 8, 0, minSize, maxSize, buffers, boxes);
+
+        bitwise_not(binary, buffers.mask);
+        candidates += collect(buffers.mask, 4, 1, minSize, maxSize, buffers, boxes);
+        metrics.increment(PipelineMetrics.Counter.CANDIDATES, candidates);
+
+        ReadingOrder.sort(boxes);
+        return boxes;
+    }
+
+    /**
+     * @return numero di componenti esaminate, sfondo escluso
+     */
+    private static int collect(Mat image, int connectivity, int grow, int minSize, int maxSize,
+                                WorkBuffers buffers, BoxList boxes) {
+        int n = connectedComponentsWithStats(image, buffers.labels, buffers.stats, buffers.centroids,
+                connectivity, CvType.CV_32S);
+
+        int[] stats = buffers.statsArray(n * 5);
+        buffers.stats.get(0, 0, stats);
+
+        // la componente 0 è lo sfondo
+        for (int i = 1; i < n; i++) {
+            int offset = i * 5;
+            int width = stats[offset + CC_STAT_WIDTH] + 2 * grow;
+            int height = stats[offset + CC_STAT_HEIGHT] + 2 * grow;
+
+            if (height > minSize && height < maxSize && width > minSize && width < maxSize) {
+                boxes.add(stats[offset + CC_STAT_LEFT] - grow, stats[offset + CC_STAT_TOP] - grow,
+                        width, height, stats[offset + CC_STAT_AREA]);
+            }
+        }
+        return n - 1;
+    }
+}
@@ -0,0 +1,60 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.opencv.core.Rect;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Scrive i risultati in formato CSV (RFC 4180), con intestazione. Le pagine non elaborate hanno
+ * una sola riga con la colonna <code>error</code> valorizzata.
+ */
+public class CsvResultSink extends StreamingResultSink {
+
+    static final String HEADER = "file,skew_angle,index,row,column,x,y,width,height,fill,marked,error\n";
+
+    private boolean headerWritten;
+
+    public CsvResultSink(Writer writer) {
+        super(writer);
+    }
+
+    @Override
+    void writeCheckbox(Writer writer, PageResult page, CheckboxResult checkbox) throws IOException {
+        writeHeader(writer);
+        Rect box = checkbox.getBox();
+
+        writer.write(quote(fileName(page)) + ',' + page.getSkewAngle() + ',' + checkbox.getIndex()
+                + ',' + checkbox.getRow() + ',' + checkbox.getColumn()
+                + ',' + box.x + ',' + box.y + ',' + box.width + ',' + box.height
+                + ',' + checkbox.getPercentage() + ',' + checkbox.isMarked() + ",\n");
+    }
+
+    @Override
+    void writeFailure(Writer writer, PageResult page) throws IOException {
+        writeHeader(writer);
+        writer.write(quote(fileName(page)) + ",,,,,,,,,,," + quote(errorMessage(page)) + '\n');
+    }
+
+    /**
+     * Anche un lotto vuoto produce un CSV valido, con la sola intestazione
+     */
+    @Override
+    void writeTrailer(Writer writer) throws IOException {
+        writeHeader(writer);
+    }
+
+    private void writeHeader(Writer writer) throws IOException {
+        if (!headerWritten) {
+            writer.write(HEADER);
+            headerWritten = true;
+        }
+    }
+
+    private static String quote(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,19 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+/**
+ * Strategia di calcolo dell'angolo di inclinazione
+ */
+public enum DeskewMode {
+
+    /**
+     * Trasformata di Radon completa a piena risoluzione
+     */
+    EXACT,
+
+    /**
+     * Stima su un'immagine decimata, raffinata a piena risoluzione in un intorno ristretto
+     * dell'angolo. Si discosta da {@link #EXACT} di uno o due passi della trasformata (circa 0.03°
+     * ciascuno per un A4 a 200 dpi)
+     */
+    COARSE_TO_FINE
+}
@@ -0,0 +1,17 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+/**
+ * Strategia di ricerca delle checkbox sulla pagina
+ */
+public enum DetectionMode {
+
+    /**
+     * <code>findContours</code> e <code>boundingRect</code> su ogni contorno
+     */
+    CONTOURS,
+
+    /**
+     * Statistiche delle componenti connesse, calcolate in un'unica passata nativa
+     */
+    COMPONENTS
+}
@@ -0,0 +1,320 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+
+import static org.opencv.imgproc.Imgproc.*;
+
+/**
+ * Segni di registrazione trovati negli angoli di una pagina: quadrati neri pieni, isolati dal resto
+ * del modulo.
+ * <p>
+ * La ricerca avviene solo in quattro finestre agli angoli della pagina, ciascuna pari a un quinto
+ * della larghezza e dell'altezza: costa una frazione della binarizzazione dell'intera pagina. Con
+ * almeno tre segni si ricavano l'area attiva del modulo e l'inclinazione, dalla pendenza dei lati
+ * del quadrilatero formato dai segni.
+ */
+final class FiducialMarks {
+
+    private static final int TOP_LEFT = 0;
+    private static final int TOP_RIGHT = 1;
+    private static final int BOTTOM_RIGHT = 2;
+    private static final int BOTTOM_LEFT = 3;
+
+    /**
+     * Frazione della pagina coperta da ciascuna finestra di ricerca
+     */
+    static final double WINDOW = 0.2;
+
+    /**
+     * Rapporto minimo tra area del segno e area del rettangolo esterno: un quadrato pieno ruotato di
+     * 15° ne copre ancora i due terzi, il bordo di una checkbox molto meno
+     */
+    private static final double MIN_FILL = 0.6;
+
+    /**
+     * Differenza massima tra i lati del rettangolo esterno, in proporzione al maggiore
+     */
+    private static final double MAX_ASPECT = 0.25;
+
+    /**
+     * Frazione massima di pixel neri nella cornice attorno al segno, larga metà del lato
+     */
+    private static final double MAX_QUIET_ZONE_INK = 0.05;
+
+    /**
+     * Inclinazione massima accettata, in gradi
+     */
+    private static final double MAX_ANGLE = 15;
+
+    /**
+     * Confidenza massima di una stima: scarto tra i lati inferiore a un centesimo di grado
+     */
+    private static final double MAX_CONFIDENCE = 100;
+
+    private final Rect[] marks;
+    private final Rect activeArea;
+    private final SkewEstimate skew;
+
+    private FiducialMarks(Rect[] marks, Rect activeArea, SkewEstimate skew) {
+        this.marks = marks;
+        this.activeArea = activeArea;
+        this.skew = skew;
+    }
+
+    /**
+     * @param image   pagina CV_8UC3 (BGR) o CV_8UC1
+     * @param minSide lato minimo di un segno, in pixel
+     * @param maxSide lato massimo di un segno, in pixel
+     * @return i segni trovati, <code>null</code> se sono meno di tre o non formano un rettangolo
+     */
+    static FiducialMarks locate(Mat image, int minSide, int maxSide) {
+        int windowWidth = (int) (image.cols() * WINDOW);
+        int windowHeight = (int) (image.rows() * WINDOW);
+        if (windowWidth < maxSide || windowHeight < maxSide) {
+            return null;
+        }
+
+        Rect[] marks = new Rect[4];
+        Point[] centers = new Point[4];
+
+        Mat gray = new Mat();
+        Mat binary = new Mat();
+        Mat labels = new Mat();
+        Mat stats = new Mat();
+        Mat centroids = new Mat();
+        try {
+            for (int corner = 0; corner < 4; corner++) {
+                boolean right = corner == TOP_RIGHT || corner == BOTTOM_RIGHT;
+                boolean bottom = corner == BOTTOM_RIGHT || corner == BOTTOM_LEFT;
+                Rect window = new Rect(right ? image.cols() - windowWidth : 0, bottom ? image.rows() - windowHeight : 0,
+                        windowWidth, windowHeight);
+
+                Mat roi = image.submat(window);
+                try {
+                    if (roi.channels() == 1) {
+                        threshold(roi, binary, 127, 255, THRESH_BINARY_INV);
+                    } else {
+                        cvtColor(roi, gray, COLOR_BGR2GRAY);
+                        threshold(gray, binary, 127, 255, THRESH_BINARY_INV);
+                    }
+                } finally {
+                    roi.release();
+                }
+
+                int n = connectedComponentsWithStats(binary, labels, stats, centroids, 8, CvType.CV_32S);
+                int[] s = new int[n * 5];
+                stats.get(0, 0, s);
+                double[] c = new double[n * 2];
+                centroids.get(0, 0, c);
+
+                int best = -1;
+                double bestDistance = Double.MAX_VALUE;
+                // la componente 0 è lo sfondo
+                for (int i = 1; i < n; i++) {
+                    int x = s[i * 5 + CC_STAT_LEFT];
+                    int y = s[i * 5 + CC_STAT_TOP];
+                    int w = s[i * 5 + CC_STAT_WIDTH];
+                    int h = s[i * 5 + CC_STAT_HEIGHT];
+                    int area = s[i * 5 + CC_STAT_AREA];
+
+                    // lato del quadrato di pari area: non dipende dalla rotazione
+                    double side = Math.sqrt(area);
+                    if (side < minSide || side > maxSide
+                            || Math.abs(w - h) > MAX_ASPECT * Math.max(w, h)
+                            || area < MIN_FILL * w * h
+                            || !isolated(binary, x, y, w, h, area)) {
+                        continue;
+                    }
+
+                    // il più vicino all'angolo della pagina
+                    double dx = right ? windowWidth - c[i * 2] : c[i * 2];
+                    double dy = bottom ? windowHeight - c[i * 2 + 1] : c[i * 2 + 1];
+                    double distance = dx * dx + dy * dy;
+                    if (distance < bestDistance) {
+                        bestDistance = distance;
+                        best = i;
+                    }
+                }
+
+                if (best > 0) {
+                    marks[corner] = new Rect(window.x + s[best * 5 + CC_STAT_LEFT], window.y + s[best * 5 + CC_STAT_TOP],
+                            s[best * 5 + CC_STAT_WIDTH], s[best * 5 + CC_STAT_HEIGHT]);
+                    centers[corner] = new Point(window.x + c[best * 2], window.y + c[best * 2 + 1]);
+                }
+            }
+        } finally {
+            gray.release();
+            binary.release();
+            labels.release();
+            stats.release();
+            centroids.release();
+        }
+
+        int missing = -1;
+        for (int corner = 0; corner < 4; corner++) {
+            if (centers[corner] == null) {
+                if (missing >= 0) {
+                    return null;
+                }
+                missing = corner;
+            }
+        }
+
+        SkewEstimate skew = skew(centers);
+        if (skew == null) {
+            return null;
+        }
+
+        if (missing >= 0) {
+            // quarto vertice del parallelogramma: opposto più adiacente meno adiacente
+            Point a = centers[(missing + 1) % 4];
+            Point b = centers[(missing + 2) % 4];
+            Point d = centers[(missing + 3) % 4];
+            centers[missing] = new Point(a.x + d.x - b.x, a.y + d.y - b.y);
+        }
+
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (Point p : centers) {
+            minX = Math.min(minX, p.x);
+            minY = Math.min(minY, p.y);
+            maxX = Math.max(maxX, p.x);
+            maxY = Math.max(maxY, p.y);
+        }
+        int x1 = Math.max((int) Math.floor(minX), 0);
+        int y1 = Math.max((int) Math.floor(minY), 0);
+        int x2 = Math.min((int) Math.ceil(maxX), image.cols());
+        int y2 = Math.min((int) Math.ceil(maxY), image.rows());
+        if (x2 - x1 < 2 * maxSide || y2 - y1 < 2 * maxSide) {
+            return null;
+        }
+
+        return new FiducialMarks(marks, new Rect(x1, y1, x2 - x1, y2 - y1), skew);
+    }
+
+    /**
+     * Un segno di registrazione è circondato da una zona bianca: scarta i blocchi pieni che fanno
+     * parte del modulo (celle campite, intestazioni)
+     */
+    private static boolean isolated(Mat binary, int x, int y, int w, int h, int area) {
+        int margin = Math.max(w, h) / 2;
+        int x1 = Math.max(x - margin, 0);
+        int y1 = Math.max(y - margin, 0);
+        int x2 = Math.min(x + w + margin, binary.cols());
+        int y2 = Math.min(y + h + margin, binary.rows());
+
+        Mat zone = binary.submat(y1, y2, x1, x2);
+        try {
+            int ink = Core.countNonZero(zone) - area;
+            int zoneArea = (x2 - x1) * (y2 - y1) - w * h;
+            return ink <= MAX_QUIET_ZONE_INK * zoneArea;
+        } finally {
+            zone.release();
+        }
+    }
+
+    /**
+     * Inclinazione come media della pendenza dei lati del quadrilatero, con la convenzione di
+     * {@link RadonDeskewer}. La confidenza è l'inverso dello scarto massimo in gradi tra i lati:
+     * su una pagina solo ruotata i lati sono paralleli.
+     *
+     * @param centers centri dei segni, al più uno <code>null</code>
+     * @return <code>null</code> se i lati non concordano
+     */
+    private static SkewEstimate skew(Point[] centers) {
+        double[] angles = new double[4];
+        int n = 0;
+        // lati orizzontali: da sinistra a destra
+        n = edge(centers[TOP_LEFT], centers[TOP_RIGHT], false, angles, n);
+        n = edge(centers[BOTTOM_LEFT], centers[BOTTOM_RIGHT], false, angles, n);
+        // lati verticali: dall'alto in basso
+        n = edge(centers[TOP_LEFT], centers[BOTTOM_LEFT], true, angles, n);
+        n = edge(centers[TOP_RIGHT], centers[BOTTOM_RIGHT], true, angles, n);
+        if (n < 2) {
+            return null;
+        }
+
+        double sum = 0;
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            sum += angles[i];
+            min = Math.min(min, angles[i]);
+            max = Math.max(max, angles[i]);
+        }
+        double angle = sum / n;
+        double confidence = Math.min(MAX_CONFIDENCE, 1 / Math.max(max - min, 1 / MAX_CONFIDENCE));
+
+        SkewEstimate skew = new SkewEstimate(angle, confidence, false);
+        if (Math.abs(angle) > MAX_ANGLE || !skew.isReliable()) {
+            return null;
+        }
+        return skew;
+    }
+
+    private static int edge(Point from, Point to, boolean vertical, double[] angles, int n) {
+        if (from == null || to == null) {
+            return n;
+        }
+        double dx = to.x - from.x;
+        double dy = to.y - from.y;
+        // con l'asse y verso il basso una rotazione antioraria solleva il lato destro: angolo negativo
+        angles[n] = Math.toDegrees(vertical ? -Math.atan2(dx, dy) : Math.atan2(dy, dx));
+        return n + 1;
+    }
+
+    /**
+     * @return rettangolo che contiene i centri dei segni, nelle coordinate della pagina
+     */
+    Rect getActiveArea() {
+        return activeArea;
+    }
+
+    /**
+     * @return inclinazione ricavata dai segni
+     */
+    SkewEstimate getSkew() {
+        return skew;
+    }
+
+    /**
+     * @return segni trovati, 3 o 4
+     */
+    int getCount() {
+        int count = 0;
+        for (Rect mark : marks) {
+            if (mark != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Copia l'area attiva della pagina e cancella i segni, che altrimenti potrebbero essere scambiati
+     * per checkbox piene
+     *
+     * @return una nuova pagina con l'inclinazione ricavata dai segni e la posizione dell'area attiva
+     * nella pagina intera, da liberare indipendentemente da <code>page</code>
+     */
+    Page crop(Page page) {
+        Mat roi = page.getImage().submat(activeArea);
+        Mat cropped = roi.clone();
+        roi.release();
+
+        Scalar white = cropped.channels() == 1 ? new Scalar(255) : new Scalar(255, 255, 255);
+        for (Rect mark : marks) {
+            if (mark != null) {
+                rectangle(cropped, new Point(mark.x - activeArea.x - 2, mark.y - activeArea.y - 2),
+                        new Point(mark.x + mark.width - activeArea.x + 2, mark.y + mark.height - activeArea.y + 2),
+                        white, Core.FILLED);
+            }
+        }
+        return new Page(page.getSource(), cropped, page.getScale(), skew,
+                page.getOriginX() + activeArea.x, page.getOriginY() + activeArea.y);
+    }
+}
@@ -0,0 +1,30 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+/**
+ * Calcola la frazione di pixel marcati (neri) di tutte le checkbox di una pagina in una volta sola,
+ * contando i bit della pagina a 1 bit per pixel: una <code>Long.bitCount</code> ogni 64 pixel di
+ * ciascuna riga del rettangolo, senza ritagli né chiamate native per singola checkbox.
+ */
+class FillRatioScorer {
+
+    private FillRatioScorer() {
+    }
+
+    /**
+     * @param binary pagina binarizzata
+     * @param rois   rettangoli da valutare, interamente contenuti nella pagina
+     * @return per ogni rettangolo la frazione di pixel neri, tra 0 e 1
+     */
+    static float[] score(BinaryPage binary, BoxList rois) {
+        final float[] ratios = new float[rois.size()];
+        for (int i = 0; i < ratios.length; i++) {
+            final int width = rois.getWidth(i);
+            final int height = rois.getHeight(i);
+
+            final int marked = binary.countBlack(rois.getX(i), rois.getY(i), width, height);
+            final int total = width * height;
+            ratios[i] = total == 0 ? 0 : (float) marked / (float) total;
+        }
+        return ratios;
+    }
+}
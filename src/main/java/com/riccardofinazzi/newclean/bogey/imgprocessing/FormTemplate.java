@@ -0,0 +1,364 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Modello di un modulo: le coordinate delle checkbox ricavate da una scansione di riferimento
+ * raddrizzata, più i profili di riga e di colonna che servono ad allineare le pagine successive.
+ * <p>
+ * Coordinate e profili valgono solo per pagine elaborate alla stessa risoluzione di lavoro e con
+ * la stessa {@link RegistrationMode} della scansione di riferimento: il modello le riporta, e
+ * {@link ImageProcessor} rifiuta un modello registrato con una configurazione diversa. Lo SHA-256
+ * del contenuto ({@link #getHash()}) distingue due registrazioni con lo stesso nome, ad esempio
+ * nell'impronta dei risultati della {@link ResultCache}, e permette di riconoscere un file alterato.
+ * <p>
+ * Il modello è immutabile e può essere condiviso tra più thread.
+ */
+public class FormTemplate {
+
+    /**
+     * Massimo spostamento cercato durante l'allineamento, in frazione della dimensione della pagina
+     */
+    private static final double MAX_SHIFT_RATIO = 0.05;
+
+    private final String name;
+    private final int width;
+    private final int height;
+    private final int workingDpi;
+    private final RegistrationMode registrationMode;
+    private final BoxList boxes;
+    private final int[] rowProfile;
+    private final int[] columnProfile;
+    private final String hash;
+
+    FormTemplate(String name, int width, int height, int workingDpi, RegistrationMode registrationMode,
+                 BoxList boxes, int[] rowProfile, int[] columnProfile) {
+        this.name = name;
+        this.width = width;
+        this.height = height;
+        this.workingDpi = workingDpi;
+        this.registrationMode = registrationMode;
+        this.boxes = boxes.translate(0, 0);
+        this.rowProfile = rowProfile;
+        this.columnProfile = columnProfile;
+        this.hash = this.contentHash();
+    }
+
+    /**
+     * @param binary     pagina di riferimento raddrizzata e binarizzata
+     * @param boxes      rettangoli esterni delle checkbox trovate sulla pagina
+     * @param workingDpi risoluzione di lavoro a cui è stata elaborata la pagina
+     */
+    static FormTemplate create(String name, Mat binary, BoxList boxes, int workingDpi, RegistrationMode registrationMode) {
+        return new FormTemplate(name, binary.cols(), binary.rows(), workingDpi, registrationMode,
+                boxes, rowProfile(binary), columnProfile(binary));
+    }
+
+    /**
+     * Come {@link #create(String, Mat, BoxList, int, RegistrationMode)}, per una pagina di
+     * riferimento non raddrizzata ({@link RotationMode#COORDINATES})
+     *
+     * @param binary    pagina di riferimento binarizzata, non raddrizzata
+     * @param transform rotazione che raddrizza la pagina
+     * @param boxes     rettangoli esterni delle checkbox nelle coordinate della pagina raddrizzata
+     */
+    static FormTemplate create(String name, Mat binary, RotationTransform transform, WorkBuffers buffers,
+                               BoxList boxes, int workingDpi, RegistrationMode registrationMode) {
+        int size = transform.getSize();
+        int[] rows = new int[size];
+        int[] columns = new int[size];
+        projectBlack(binary, transform, buffers, rows, columns);
+        return new FormTemplate(name, size, size, workingDpi, registrationMode, boxes, rows, columns);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return risoluzione di lavoro della scansione di riferimento, 0 se elaborata alla risoluzione di scansione
+     */
+    public int getWorkingDpi() {
+        return workingDpi;
+    }
+
+    public RegistrationMode getRegistrationMode() {
+        return registrationMode;
+    }
+
+    /**
+     * @return SHA-256 del contenuto del modello (dimensioni, configurazione, checkbox e profili),
+     * in esadecimale; il nome non ne fa parte
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return rettangoli esterni delle checkbox nelle coordinate della pagina di riferimento
+     */
+    public List<Rect> getBoxes() {
+        List<Rect> rects = new ArrayList<>(boxes.size());
+        for (int i = 0; i < boxes.size(); i++) {
+            rects.add(boxes.getRect(i));
+        }
+        return rects;
+    }
+
+    /**
+     * Allinea la pagina al modello e restituisce la posizione delle checkbox sulla pagina
+     *
+     * @param binary pagina raddrizzata e binarizzata
+     */
+    BoxList locate(Mat binary) {
+        int dx = bestShift(columnProfile, columnProfile(binary), (int) (width * MAX_SHIFT_RATIO));
+        int dy = bestShift(rowProfile, rowProfile(binary), (int) (height * MAX_SHIFT_RATIO));
+
+        return boxes.translate(dx, dy);
+    }
+
+    /**
+     * Come {@link #locate(Mat)}, per una pagina non raddrizzata: i profili della pagina raddrizzata
+     * vengono calcolati proiettando i pixel neri attraverso la rotazione
+     *
+     * @param binary    pagina binarizzata, non raddrizzata
+     * @param transform rotazione che raddrizza la pagina
+     * @return posizione delle checkbox nelle coordinate della pagina raddrizzata
+     */
+    BoxList locate(Mat binary, RotationTransform transform, WorkBuffers buffers) {
+        int[] rows = new int[transform.getSize()];
+        int[] columns = new int[transform.getSize()];
+        projectBlack(binary, transform, buffers, rows, columns);
+
+        int dx = bestShift(columnProfile, columns, (int) (width * MAX_SHIFT_RATIO));
+        int dy = bestShift(rowProfile, rows, (int) (height * MAX_SHIFT_RATIO));
+
+        return boxes.translate(dx, dy);
+    }
+
+    /**
+     * Conta i pixel neri per riga e per colonna della pagina raddrizzata
+     */
+    private static void projectBlack(Mat binary, RotationTransform transform, WorkBuffers buffers,
+                                     int[] rows, int[] columns) {
+        int cols = binary.cols();
+        int height = binary.rows();
+        byte[] pixels = buffers.pixelArray(cols * height);
+        binary.get(0, 0, pixels);
+
+        // spostandosi di una colonna le coordinate raddrizzate crescono di una quantità costante
+        double stepX = transform.forwardX(1, 0) - transform.forwardX(0, 0);
+        double stepY = transform.forwardY(1, 0) - transform.forwardY(0, 0);
+
+        for (int y = 0; y < height; y++) {
+            int offset = y * cols;
+            double fx = transform.forwardX(0, y);
+            double fy = transform.forwardY(0, y);
+
+            for (int x = 0; x < cols; x++, fx += stepX, fy += stepY) {
+                if (pixels[offset + x] != 0) {
+                    continue;
+                }
+                int px = (int) Math.round(fx);
+                int py = (int) Math.round(fy);
+                if (px >= 0 && px < columns.length) {
+                    columns[px]++;
+                }
+                if (py >= 0 && py < rows.length) {
+                    rows[py]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return numero di pixel neri per ogni riga
+     */
+    private static int[] rowProfile(Mat binary) {
+        return blackProfile(binary, 1, binary.rows(), binary.cols());
+    }
+
+    /**
+     * @return numero di pixel neri per ogni colonna
+     */
+    private static int[] columnProfile(Mat binary) {
+        return blackProfile(binary, 0, binary.cols(), binary.rows());
+    }
+
+    private static int[] blackProfile(Mat binary, int dim, int length, int span) {
+        Mat sums = new Mat();
+        Core.reduce(binary, sums, dim, Core.REDUCE_SUM, CvType.CV_32S);
+        int[] profile = new int[length];
+        sums.get(0, 0, profile);
+        sums.release();
+
+        // l'immagine binarizzata è bianca (255) sullo sfondo
+        for (int i = 0; i < length; i++) {
+            profile[i] = span - profile[i] / 255;
+        }
+        return profile;
+    }
+
+    /**
+     * Cerca lo spostamento che massimizza la correlazione tra i due profili
+     *
+     * @return spostamento da applicare alle coordinate del modello
+     */
+    private static int bestShift(int[] reference, int[] current, int maxShift) {
+        double refMean = mean(reference);
+        double curMean = mean(current);
+
+        int best = 0;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int shift = -maxShift; shift <= maxShift; shift++) {
+            int from = Math.max(0, -shift);
+            int to = Math.min(reference.length, current.length - shift);
+            if (to <= from) {
+                continue;
+            }
+            double score = 0;
+            for (int i = from; i < to; i++) {
+                score += (reference[i] - refMean) * (current[i + shift] - curMean);
+            }
+            score /= (to - from);
+            if (score > bestScore) {
+                bestScore = score;
+                best = shift;
+            }
+        }
+        return best;
+    }
+
+    private static double mean(int[] values) {
+        double sum = 0;
+        for (int v : values) {
+            sum += v;
+        }
+        return values.length == 0 ? 0 : sum / values.length;
+    }
+
+    private String contentHash() {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        String content = width + "x" + height + ";dpi" + workingDpi + ";" + registrationMode
+                + ";" + joinBoxes() + ";" + join(rowProfile) + ";" + join(columnProfile);
+        return ResultCache.toHex(digest.digest(content.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    Properties toProperties() {
+        Properties p = new Properties();
+        p.setProperty("name", name);
+        p.setProperty("width", String.valueOf(width));
+        p.setProperty("height", String.valueOf(height));
+        p.setProperty("dpi", String.valueOf(workingDpi));
+        p.setProperty("registration", registrationMode.name());
+        p.setProperty("boxes", joinBoxes());
+        p.setProperty("rows", join(rowProfile));
+        p.setProperty("columns", join(columnProfile));
+        p.setProperty("hash", hash);
+        return p;
+    }
+
+    /**
+     * @throws IOException se il modello è stato salvato da una versione precedente, senza
+     *                     configurazione e impronta, o se il contenuto non corrisponde all'impronta
+     */
+    static FormTemplate fromProperties(Properties p) throws IOException {
+        String name = p.getProperty("name");
+        String hash = p.getProperty("hash");
+        if (hash == null || p.getProperty("dpi") == null || p.getProperty("registration") == null) {
+            throw new IOException("Template " + name + " was saved without its configuration: register it again");
+        }
+
+        FormTemplate template;
+        try {
+            BoxList boxes = new BoxList();
+            String value = p.getProperty("boxes", "");
+            if (!value.isEmpty()) {
+                for (String box : value.split(";")) {
+                    int[] v = split(box);
+                    boxes.add(v[0], v[1], v[2], v[3], v[2] * v[3]);
+                }
+            }
+            template = new FormTemplate(name,
+                    Integer.parseInt(p.getProperty("width")),
+                    Integer.parseInt(p.getProperty("height")),
+                    Integer.parseInt(p.getProperty("dpi")),
+                    RegistrationMode.valueOf(p.getProperty("registration")),
+                    boxes,
+                    split(p.getProperty("rows", "")),
+                    split(p.getProperty("columns", "")));
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed template " + name + ": " + e.getMessage(), e);
+        }
+
+        if (!template.getHash().equals(hash)) {
+            throw new IOException("Template " + name + " does not match its hash: register it again");
+        }
+        return template;
+    }
+
+    private String joinBoxes() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < boxes.size(); i++) {
+            if (i > 0) {
+                sb.append(';');
+            }
+            sb.append(boxes.getX(i)).append(',').append(boxes.getY(i)).append(',')
+                    .append(boxes.getWidth(i)).append(',').append(boxes.getHeight(i));
+        }
+        return sb.toString();
+    }
+
+    private static String join(int[] values) {
+        StringBuilder sb = new StringBuilder(values.length * 4);
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(values[i]);
+        }
+        return sb.toString();
+    }
+
+    private static int[] split(String value) {
+        if (value.isEmpty()) {
+            return new int[0];
+        }
+        String[] parts = value.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return "FormTemplate{name=" + name + ", size=" + width + "x" + height + ", dpi=" + workingDpi
+                + ", registration=" + registrationMode + ", boxes=" + boxes.size() + '}';
+    }
+}
@@ -0,0 +1,86 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache dei modelli dei moduli: in memoria e, se è indicata una cartella, su disco
+ * (un file <code>&lt;nome&gt;.template</code> per modulo), così da registrare ogni modulo una volta sola.
+ */
+public class FormTemplateCache {
+
+    private static final Logger log = LoggerFactory.getLogger(FormTemplateCache.class);
+
+    private static final String EXTENSION = ".template";
+
+    private final ConcurrentMap<String, FormTemplate> templates = new ConcurrentHashMap<>();
+    private final File directory;
+
+    /**
+     * @param directory cartella in cui salvare i modelli, <code>null</code> per tenerli solo in memoria
+     */
+    public FormTemplateCache(File directory) {
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Cannot create template directory: " + directory);
+        }
+        this.directory = directory;
+    }
+
+    /**
+     * @return il modello, cercato prima in memoria e poi su disco; <code>null</code> se non è registrato
+     * @throws IOException se il file non è leggibile, è stato salvato da una versione precedente o
+     *                     non corrisponde alla sua impronta
+     */
+    public FormTemplate get(String name) throws IOException {
+        FormTemplate template = templates.get(name);
+        if (template != null || directory == null) {
+            return template;
+        }
+
+        File file = fileFor(name);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        Properties p = new Properties();
+        try (InputStream is = new FileInputStream(file)) {
+            p.load(is);
+        }
+        template = FormTemplate.fromProperties(p);
+        log.debug("Loaded {} from {}", template, file);
+
+        FormTemplate previous = templates.putIfAbsent(name, template);
+        return previous != null ? previous : template;
+    }
+
+    /**
+     * Salva il modello in memoria e, se configurata, su disco
+     */
+    public void put(FormTemplate template) throws IOException {
+        if (directory != null) {
+            File file = fileFor(template.getName());
+            try (OutputStream os = new FileOutputStream(file)) {
+                template.toProperties().store(os, "Form template " + template.getName());
+            }
+            log.debug("Saved {} to {}", template, file);
+        }
+        templates.put(template.getName(), template);
+    }
+
+    private File fileFor(String name) {
+        if (!name.matches("[\\w.-]+")) {
+            throw new IllegalArgumentException("Invalid template name: " + name);
+        }
+        return new File(directory, name + EXTENSION);
+    }
+}
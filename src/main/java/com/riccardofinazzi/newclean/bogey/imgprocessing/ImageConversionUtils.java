@@ -0,0 +1,194 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfInt;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Arrays;
+
+import static org.opencv.imgproc.Imgproc.*;
+
+/**
+ * Conversioni tra BufferedImage e Mat che lavorano direttamente sul buffer del raster,
+ * copiando righe intere (o l'intero buffer) verso la memoria nativa con una sola chiamata JNI.
+ */
+class ImageConversionUtils {
+
+    private ImageConversionUtils() {
+    }
+
+    /**
+     * @param buf   immagine decodificata da ImageIO
+     * @param flags {@link ImageProcessor#LOAD_COLOR} o {@link ImageProcessor#LOAD_GRAYSCALE}
+     * @return Mat CV_8UC3 (BGR) o CV_8UC1
+     */
+    static Mat toMat(BufferedImage buf, int flags) {
+        Mat image;
+
+        switch (buf.getType()) {
+            case BufferedImage.TYPE_3BYTE_BGR:
+                // stesso ordine dei canali di openCV: copia diretta
+                image = fromInterleavedBytes(buf.getRaster(), CvType.CV_8UC3);
+                break;
+            case BufferedImage.TYPE_BYTE_GRAY:
+                image = fromInterleavedBytes(buf.getRaster(), CvType.CV_8UC1);
+                break;
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_4BYTE_ABGR_PRE:
+                image = dropAlpha(fromInterleavedBytes(buf.getRaster(), CvType.CV_8UC4));
+                break;
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_ARGB_PRE:
+            case BufferedImage.TYPE_INT_BGR:
+                image = fromPackedInts(buf.getRaster());
+                break;
+            default:
+                image = null;
+                break;
+        }
+
+        // layout non gestito (palette, 1 bit, raster non standard...): lascio a Java2D la
+        // conversione in BGR, che viene fatta in blocco e non pixel per pixel
+        if (image == null) {
+            BufferedImage bgr = new BufferedImage(buf.getWidth(), buf.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+            Graphics2D g = bgr.createGraphics();
+            g.drawImage(buf, 0, 0, null);
+            g.dispose();
+            image = fromInterleavedBytes(bgr.getRaster(), CvType.CV_8UC3);
+        }
+
+        if (flags == ImageProcessor.LOAD_GRAYSCALE && image.channels() == 3) {
+            Mat gray = new Mat();
+            cvtColor(image, gray, COLOR_BGR2GRAY);
+            image.release();
+            image = gray;
+        } else if (flags != ImageProcessor.LOAD_GRAYSCALE && image.channels() == 1) {
+            Mat bgr = new Mat();
+            cvtColor(image, bgr, COLOR_GRAY2BGR);
+            image.release();
+            image = bgr;
+        }
+
+        return image;
+    }
+
+    /**
+     * Copia un raster byte interleaved così com'è. Se le righe sono contigue basta una sola
+     * copia, altrimenti (es. sotto-immagini) viene copiata una riga per volta.
+     *
+     * @return la Mat, oppure <code>null</code> se il raster non ha il layout atteso
+     */
+    private static Mat fromInterleavedBytes(Raster raster, int type) {
+        SampleModel sm = raster.getSampleModel();
+        int channels = CvType.channels(type);
+
+        if (!(raster.getDataBuffer() instanceof DataBufferByte) || !(sm instanceof ComponentSampleModel)
+                || raster.getDataBuffer().getNumBanks() != 1) {
+            return null;
+        }
+
+        ComponentSampleModel csm = (ComponentSampleModel) sm;
+        if (csm.getPixelStride() != channels || !hasSequentialOffsets(csm.getBandOffsets())) {
+            return null;
+        }
+
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        int stride = csm.getScanlineStride();
+        int rowLength = width * channels;
+        byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        int offset = raster.getDataBuffer().getOffset()
+                - raster.getSampleModelTranslateY() * stride
+                - raster.getSampleModelTranslateX() * channels;
+
+        Mat image = new Mat(height, width, type);
+        if (stride == rowLength && offset == 0 && data.length == rowLength * height) {
+            image.put(0, 0, data);
+        } else {
+            for (int y = 0; y < height; y++) {
+                image.put(y, 0, data, offset + y * stride, rowLength);
+            }
+        }
+        return image;
+    }
+
+    private static boolean hasSequentialOffsets(int[] bandOffsets) {
+        int[] sorted = bandOffsets.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length; i++) {
+            if (sorted[i] != i) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Riordina il raster ABGR (ordine dei byte di TYPE_4BYTE_ABGR) in BGR
+     */
+    private static Mat dropAlpha(Mat abgr) {
+        if (abgr == null) {
+            return null;
+        }
+        Mat bgr = new Mat(abgr.size(), CvType.CV_8UC3);
+        Core.mixChannels(Arrays.asList(abgr), Arrays.asList(bgr), new MatOfInt(1, 0, 2, 1, 3, 2));
+        abgr.release();
+        return bgr;
+    }
+
+    /**
+     * Scompatta i pixel interi (RGB, ARGB, BGR) in BGR una riga alla volta, senza passare
+     * per getRGB, e copia ogni riga con una sola chiamata.
+     *
+     * @return la Mat, oppure <code>null</code> se il raster non ha il layout atteso
+     */
+    private static Mat fromPackedInts(Raster raster) {
+        SampleModel sm = raster.getSampleModel();
+
+        if (!(raster.getDataBuffer() instanceof DataBufferInt) || !(sm instanceof SinglePixelPackedSampleModel)) {
+            return null;
+        }
+
+        SinglePixelPackedSampleModel sppsm = (SinglePixelPackedSampleModel) sm;
+        int[] masks = sppsm.getBitMasks();
+        int[] shifts = sppsm.getBitOffsets();
+        if (masks.length < 3) {
+            return null;
+        }
+
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        int stride = sppsm.getScanlineStride();
+        int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+        int offset = raster.getDataBuffer().getOffset()
+                - raster.getSampleModelTranslateY() * stride
+                - raster.getSampleModelTranslateX();
+
+        int rMask = masks[0], gMask = masks[1], bMask = masks[2];
+        int rShift = shifts[0], gShift = shifts[1], bShift = shifts[2];
+
+        Mat image = new Mat(height, width, CvType.CV_8UC3);
+        byte[] row = new byte[width * 3];
+        for (int y = 0; y < height; y++) {
+            int src = offset + y * stride;
+            for (int x = 0, dst = 0; x < width; x++) {
+                int px = data[src + x];
+                row[dst++] = (byte) ((px & bMask) >>> bShift);
+                row[dst++] = (byte) ((px & gMask) >>> gShift);
+                row[dst++] = (byte) ((px & rMask) >>> rShift);
+            }
+            image.put(y, 0, row);
+        }
+        return image;
+    }
+}
@@ -1,35 +1,87 @@
 package com.riccardofinazzi.newclean.bogey.imgprocessing;
 
 import com.riccardofinazzi.newclean.bogey.common.ApplicationProperties;
-import nu.pattern.OpenCV;
-import org.apache.commons.imaging.ImageReadException;
 import org.opencv.core.*;
 import static org.opencv.core.Core.*;
 import org.opencv.imgcodecs.Imgcodecs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.Paths;
 import java.util.*;
 
 import static org.opencv.imgproc.Imgproc.*;
 
+/**
+ * Elaborazione delle pagine: decodifica, raddrizzamento, ricerca e valutazione delle checkbox.
+ * <p>
+ * Un processor può essere condiviso tra più thread (vedi {@link BatchProcessor} e
+ * {@link StagedPipeline}). La configurazione va impostata prima di avviare l'elaborazione: i
+ * setter sono visibili da tutti i thread, ma una modifica durante un lotto vale dalla pagina
+ * successiva e una pagina già in corso può vederne solo una parte. Il profilo viene letto una
+ * volta sola per pagina.
+ */
 public class ImageProcessor {
 
     private static final Logger log = LoggerFactory.getLogger(ImageProcessor.class);
 
-    {
-        // Carica la libreria openCV (è scritta in C, java la richiama con metodi nativi
-        OpenCV.loadShared();
+    static {
+        // Carica la libreria openCV (è scritta in C, java la richiama con metodi nativi), una sola
+        // volta per JVM e non a ogni processor
+        NativeLibrary.load();
     }
 
     ApplicationProperties props = ApplicationProperties.getInstance();
 
+    // configurazione letta dai thread di elaborazione: volatile, perché un setter chiamato dal
+    // thread che ha creato il processor sia visto da tutti i worker
+
+    private volatile DeskewMode deskewMode = DeskewMode.EXACT;
+
+    private volatile DetectionMode detectionMode = DetectionMode.COMPONENTS;
+
+    private volatile RotationMode rotationMode = RotationMode.WARP;
+
+    private volatile RegistrationMode registrationMode = RegistrationMode.NONE;
+
+    private volatile ProcessingProfile profile = ProcessingProfile.DEFAULT;
+
+    private volatile int workingDpi = DEFAULT_WORKING_DPI;
+
+    private volatile PipelineMetrics metrics = PipelineMetrics.NOOP;
+
+    private volatile ResultCache resultCache;
+
+    private volatile AnnotationPolicy annotationPolicy = AnnotationPolicy.ALWAYS;
+
+    /**
+     * Buffer di lavoro riutilizzati da ciascun thread tra una pagina e l'altra
+     */
+    private final ThreadLocal<WorkBuffers> workBuffers = new ThreadLocal<WorkBuffers>() {
+        @Override
+        protected WorkBuffers initialValue() {
+            return new WorkBuffers();
+        }
+    };
+
+    /**
+     * Risoluzione per cui sono tarati i parametri di {@link ProcessingProfile#DEFAULT}
+     */
+    public static final int DEFAULT_WORKING_DPI = 200;
+
+    /**
+     * Le pagine vengono ridotte solo se superano la risoluzione di lavoro di almeno il 10%: sotto
+     * questa soglia l'interpolazione costerebbe più di quanto fa risparmiare
+     */
+    private static final double MIN_DOWNSCALE = 1.1;
+
     /**
      * 8bit, 3-channel image.
      */
@@ -40,17 +92,140 @@ public class ImageProcessor {
      */
     public static final int LOAD_GRAYSCALE = Imgcodecs.CV_LOAD_IMAGE_GRAYSCALE;
 
+    public DeskewMode getDeskewMode() {
+        return deskewMode;
+    }
+
+    /**
+     * @param deskewMode strategia di calcolo dell'angolo di inclinazione, di default {@link DeskewMode#EXACT}
+     */
+    public void setDeskewMode(DeskewMode deskewMode) {
+        this.deskewMode = deskewMode;
+    }
+
+    public DetectionMode getDetectionMode() {
+        return detectionMode;
+    }
+
+    /**
+     * @param detectionMode strategia di ricerca delle checkbox, di default {@link DetectionMode#COMPONENTS}
+     */
+    public void setDetectionMode(DetectionMode detectionMode) {
+        this.detectionMode = detectionMode;
+    }
+
+    public RotationMode getRotationMode() {
+        return rotationMode;
+    }
+
+    /**
+     * @param rotationMode come correggere l'inclinazione della pagina, di default {@link RotationMode#WARP}
+     */
+    public void setRotationMode(RotationMode rotationMode) {
+        this.rotationMode = rotationMode;
+    }
+
+    public RegistrationMode getRegistrationMode() {
+        return registrationMode;
+    }
+
+    /**
+     * @param registrationMode come allineare la pagina al modulo, di default {@link RegistrationMode#NONE}
+     */
+    public void setRegistrationMode(RegistrationMode registrationMode) {
+        this.registrationMode = registrationMode;
+    }
+
+    public ProcessingProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * @param profile parametri di riconoscimento delle pagine per cui non ne viene indicato uno,
+     *                di default {@link ProcessingProfile#DEFAULT}
+     */
+    public synchronized void setProfile(ProcessingProfile profile) {
+        this.profile = profile;
+    }
+
+    public float getFillThreshold() {
+        return profile.getFillThreshold();
+    }
+
+    /**
+     * Sostituisce il profilo di default con uno uguale salvo la soglia
+     *
+     * @param fillThreshold percentuale di pixel marcati oltre la quale una checkbox è considerata
+     *                      selezionata, di default 30
+     * @see #setProfile(ProcessingProfile)
+     */
+    public synchronized void setFillThreshold(float fillThreshold) {
+        this.profile = profile.toBuilder().fillThreshold(fillThreshold).build();
+    }
+
+    public int getWorkingDpi() {
+        return workingDpi;
+    }
+
+    /**
+     * Le pagine a risoluzione più alta vengono ridotte subito dopo la decodifica, così che le
+     * dimensioni in pixel del profilo valgano per qualunque scansione e ogni fase successiva lavori
+     * su meno pixel. Le coordinate delle checkbox nei risultati restano quelle della scansione originale,
+     * anche quando la pagina viene ritagliata ai segni di registrazione.
+     *
+     * @param workingDpi risoluzione a cui elaborare le pagine, di default {@link #DEFAULT_WORKING_DPI};
+     *                   0 per elaborarle alla risoluzione di scansione
+     */
+    public void setWorkingDpi(int workingDpi) {
+        this.workingDpi = workingDpi;
+    }
+
+    public PipelineMetrics getMetrics() {
+        return metrics;
+    }
+
     /**
-     * Loads an image from a file.
-     * This is a wrapper around imread() which fails if the file
-     * is inside a jar/zip. This function takes care of that case, loads the
-     * image in Java and manually creates the Mat...
+     * @param metrics dove registrare tempi e contatori delle pagine elaborate, di default
+     *                {@link PipelineMetrics#NOOP}
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        this.metrics = metrics == null ? PipelineMetrics.NOOP : metrics;
+    }
+
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * @param resultCache cache dei risultati delle pagine lette dal filesystem, <code>null</code>
+     *                    (default) per elaborare sempre ogni pagina
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public AnnotationPolicy getAnnotationPolicy() {
+        return annotationPolicy;
+    }
+
+    /**
+     * @param annotationPolicy per quali pagine scrivere l'immagine annotata, quando è indicato un
+     *                         file di output; di default {@link AnnotationPolicy#ALWAYS}
+     */
+    public void setAnnotationPolicy(AnnotationPolicy annotationPolicy) {
+        this.annotationPolicy = annotationPolicy;
+    }
+
+    /**
+     * Loads an image from the classpath.
+     * Resources on the filesystem are memory-mapped, resources packed in a
+     * jar/zip are read into memory; both are decoded with imdecode().
      *
      * @param name  name of the resource
      * @param flags specifying the color type of a loaded image;
      *              supported: LOAD_COLOR (8-bit, 3-channels),
      *              LOAD_GRAYSCALE (8-bit, 1-channel),
-     * @return Mat of type CV_8UC3 or CV_8UC1 (empty Mat is returned in case of an error)
+     * @return Mat of type CV_8UC3 or CV_8UC1
      */
     public Mat readImage(String name, int flags) throws IOException {
         URL url = getClass().getClassLoader().getResource(name);
@@ -60,243 +235,894 @@ public class ImageProcessor {
             throw new FileNotFoundException(name);
         }
 
-        String path = url.getPath();
+        if ("file".equals(url.getProtocol())) {
+            try {
+                return this.readImage(ImageSource.of(Paths.get(url.toURI())), flags);
+            } catch (URISyntaxException e) {
+                throw new IOException("Invalid resource URL: " + url, e);
+            }
+        }
 
-        // not sure why we (sometimes; while running unpacked from the IDE) end
-        // up with the authority-part of the path (a single slash) as prefix,
-        // ...anyways: imread can't handle it, so that's why.
-        if (path.startsWith("/")) {
-            path = path.substring(1);
+        // risorsa dentro un jar: la leggo in memoria
+        try (InputStream is = url.openStream()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = is.read(buffer)) > 0) {
+                bytes.write(buffer, 0, n);
+            }
+            return this.readImage(ImageSource.of(bytes.toByteArray()), flags);
         }
+    }
 
-        Mat image = Imgcodecs.imread(path, flags);
+    /**
+     * Loads an image from the filesystem.
+     * Same as {@link #readImage(String, int)}, but the file is looked up by path
+     * instead of on the classpath.
+     *
+     * @param file  image file
+     * @param flags specifying the color type of a loaded image;
+     *              supported: LOAD_COLOR (8-bit, 3-channels),
+     *              LOAD_GRAYSCALE (8-bit, 1-channel),
+     * @return Mat of type CV_8UC3 or CV_8UC1
+     */
+    public Mat readImage(File file, int flags) throws IOException {
 
-        // ...and if imread() has failed, we simply assume that the file
-        // is packed in a jar (i.e. Java should be able to read the image)
-        if (image.empty()) {
-            BufferedImage buf;
+        // make sure the file exists
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getPath());
+        }
 
-            buf = ImageIO.read(url);
+        return this.readImage(ImageSource.of(file.toPath()), flags);
+    }
 
-            int height = buf.getHeight();
-            int width = buf.getWidth();
-            int rgb, type, channels;
+    /**
+     * Decodifica un'immagine già in memoria (file mappato, ByteBuffer o array)
+     *
+     * @see ImageSource#decode(int)
+     */
+    public Mat readImage(ImageSource source, int flags) throws IOException {
+        return source.decode(flags);
+    }
 
-            switch (flags) {
-                case LOAD_GRAYSCALE:
-                    type = CvType.CV_8UC1;
-                    channels = 1;
-                    break;
-                case LOAD_COLOR:
-                default:
-                    type = CvType.CV_8UC3;
-                    channels = 3;
-                    break;
-            }
+    /**
+     * Decodifica una pagina dal filesystem
+     *
+     * @see #readImage(File, int)
+     */
+    public Page readPage(File file, int flags) throws IOException {
 
-            byte[] px = new byte[channels];
-            image = new Mat(height, width, type);
-
-            for (int y = 0; y < height; y++) {
-                for (int x = 0; x < width; x++) {
-                    rgb = buf.getRGB(x, y);
-                    px[0] = (byte) (rgb & 0xFF);
-                    if (channels == 3) {
-                        px[1] = (byte) ((rgb >> 8) & 0xFF);
-                        px[2] = (byte) ((rgb >> 16) & 0xFF);
-                    }
-                    image.put(y, x, px);
-                }
-            }
+        // make sure the file exists
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getPath());
         }
 
-        return image;
+        return this.readPage(ImageSource.of(file.toPath()), flags);
+    }
+
+    /**
+     * Decodifica una pagina già in memoria e la riduce alla risoluzione di lavoro
+     *
+     * @see ImageSource
+     * @see #setWorkingDpi(int)
+     */
+    public Page readPage(ImageSource source, int flags) throws IOException {
+        log.debug("Reading file {}", source.getFile());
+        long start = System.nanoTime();
+        Mat image = this.readImage(source, flags);
+        metrics.record(PipelineMetrics.Stage.DECODE, System.nanoTime() - start);
+
+        return this.toPage(source.getFile(), image, source.declaredDpi());
+    }
+
+    /**
+     * Crea la pagina da un'immagine appena decodificata, riducendola alla risoluzione di lavoro
+     *
+     * @param declaredDpi risoluzione dichiarata dal file, NaN se non nota
+     * @see MultiPageReader
+     */
+    Page toPage(File source, Mat image, double declaredDpi) {
+        if (workingDpi <= 0) {
+            return new Page(source, image);
+        }
+        double dpi = Resolution.resolve(declaredDpi, image.cols(), image.rows());
+        return this.adjustSize(source, image, dpi);
     }
 
     /**
      * L'immagine che passerà per questo metodo verrà:
-     * 1) Trasformata in scala di grigi
+     * 1) Trasformata in scala di grigi, se non lo è già
      * 2) Sfocata
      * 3) Ricontrastata
      * <p>
-     * Ideale per effettuare OMR/ICR
+     * Ideale per effettuare OMR/ICR, con i parametri del profilo di default
+     *
+     * @param image immagine CV_8UC3 (BGR), CV_8UC4 (BGRA) o CV_8UC1
+     * @return una nuova Mat CV_8UC1 binarizzata
      */
     public Mat preprocess(Mat image) {
+        Mat gray = new Mat();
+        Mat blur = new Mat();
+        Mat binary = new Mat();
+        binarize(image, gray, blur, binary, this.profile);
+        gray.release();
+        blur.release();
+        return binary;
+    }
 
-        // crea una Matrix con quattro canali di colore in un range da 0 a 255. (unsigned byte, 2^8)
-        Mat hsvLayer = new Mat(image.size(), CvType.CV_8UC4);
-        // conversione immagine input da colore a bianco e nero
-        // output: hsvLayer
-        cvtColor(image, hsvLayer, COLOR_BGR2GRAY);
+    /**
+     * Come {@link #preprocess(Mat)}, ma scrive nei buffer del thread invece di allocare nuove Mat
+     *
+     * @return il buffer binarizzato, valido fino alla prossima pagina elaborata dallo stesso thread
+     */
+    Mat preprocess(Mat image, WorkBuffers buffers, ProcessingProfile profile) {
+        return binarize(image, buffers.gray, buffers.blur, buffers.binary, profile);
+    }
 
-        // crea una Matrix con quattro canali di colore in un range da 0 a 255. (unsigned byte, 2^8)
-        Mat blurLayer = new Mat(image.size(), CvType.CV_8UC4);
-        // sfocatura gaussiana immagine
-        // output: blurLayer
-        GaussianBlur(hsvLayer, blurLayer, new Size(5, 5), 0);
+    /**
+     * Scala di grigi, sfocatura gaussiana e soglia adattiva. Ogni passo scrive in una Mat CV_8UC1,
+     * riallocata da openCV solo se cambia la dimensione della pagina; una pagina già in scala di
+     * grigi viene sfocata direttamente, senza copia.
+     *
+     * @return <code>binary</code>
+     */
+    private static Mat binarize(Mat image, Mat gray, Mat blur, Mat binary, ProcessingProfile profile) {
+        Mat source = image;
+        if (image.channels() == 3) {
+            cvtColor(image, gray, COLOR_BGR2GRAY);
+            source = gray;
+        } else if (image.channels() == 4) {
+            cvtColor(image, gray, COLOR_BGRA2GRAY);
+            source = gray;
+        }
+        GaussianBlur(source, blur, new Size(profile.getBlurSize(), profile.getBlurSize()), 0);
+        adaptiveThreshold(blur, binary, 255, ADAPTIVE_THRESH_MEAN_C, THRESH_BINARY,
+                profile.getThresholdBlockSize(), profile.getThresholdC());
+        return binary;
+    }
 
-        // crea una Matrix con quattro canali di colore in un range da 0 a 1.0. (signed 4 byte float)
-        Mat adaptiveThrsLayer = new Mat(image.size(), CvType.CV_32F);
-        // ricontrastatura
-        // output: adaptiveThrsLayer
-        adaptiveThreshold(blurLayer, adaptiveThrsLayer, 255, ADAPTIVE_THRESH_MEAN_C, THRESH_BINARY, 7, 5);
+    /**
+     * Le pagine vengono decodificate direttamente in scala di grigi, a 8 bit e un solo canale:
+     * raddrizzamento e binarizzazione lavorano su un terzo dei dati. Il colore serve solo per
+     * l'immagine annotata.
+     *
+     * @param annotate <code>true</code> se è stata richiesta l'immagine annotata
+     * @return {@link #LOAD_COLOR} se la pagina potrebbe essere annotata, altrimenti {@link #LOAD_GRAYSCALE}
+     */
+    int decodeFlags(boolean annotate) {
+        return annotate && annotationPolicy != AnnotationPolicy.NEVER ? LOAD_COLOR : LOAD_GRAYSCALE;
+    }
 
-        return adaptiveThrsLayer;
+    /**
+     * Libera i buffer di lavoro del thread corrente. Da chiamare quando un thread non elaborerà
+     * più pagine con questo processor.
+     */
+    public void releaseWorkBuffers() {
+        workBuffers.get().release();
+        workBuffers.remove();
     }
 
     /**
+     * Elabora il file indicato dalla property <code>in.file</code> e scrive il risultato
+     * annotato in <code>out.file</code>.
+     * <p>
      * TODO Work in progress
      */
     public void evaluateCheckboxes() {
 
+        // Nome del file
+        String filename = props.getRequiredProperty("in.file");
+
+        File file = new File(filename);
+
+        Page page = null;
         try {
-            // Processamento
+            log.debug("Reading file {}", filename);
+            long start = System.nanoTime();
+            page = new Page(file, this.readImage(file.getName(), LOAD_COLOR));
+            metrics.record(PipelineMetrics.Stage.DECODE, System.nanoTime() - start);
+
+        } catch (FileNotFoundException e) {
+            log.error("Error while loading file {}" + e.getMessage(), e);
+            metrics.increment(PipelineMetrics.Counter.FAILURES, 1);
+            System.exit(1);
+        } catch (IOException e) {
+            log.error("Error while processing image {}", e.getMessage(), e);
+            metrics.increment(PipelineMetrics.Counter.FAILURES, 1);
+            return;
+        }
 
-            // Nome del file
-            String filename = props.getRequiredProperty("in.file");
+        this.evaluateCheckboxes(page, new File(props.getRequiredProperty("out.file")));
+    }
 
-            File file = new File(filename);
+    /**
+     * Elabora una singola pagina letta dal filesystem. A differenza di {@link #evaluateCheckboxes()}
+     * non termina la JVM in caso di errore ma rilancia l'eccezione al chiamante, in modo da poter
+     * essere usato da {@link BatchProcessor}.
+     *
+     * @param input  file della pagina scansionata
+     * @param output file su cui scrivere l'immagine annotata, <code>null</code> per non scriverla
+     * @return esito della pagina
+     */
+    public PageResult evaluateCheckboxes(File input, File output) throws IOException {
+        return this.evaluateCheckboxes(input, null, output);
+    }
 
-            Mat rawInputBGR = null;
-            try {
-                log.debug("Reading file {}", filename);
-                rawInputBGR = this.readImage(file.getName(), LOAD_COLOR);
+    /**
+     * Come {@link #evaluateCheckboxes(File, File)}, per una pagina di un modulo registrato.
+     * <p>
+     * Se è configurata una {@link ResultCache} e il file è già stato elaborato con la stessa
+     * configurazione, il risultato viene restituito senza decodificare l'immagine (solo se non è
+     * richiesta l'immagine annotata). Se cambia solo la parte della configurazione successiva al
+     * raddrizzamento, viene riutilizzato l'angolo di inclinazione già calcolato.
+     *
+     * @param template modello del modulo, <code>null</code> per cercare le checkbox sulla pagina
+     */
+    public PageResult evaluateCheckboxes(File input, FormTemplate template, File output) throws IOException {
+
+        // make sure the file exists
+        if (!input.isFile()) {
+            throw new FileNotFoundException(input.getPath());
+        }
+
+        return this.evaluateCheckboxes(ImageSource.of(input.toPath()), template, output);
+    }
+
+    /**
+     * Come {@link #evaluateCheckboxes(File, FormTemplate, File)}, per una pagina già in memoria.
+     * Hash e decodifica lavorano sugli stessi byte, senza rileggere il file.
+     */
+    public PageResult evaluateCheckboxes(ImageSource source, FormTemplate template, File output) throws IOException {
+        return this.evaluateCheckboxes(source, template, output, profile);
+    }
+
+    /**
+     * Come {@link #evaluateCheckboxes(ImageSource, FormTemplate, File)}, con i parametri di
+     * riconoscimento di un tipo di modulo
+     *
+     * @param profile parametri di riconoscimento della pagina
+     */
+    public PageResult evaluateCheckboxes(ImageSource source, FormTemplate template, File output,
+                                         ProcessingProfile profile) throws IOException {
+        this.checkTemplate(template);
+        File input = source.getFile();
+        String hash = null;
+        SkewEstimate knownSkew = null;
+
+        if (resultCache != null) {
+            hash = ResultCache.contentHash(source);
 
-            } catch (FileNotFoundException e) {
-                log.error("Error while loading file {}" + e.getMessage(), e);
-                System.exit(1);
+            CachedPage cached = resultCache.get(hash, this.resultFingerprint(template, profile));
+            if (cached != null && output == null) {
+                log.debug("Cached result for {}", input);
+                metrics.increment(PipelineMetrics.Counter.CACHE_HITS, 1);
+                return new PageResult(input, cached.getSkew(), cached.toResults(profile.getFillThreshold()));
             }
 
-            double skewAngle;
-            try {
-                skewAngle = RadonDeskewer.calculateAngle(file);
-                rawInputBGR = this.adjustRotation(rawInputBGR, skewAngle);
-                log.debug("Image succesfully deskewed for angle {}", skewAngle);
-            } catch (ImageReadException | IOException e) {
-                log.error("Error while calculating angle {}" + e.getMessage(), e);
-                System.exit(1);
+            if (cached == null) {
+                cached = resultCache.get(hash, this.deskewFingerprint());
             }
+            if (cached != null) {
+                log.debug("Cached skew angle for {}", input);
+                metrics.increment(PipelineMetrics.Counter.DESKEW_CACHE_HITS, 1);
+                knownSkew = cached.getSkew();
+            }
+        }
+
+        Page page = this.readPage(source, this.decodeFlags(output != null));
+        try {
+            PageResult result = this.evaluateCheckboxes(page, template, output, knownSkew, profile);
+
+            if (hash != null) {
+                resultCache.put(hash, this.deskewFingerprint(), CachedPage.angleOnly(result.getSkew()));
+                resultCache.put(hash, this.resultFingerprint(template, profile),
+                        CachedPage.of(result.getSkew(), result.getCheckboxes()));
+            }
+            return result;
+        } finally {
+            page.release();
+        }
+    }
 
-            Mat preprocessed = this.preprocess(rawInputBGR);
-
-            /*
-             * Ignorare questo pezzo
-             *
-             * Scalar lower = new Scalar(0, 0, 0);
-             * Scalar upper = new Scalar(15, 15, 15);
-             *
-             * Mat out = new Mat();
-             * inRange(rawInputBGR, lower, upper, out);
-             */
-
-            Mat hierarchy = new Mat(); // la hierarchy stabilisce il grado di parentela tra i contorni
-            List<MatOfPoint> contours = new ArrayList<>();
-
-            findContours(preprocessed, contours, hierarchy, RETR_LIST, CHAIN_APPROX_SIMPLE);
-            log.debug("I've found {} contours", contours.size());
-
-            Collections.sort(contours, ImageSortUtils.contourYComparator());
-
-            /*
-             * La hierarchy al momento non la ho utilizzata, comunque interessante, permette ad esempio
-             * di capire se un contour segue una geometria aperta o chiusa
-             *
-             * // per le geometrie senza riempimento solid
-             * double parent = hierarchy.get(0, i)[2];
-             *
-             * if (parent < 0) {
-             *   // chiusa
-             * } else {
-             *   // aperta
-             * }
-             *
-             *
-             * // per geometrie con riempimento solid
-             * // (https://stackoverflow.com/a/42585938)
-             * double parent = hierarchy.get(0, i)[2];
-             * double children = hierarchy.get(0, i)[3];
-             *
-             * if (parent < 0 && children < 0) {
-             *   // chiusa
-             * } else {
-             *   // aperta
-             * }
-             */
-
-            ArrayList<Mat> checkboxes = new ArrayList<>();
-
-            // per ogni contorno
-            int j = 1;
-            for (MatOfPoint e : contours) {
-
-                // creo un rettangolo esterno al contorno individuato.
-                Rect bRect = boundingRect(e);
-
-                // Se l'area è compresa in questi parametri si tratta di una checkbox
-                if ((bRect.height > 27 && bRect.height < 32) && (bRect.width > 27 && bRect.width < 32)) {
-
-                    // Aggiungo un ritaglio virtuale del contenuto della checkbox...
-                    Point a = new Point(bRect.x + 7, bRect.y + 7);
-                    Point b = new Point(bRect.x + bRect.width - 8, bRect.y + bRect.height - 8);
-                    Rect cropRect = new Rect(a, b);
-                    Mat subImage = new Mat(preprocessed, cropRect);
-                    // ...in una lista
-                    checkboxes.add(subImage);
-
-                    // disegno un rettangolo sul file di output per marcare quanto ho trovato
-                    Scalar red = new Scalar(0, 0, 255);
-                    rectangle(rawInputBGR, a, b, red);
-
-                    putText(rawInputBGR, String.valueOf(j++), cropRect.tl(), Core.FONT_ITALIC, 0.4, new Scalar(0,0,255));
+    /**
+     * Impronta della configurazione da cui dipende l'angolo di inclinazione
+     */
+    private String deskewFingerprint() {
+        return "skew." + deskewMode + "." + registrationMode + ".dpi" + workingDpi + ".v" + CachedPage.FORMAT_VERSION;
+    }
+
+    /**
+     * Impronta della configurazione da cui dipendono le checkbox e la loro percentuale di
+     * riempimento. La soglia non ne fa parte: lo stato delle checkbox viene ricalcolato.
+     */
+    private String resultFingerprint(FormTemplate template, ProcessingProfile profile) {
+        return deskewMode + "." + rotationMode + "." + registrationMode + "." + (template == null ? detectionMode : "template." + template.getHash())
+                + "." + profile.fingerprint() + ".dpi" + workingDpi + ".v" + CachedPage.FORMAT_VERSION;
+    }
+
+    /**
+     * Elabora una pagina già decodificata. L'immagine viene decodificata una sola volta e
+     * condivisa tra il calcolo dell'angolo di inclinazione e la ricerca delle checkbox.
+     *
+     * @param page   pagina decodificata con {@link #readPage(File, int)}
+     * @param output file su cui scrivere l'immagine annotata, <code>null</code> per non scriverla
+     * @return esito della pagina
+     */
+    public PageResult evaluateCheckboxes(Page page, File output) {
+        return evaluateCheckboxes(page, null, output);
+    }
+
+    /**
+     * Elabora una pagina di un modulo già registrato con {@link #registerTemplate(String, Page)}:
+     * invece di cercare i contorni su tutta la pagina, allinea la pagina al modello e valuta solo
+     * le checkbox note.
+     *
+     * @param page     pagina decodificata con {@link #readPage(File, int)}
+     * @param template modello del modulo, <code>null</code> per cercare le checkbox sulla pagina
+     * @param output   file su cui scrivere l'immagine annotata, <code>null</code> per non scriverla
+     * @return esito della pagina
+     */
+    public PageResult evaluateCheckboxes(Page page, FormTemplate template, File output) {
+        return this.evaluateCheckboxes(page, template, output, null, profile);
+    }
+
+    /**
+     * Come {@link #evaluateCheckboxes(Page, FormTemplate, File)}, con i parametri di riconoscimento
+     * di un tipo di modulo
+     *
+     * @param profile parametri di riconoscimento della pagina
+     */
+    public PageResult evaluateCheckboxes(Page page, FormTemplate template, File output, ProcessingProfile profile) {
+        return this.evaluateCheckboxes(page, template, output, null, profile);
+    }
+
+    /**
+     * @param knownSkew angolo di inclinazione già calcolato per la stessa pagina, <code>null</code>
+     *                  per calcolarlo
+     */
+    PageResult evaluateCheckboxes(Page page, FormTemplate template, File output, SkewEstimate knownSkew,
+                                  ProcessingProfile profile) {
+        this.checkTemplate(template);
+
+        // Processamento
+
+        WorkBuffers buffers = workBuffers.get();
+
+        Page registered = this.register(page, profile);
+        try {
+            if (knownSkew == null) {
+                knownSkew = registered.getRegistrationSkew();
+            }
+            SkewEstimate skew = this.deskew(registered, knownSkew, buffers.rotated);
+            page.setSkewAngle(skew.getAngle());
+            RotationTransform transform = this.transform(registered);
+            Mat image = transform == null ? buffers.rotated : registered.getImage();
+
+            List<CheckboxResult> results = this.analyze(image, template, buffers, transform, profile);
+            this.annotate(image, skew, results, output, transform, profile);
+
+            metrics.increment(PipelineMetrics.Counter.PAGES, 1);
+            return new PageResult(page.getSource(), skew,
+                    toSourceScale(results, page.getScale(), registered.getOriginX(), registered.getOriginY()));
+        } finally {
+            if (registered != page) {
+                registered.release();
+            }
+        }
+    }
+
+    /**
+     * Le coordinate di un modello valgono solo alla risoluzione di lavoro e con la
+     * {@link RegistrationMode} con cui è stato registrato
+     *
+     * @param template modello del modulo, <code>null</code> se le checkbox vengono cercate sulla pagina
+     * @throws IllegalArgumentException se il modello è stato registrato con una configurazione diversa
+     */
+    void checkTemplate(FormTemplate template) {
+        if (template != null && (template.getWorkingDpi() != workingDpi || template.getRegistrationMode() != registrationMode)) {
+            throw new IllegalArgumentException("Template " + template.getName() + " was registered at "
+                    + template.getWorkingDpi() + " dpi with registration " + template.getRegistrationMode()
+                    + ", pages are processed at " + workingDpi + " dpi with registration " + registrationMode
+                    + ": register it again");
+        }
+    }
+
+    /**
+     * Con {@link RegistrationMode#CORNER_MARKS} cerca i segni di registrazione negli angoli della
+     * pagina e la ritaglia all'area tra i segni, prima delle fasi più costose
+     *
+     * @return una nuova pagina con l'inclinazione ricavata dai segni, da liberare indipendentemente
+     * da <code>page</code>; oppure <code>page</code> stessa se la ricerca è disabilitata o i segni non
+     * sono stati trovati
+     */
+    Page register(Page page, ProcessingProfile profile) {
+        if (registrationMode != RegistrationMode.CORNER_MARKS) {
+            return page;
+        }
+        long start = System.nanoTime();
+        FiducialMarks marks = FiducialMarks.locate(page.getImage(), profile.getMinMarkSize(), profile.getMaxMarkSize());
+        Page registered = page;
+        if (marks == null) {
+            log.debug("Registration marks not found, processing the whole page");
+            metrics.increment(PipelineMetrics.Counter.REGISTRATION_FALLBACKS, 1);
+        } else {
+            log.debug("Found {} registration marks, active area {}, skew {}",
+                    marks.getCount(), marks.getActiveArea(), marks.getSkew().getAngle());
+            registered = marks.crop(page);
+        }
+        this.lap(PipelineMetrics.Stage.REGISTRATION, start);
+        return registered;
+    }
+
+    /**
+     * Prima fase dell'elaborazione: calcola l'angolo di inclinazione e, con {@link RotationMode#WARP},
+     * raddrizza la pagina
+     *
+     * @param knownSkew angolo già calcolato per la stessa pagina, <code>null</code> per calcolarlo
+     * @param rotated   Mat in cui scrivere la pagina raddrizzata
+     * @return angolo applicato
+     */
+    SkewEstimate deskew(Page page, SkewEstimate knownSkew, Mat rotated) {
+        long time = System.nanoTime();
+
+        SkewEstimate skew = knownSkew != null
+                ? knownSkew
+                : RadonDeskewer.estimateAngle(page.getImage(), deskewMode, workBuffers.get());
+        double skewAngle = skew.getAngle();
+        page.setSkewAngle(skewAngle);
+        time = this.lap(PipelineMetrics.Stage.DESKEW_ANGLE, time);
+        if (knownSkew == null && (skew.isFallback() || !skew.isReliable())) {
+            metrics.increment(PipelineMetrics.Counter.DESKEW_FALLBACKS, 1);
+        }
+
+        if (rotationMode == RotationMode.WARP) {
+            this.adjustRotation(page.getImage(), skewAngle, rotated);
+            log.debug("Image succesfully deskewed for angle {} (confidence {}, refined {})",
+                    skewAngle, skew.getConfidence(), skew.isRefined());
+            this.lap(PipelineMetrics.Stage.ROTATION, time);
+        }
+
+        return skew;
+    }
+
+    /**
+     * @return la rotazione da applicare alle coordinate della pagina dopo {@link #deskew}, oppure
+     * <code>null</code> se la pagina è stata ruotata ({@link RotationMode#WARP})
+     */
+    RotationTransform transform(Page page) {
+        if (rotationMode == RotationMode.WARP) {
+            return null;
+        }
+        Mat image = page.getImage();
+        return RotationTransform.of(page.getSkewAngle(), image.cols(), image.rows());
+    }
+
+    /**
+     * Seconda fase: binarizza la pagina raddrizzata, cerca le checkbox (o le allinea al modello)
+     * e ne calcola il riempimento
+     *
+     * @param rawInputBGR pagina raddrizzata, oppure originale se è indicata una rotazione
+     * @param template    modello del modulo, <code>null</code> per cercare le checkbox sulla pagina
+     * @param buffers     buffer del thread corrente
+     * @param transform   rotazione che raddrizza la pagina, <code>null</code> se è già raddrizzata
+     * @param profile     parametri di riconoscimento della pagina
+     * @return checkbox nelle coordinate della pagina raddrizzata
+     */
+    List<CheckboxResult> analyze(Mat rawInputBGR, FormTemplate template, WorkBuffers buffers,
+                                 RotationTransform transform, ProcessingProfile profile) {
+
+        // tutte le Mat allocate per la pagina vengono liberate all'uscita dal blocco
+        try (MatScope scope = new MatScope()) {
+            long time = System.nanoTime();
+
+            Mat preprocessed = this.preprocess(rawInputBGR, buffers, profile);
+            time = this.lap(PipelineMetrics.Stage.PREPROCESS, time);
+
+            BoxList boxes;
+            if (transform == null) {
+                boxes = template == null
+                        ? this.detectCheckboxes(preprocessed, buffers, scope, profile)
+                        : template.locate(preprocessed);
+            } else if (template == null) {
+                boxes = this.detectCheckboxes(preprocessed, buffers, scope, transform, profile);
+            } else {
+                boxes = template.locate(preprocessed, transform, buffers);
+            }
+            time = this.lap(PipelineMetrics.Stage.DETECTION, time);
+            metrics.increment(PipelineMetrics.Counter.CHECKBOXES, boxes.size());
+
+            List<CheckboxResult> results = this.scoreCheckboxes(preprocessed, boxes, buffers, transform, profile);
+            this.lap(PipelineMetrics.Stage.SCORING, time);
+
+            return results;
+        }
+    }
+
+    /**
+     * Ultima fase: disegna le checkbox trovate sulla pagina raddrizzata e la scrive su file,
+     * se l'{@link AnnotationPolicy} lo prevede
+     *
+     * Con una rotazione le checkbox vengono disegnate sulla pagina originale, nella posizione in cui
+     * è stato calcolato il riempimento.
+     * L'immagine viene scritta alla risoluzione di lavoro.
+     *
+     * @param output    file su cui scrivere l'immagine annotata, <code>null</code> per non scriverla
+     * @param transform rotazione che raddrizza la pagina, <code>null</code> se è già raddrizzata
+     * @param profile   parametri con cui sono state valutate le checkbox
+     * @return <code>true</code> se l'immagine è stata scritta
+     */
+    boolean annotate(Mat rawInputBGR, SkewEstimate skew, List<CheckboxResult> results, File output,
+                     RotationTransform transform, ProcessingProfile profile) {
+        if (output == null || !annotationPolicy.shouldAnnotate(skew, results, profile.getFillThreshold())) {
+            return false;
+        }
+        long time = System.nanoTime();
+
+        // una pagina decodificata in scala di grigi viene riportata a colori solo per l'annotazione
+        Mat canvas = rawInputBGR;
+        if (rawInputBGR.channels() == 1) {
+            canvas = new Mat();
+            cvtColor(rawInputBGR, canvas, COLOR_GRAY2BGR);
+        }
+
+        boolean written;
+        try {
+            for (CheckboxResult result : results) {
+                // disegno un rettangolo sul file di output per marcare quanto ho trovato
+                Rect cropRect = result.getBox();
+                if (transform != null) {
+                    cropRect = transform.inverse(cropRect.x, cropRect.y, cropRect.width, cropRect.height);
                 }
+                Scalar red = new Scalar(0, 0, 255);
+                rectangle(canvas, cropRect.tl(), cropRect.br(), red);
+
+                putText(canvas, String.valueOf(result.getIndex() + 1), cropRect.tl(), Core.FONT_ITALIC, 0.4, new Scalar(0,0,255));
             }
 
-            int i = 0;
-            for (Mat e : checkboxes) {
+            written = Imgcodecs.imwrite(output.getPath(), canvas);
+            log.debug("Writing to output success: {}, {}", written, output);
+        } finally {
+            if (canvas != rawInputBGR) {
+                canvas.release();
+            }
+        }
+        this.lap(PipelineMetrics.Stage.ENCODE, time);
+        return written;
+    }
 
-                int totalPixels = e.rows() * e.cols();
-                /*
-                 * // recupero i pixels neri
-                 *
-                 * int whitePixels = countNonZero(e);
-                 * int blackPixels = totalPixels - whitePixels;
-                 */
+    /**
+     * @return buffer di lavoro del thread corrente
+     */
+    WorkBuffers workBuffers() {
+        return workBuffers.get();
+    }
 
-                // oppure inverto i colori dell'immagine
-                Mat inverted = new Mat();
-                bitwise_not(e, inverted);
+    /**
+     * Registra la durata di una fase
+     *
+     * @param start inizio della fase, da {@link System#nanoTime()}
+     * @return fine della fase, cioè inizio della successiva
+     */
+    private long lap(PipelineMetrics.Stage stage, long start) {
+        long now = System.nanoTime();
+        metrics.record(stage, now - start);
+        return now;
+    }
 
-                // calcolo quanti pixel sono marcati in percentuale
-                int blackPixels = countNonZero(inverted);
-                float percentage = ((float) blackPixels / (float) totalPixels) * 100.0F;
+    /**
+     * Registra il modello di un modulo a partire da una scansione di riferimento: le checkbox
+     * vengono cercate una volta sola e le loro coordinate riutilizzate per le pagine successive.
+     *
+     * La pagina viene raddrizzata secondo la {@link RotationMode} corrente; il modello riporta la
+     * risoluzione di lavoro e la {@link RegistrationMode}, che devono restare le stesse per le pagine
+     * da elaborare (vedi {@link #checkTemplate(FormTemplate)}).
+     *
+     * @param name      nome del modulo
+     * @param reference scansione di riferimento, possibilmente pulita
+     * @return il modello, da salvare con {@link FormTemplateCache#put(FormTemplate)}
+     */
+    public FormTemplate registerTemplate(String name, Page reference) {
+        WorkBuffers buffers = workBuffers.get();
+        ProcessingProfile profile = this.profile;
 
-                // occhio e croce, se oltre il 30% del centro della checkbox è marcata per me è un sì
-                if (percentage >= 30.0F)
-                    log.debug("Checkbox n° {} has {}% pixels marked", i, percentage);
+        Page registered = this.register(reference, profile);
+        try (MatScope scope = new MatScope()) {
+            SkewEstimate skew = this.deskew(registered, registered.getRegistrationSkew(), buffers.rotated);
+            reference.setSkewAngle(skew.getAngle());
+            RotationTransform transform = this.transform(registered);
+            Mat image = transform == null ? buffers.rotated : registered.getImage();
+            Mat preprocessed = this.preprocess(image, buffers, profile);
 
-                i++;
+            FormTemplate template;
+            if (transform == null) {
+                BoxList boxes = this.detectCheckboxes(preprocessed, buffers, scope, profile);
+                template = FormTemplate.create(name, preprocessed, boxes, workingDpi, registrationMode);
+            } else {
+                BoxList boxes = this.detectCheckboxes(preprocessed, buffers, scope, transform, profile);
+                template = FormTemplate.create(name, preprocessed, transform, buffers, boxes, workingDpi, registrationMode);
             }
+            log.debug("Registered template {} with {} checkboxes", name, template.getBoxes().size());
 
-            String outFilename = props.getRequiredProperty("out.file");
-            log.debug("Writing to output success: {}, {}", (Imgcodecs.imwrite(outFilename, rawInputBGR)), outFilename);
-        } catch (IOException e) {
-            log.error("Error while processing image {}", e.getMessage(), e);
+            return template;
+        } finally {
+            if (registered != reference) {
+                registered.release();
+            }
         }
+    }
 
+    /**
+     * Cerca le checkbox su tutta la pagina
+     *
+     * @param preprocessed immagine binarizzata
+     * @param profile      dimensioni ammesse per una checkbox
+     * @return rettangoli esterni delle checkbox, nell'ordine di lettura (vedi {@link ReadingOrder})
+     */
+    BoxList detectCheckboxes(Mat preprocessed, WorkBuffers buffers, MatScope scope, ProcessingProfile profile) {
+        int minSize = profile.getMinBoxSize();
+        int maxSize = profile.getMaxBoxSize();
+        if (detectionMode == DetectionMode.COMPONENTS) {
+            BoxList boxes = ComponentCandidateFinder.find(preprocessed, minSize, maxSize, buffers, metrics);
+            log.debug("I've found {} checkboxes", boxes.size());
+            return boxes;
+        }
+        return this.detectCheckboxContours(preprocessed, scope, minSize, maxSize);
     }
 
     /**
-     * TODO
+     * Come {@link #detectCheckboxes(Mat, WorkBuffers, MatScope, ProcessingProfile)} su una pagina non raddrizzata: il
+     * rettangolo esterno di una checkbox ruotata è più grande, per cui la cerco con un lato massimo
+     * maggiore e poi ne ricavo le dimensioni nella pagina raddrizzata.
+     *
+     * @param transform rotazione che raddrizza <code>preprocessed</code>
+     * @return checkbox nelle coordinate della pagina raddrizzata, nell'ordine di lettura
+     */
+    BoxList detectCheckboxes(Mat preprocessed, WorkBuffers buffers, MatScope scope, RotationTransform transform,
+                             ProcessingProfile profile) {
+        int minSize = profile.getMinBoxSize();
+        int maxSize = profile.getMaxBoxSize();
+
+        // lato del rettangolo esterno della checkbox più grande ammessa, ruotata: oltre non la
+        // accetterei neanche sulla pagina raddrizzata
+        int rotatedMaxSize = (int) Math.floor((maxSize - 1) * transform.getBoundsScale()) + 1;
+        BoxList found = detectionMode == DetectionMode.COMPONENTS
+                ? ComponentCandidateFinder.find(preprocessed, minSize, rotatedMaxSize, buffers, metrics)
+                : this.detectCheckboxContours(preprocessed, scope, minSize, rotatedMaxSize);
+        BoxList mapped = transform.forward(found);
+
+        BoxList boxes = new BoxList(mapped.size());
+        for (int i = 0; i < mapped.size(); i++) {
+            int width = mapped.getWidth(i);
+            int height = mapped.getHeight(i);
+            if (height > minSize && height < maxSize && width > minSize && width < maxSize) {
+                boxes.add(mapped.getX(i), mapped.getY(i), width, height, mapped.getArea(i));
+            }
+        }
+        log.debug("I've found {} checkboxes", boxes.size());
+
+        // l'ordine di lettura è quello della pagina raddrizzata
+        ReadingOrder.sort(boxes);
+        return boxes;
+    }
+
+    private BoxList detectCheckboxContours(Mat preprocessed, MatScope scope, int minSize, int maxSize) {
+
+        /*
+         * Ignorare questo pezzo
+         *
+         * Scalar lower = new Scalar(0, 0, 0);
+         * Scalar upper = new Scalar(15, 15, 15);
+         *
+         * Mat out = new Mat();
+         * inRange(rawInputBGR, lower, upper, out);
+         */
+
+        Mat hierarchy = scope.add(new Mat()); // la hierarchy stabilisce il grado di parentela tra i contorni
+        List<MatOfPoint> contours = new ArrayList<>();
+
+        findContours(preprocessed, contours, hierarchy, RETR_LIST, CHAIN_APPROX_SIMPLE);
+        scope.addAll(contours);
+        log.debug("I've found {} contours", contours.size());
+        metrics.increment(PipelineMetrics.Counter.CANDIDATES, contours.size());
+
+        /*
+         * La hierarchy al momento non la ho utilizzata, comunque interessante, permette ad esempio
+         * di capire se un contour segue una geometria aperta o chiusa
+         *
+         * // per le geometrie senza riempimento solid
+         * double parent = hierarchy.get(0, i)[2];
+         *
+         * if (parent < 0) {
+         *   // chiusa
+         * } else {
+         *   // aperta
+         * }
+         *
+         *
+         * // per geometrie con riempimento solid
+         * // (https://stackoverflow.com/a/42585938)
+         * double parent = hierarchy.get(0, i)[2];
+         * double children = hierarchy.get(0, i)[3];
+         *
+         * if (parent < 0 && children < 0) {
+         *   // chiusa
+         * } else {
+         *   // aperta
+         * }
+         */
+
+        BoxList boxes = new BoxList();
+
+        // per ogni contorno
+        for (MatOfPoint e : contours) {
+
+            // creo un rettangolo esterno al contorno individuato.
+            Rect bRect = boundingRect(e);
+
+            // Se l'area è compresa in questi parametri si tratta di una checkbox
+            if ((bRect.height > minSize && bRect.height < maxSize) && (bRect.width > minSize && bRect.width < maxSize)) {
+                boxes.add(bRect);
+            }
+        }
+
+        // ordine di lettura, calcolando il boundingRect una volta sola per contorno
+        ReadingOrder.sort(boxes);
+
+        return boxes;
+    }
+
+    /**
+     * Calcola la percentuale di pixel marcati all'interno di ciascuna checkbox
+     *
+     * @param preprocessed immagine binarizzata
+     * @param boxes        rettangoli esterni delle checkbox, nelle coordinate della pagina raddrizzata
+     * @param transform    rotazione che raddrizza <code>preprocessed</code>, <code>null</code> se è
+     *                     già raddrizzata
+     * @param profile      bordo da escludere e soglia di riempimento
+     */
+    List<CheckboxResult> scoreCheckboxes(Mat preprocessed, BoxList boxes, WorkBuffers buffers,
+                                         RotationTransform transform, ProcessingProfile profile) {
+        int leading = profile.getInsetLeading();
+        int trailing = profile.getInsetTrailing();
+        int cols = transform == null ? preprocessed.cols() : transform.getSize();
+        int rows = transform == null ? preprocessed.rows() : transform.getSize();
+
+        // righe e colonne delle checkbox, che seguono già l'ordine di lettura: calcolate sui
+        // rettangoli esterni, con la stessa tolleranza con cui sono stati ordinati
+        ReadingOrder grid = ReadingOrder.of(boxes);
+
+        // ritaglio virtuale del contenuto di ogni checkbox, escludendo il bordo
+        BoxList crops = new BoxList(boxes.size());
+        // indice in boxes di ciascun ritaglio
+        int[] source = new int[boxes.size()];
+        // stesso ritaglio nelle coordinate di preprocessed
+        BoxList rois = transform == null ? crops : new BoxList(boxes.size());
+        for (int k = 0; k < boxes.size(); k++) {
+            int x1 = Math.max(boxes.getX(k) + leading, 0);
+            int y1 = Math.max(boxes.getY(k) + leading, 0);
+            int x2 = Math.min(boxes.getX(k) + boxes.getWidth(k) - trailing, cols);
+            int y2 = Math.min(boxes.getY(k) + boxes.getHeight(k) - trailing, rows);
+
+            // checkbox del modello fuori dalla pagina
+            if (x2 <= x1 || y2 <= y1) {
+                continue;
+            }
+
+            if (transform != null) {
+                Rect roi = transform.inverse(x1, y1, x2 - x1, y2 - y1);
+                int rx1 = Math.max(roi.x, 0);
+                int ry1 = Math.max(roi.y, 0);
+                int rx2 = Math.min(roi.x + roi.width, preprocessed.cols());
+                int ry2 = Math.min(roi.y + roi.height, preprocessed.rows());
+
+                // fuori dalla pagina originale (angoli della pagina raddrizzata)
+                if (rx2 <= rx1 || ry2 <= ry1) {
+                    continue;
+                }
+                rois.add(rx1, ry1, rx2 - rx1, ry2 - ry1, (rx2 - rx1) * (ry2 - ry1));
+            }
+            source[crops.size()] = k;
+            crops.add(x1, y1, x2 - x1, y2 - y1, (x2 - x1) * (y2 - y1));
+        }
+
+        // calcolo quanti pixel sono marcati, per tutte le checkbox in una volta
+        float[] ratios = FillRatioScorer.score(BinaryPage.of(preprocessed, 128, buffers), rois);
+
+        List<CheckboxResult> results = new ArrayList<>(crops.size());
+        for (int i = 0; i < crops.size(); i++) {
+            float percentage = ratios[i] * 100.0F;
+
+            // occhio e croce, se oltre il 30% del centro della checkbox è marcata per me è un sì
+            boolean marked = percentage >= profile.getFillThreshold();
+            if (marked)
+                log.debug("Checkbox n° {} has {}% pixels marked", i, percentage);
+
+            results.add(new CheckboxResult(i, grid.row(source[i]), grid.column(source[i]), crops.getRect(i),
+                    percentage, marked));
+        }
+
+        return results;
+    }
+
+    /**
+     * Riduce la pagina alla risoluzione di lavoro, stimando quella di scansione dalle dimensioni
+     * di un A4 (vedi {@link #setWorkingDpi(int)})
+     *
+     * @param e Immagine
+     * @return una nuova Mat ridotta, oppure <code>e</code> stessa se è già alla risoluzione di lavoro
      */
     public Mat adjustSize(Mat e) {
-        return null;
+        if (workingDpi <= 0) {
+            return e;
+        }
+        double scale = Resolution.estimate(e.cols(), e.rows()) / workingDpi;
+        return scale < MIN_DOWNSCALE ? e : this.downscale(e, scale);
     }
 
     /**
-     * TODO
+     * Riduce l'immagine appena decodificata alla risoluzione di lavoro, liberando l'originale
+     *
+     * @param dpi risoluzione di scansione
+     */
+    Page adjustSize(File source, Mat image, double dpi) {
+        double scale = dpi / workingDpi;
+        if (scale < MIN_DOWNSCALE) {
+            return new Page(source, image);
+        }
+
+        long start = System.nanoTime();
+        Mat resized = this.downscale(image, scale);
+        // il rapporto effettivo, dopo l'arrotondamento delle dimensioni
+        double actualScale = (double) image.cols() / resized.cols();
+        image.release();
+        metrics.record(PipelineMetrics.Stage.RESIZE, System.nanoTime() - start);
+        log.debug("Resized from {} to {} dpi", Math.round(dpi), workingDpi);
+
+        return new Page(source, resized, actualScale);
+    }
+
+    private Mat downscale(Mat image, double scale) {
+        Mat resized = new Mat();
+        Size size = new Size(Math.max(1, Math.round(image.cols() / scale)), Math.max(1, Math.round(image.rows() / scale)));
+        // INTER_AREA media i pixel coperti da ciascun pixel di destinazione: nessun aliasing sui bordi sottili
+        resize(image, resized, size, 0, 0, INTER_AREA);
+        return resized;
+    }
+
+    /**
+     * Riporta le checkbox dalla pagina ridotta, ed eventualmente ritagliata ai segni di registrazione,
+     * alle coordinate della scansione originale
+     *
+     * @param scale   pixel della scansione originale per ogni pixel della pagina elaborata
+     * @param originX ascissa della pagina elaborata nella pagina intera, vedi {@link Page#getOriginX()}
+     * @param originY ordinata della pagina elaborata nella pagina intera
+     */
+    static List<CheckboxResult> toSourceScale(List<CheckboxResult> results, double scale, int originX, int originY) {
+        if (scale == 1.0 && originX == 0 && originY == 0) {
+            return results;
+        }
+        List<CheckboxResult> mapped = new ArrayList<>(results.size());
+        for (CheckboxResult result : results) {
+            Rect box = result.getBox();
+            Rect scaled = new Rect((int) Math.round((box.x + originX) * scale), (int) Math.round((box.y + originY) * scale),
+                    (int) Math.round(box.width * scale), (int) Math.round(box.height * scale));
+            mapped.add(new CheckboxResult(result.getIndex(), result.getRow(), result.getColumn(), scaled,
+                    result.getPercentage(), result.isMarked()));
+        }
+        return mapped;
+    }
+
+    /**
+     * Ritaglia la pagina all'area tra i segni di registrazione negli angoli, con le dimensioni dei
+     * segni del profilo di default. I segni vengono cancellati dalla copia.
+     *
+     * @param e Immagine
+     * @return una nuova Mat con l'area attiva, oppure <code>e</code> stessa se i segni non sono stati trovati
+     * @see RegistrationMode#CORNER_MARKS
      */
     public Mat cropAtMarks(Mat e) {
-        return null;
+        FiducialMarks marks = FiducialMarks.locate(e, profile.getMinMarkSize(), profile.getMaxMarkSize());
+        return marks == null ? e : marks.crop(new Page(null, e)).getImage();
     }
 
     /**
@@ -307,8 +1133,14 @@ public class ImageProcessor {
      * @return Immagine ruotata su di un perno centrale (len/2)
      */
     public Mat adjustRotation(Mat input, double angle) {
+        return adjustRotation(input, angle, new Mat());
+    }
 
-        Mat result = new Mat();
+    /**
+     * Come {@link #adjustRotation(Mat, double)}, ma scrive in <code>result</code>, che viene
+     * riallocata solo se la dimensione non corrisponde
+     */
+    Mat adjustRotation(Mat input, double angle, Mat result) {
 
         int len;
         if (input.cols() >= input.rows())
@@ -320,6 +1152,7 @@ public class ImageProcessor {
         Mat r = getRotationMatrix2D(pt, angle, 1.0);
 
         warpAffine(input, result, r, new Size(len, len));
+        r.release();
 
         return result;
     }
@@ -1,11 +1,9 @@
 package com.riccardofinazzi.newclean.bogey.imgprocessing;
 
 import org.opencv.core.MatOfPoint;
-import org.opencv.core.Rect;
 
 import java.util.*;
 
-import static org.opencv.imgproc.Imgproc.boundingRect;
 import static org.opencv.imgproc.Imgproc.contourArea;
 
 class ImageSortUtils {
@@ -52,39 +50,6 @@ class ImageSortUtils {
         };
     }
 
-    /**
-     * @return ordina i contour verticalmente
-     */
-    static Comparator<MatOfPoint> contourYComparator() {
-
-        return new Comparator<MatOfPoint>() {
-            @Override
-            public int compare(MatOfPoint o1, MatOfPoint o2) {
-                Rect rect1 = boundingRect(o1);
-                Rect rect2 = boundingRect(o2);
-                int result = Double.compare(rect1.tl().y, rect2.tl().y);
-                return result;
-            }
-        };
-    }
-
-    /**
-     * @return ordina i contour orizzontalmente
-     */
-    static Comparator<MatOfPoint> contourXComparator() {
-
-        return new Comparator<MatOfPoint>() {
-            @Override
-            public int compare(MatOfPoint o1, MatOfPoint o2) {
-                Rect rect1 = boundingRect(o1);
-                Rect rect2 = boundingRect(o2);
-                int result = 0;
-                double total = rect1.tl().y / rect2.tl().y;
-                if (total >= 0.9 && total <= 1.4) {
-                    result = Double.compare(rect1.tl().x, rect2.tl().x);
-                }
-                return result;
-            }
-        };
-    }
+    // l'ordinamento verticale e orizzontale dei contorni è in ReadingOrder: il confronto a coppie
+    // con tolleranza sulla y non era transitivo
 }
@@ -0,0 +1,197 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.apache.commons.imaging.ImageInfo;
+import org.apache.commons.imaging.ImageReadException;
+import org.apache.commons.imaging.Imaging;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/**
+ * Immagine ancora codificata (JPEG, PNG, TIFF...) in memoria: un file mappato in memoria, un
+ * ByteBuffer o un array di byte.
+ * <p>
+ * La decodifica avviene con <code>imdecode</code> direttamente sulla memoria della sorgente: per i
+ * file e i buffer diretti openCV legge gli stessi byte senza copiarli, per gli array i byte vengono
+ * copiati una sola volta in memoria nativa. Il file viene aperto una volta sola, anche se la stessa
+ * sorgente viene poi decodificata più volte o usata per calcolarne l'hash.
+ */
+public class ImageSource {
+
+    private final File file;
+    private final ByteBuffer buffer;
+    private final byte[] array;
+
+    private ImageSource(File file, ByteBuffer buffer, byte[] array) {
+        this.file = file;
+        this.buffer = buffer;
+        this.array = array;
+    }
+
+    /**
+     * Mappa il file in memoria in sola lettura
+     */
+    public static ImageSource of(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // la mappatura resta valida anche dopo la chiusura del canale
+            return new ImageSource(path.toFile(), channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), null);
+        }
+    }
+
+    /**
+     * Usa i byte tra <code>position</code> e <code>limit</code>, senza modificarne la posizione.
+     * Il contenuto non deve cambiare finché la sorgente è in uso.
+     */
+    public static ImageSource of(ByteBuffer buffer) {
+        if (!buffer.isDirect() && buffer.hasArray()) {
+            // buffer che copre l'intero array: lo uso così com'è
+            if (buffer.arrayOffset() + buffer.position() == 0 && buffer.remaining() == buffer.array().length) {
+                return new ImageSource(null, null, buffer.array());
+            }
+            byte[] array = new byte[buffer.remaining()];
+            buffer.duplicate().get(array);
+            return new ImageSource(null, null, array);
+        }
+        return new ImageSource(null, buffer.slice(), null);
+    }
+
+    /**
+     * L'array non viene copiato: il contenuto non deve cambiare finché la sorgente è in uso
+     */
+    public static ImageSource of(byte[] data) {
+        return new ImageSource(null, null, data);
+    }
+
+    /**
+     * @return file da cui è stata letta la sorgente, <code>null</code> per le sorgenti in memoria
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return dimensione in byte dell'immagine codificata
+     */
+    public int size() {
+        return array != null ? array.length : buffer.remaining();
+    }
+
+    /**
+     * Decodifica l'immagine; se openCV non riconosce il formato ci riprova con ImageIO
+     *
+     * @param flags {@link ImageProcessor#LOAD_COLOR} o {@link ImageProcessor#LOAD_GRAYSCALE}
+     * @return Mat CV_8UC3 o CV_8UC1
+     */
+    public Mat decode(int flags) throws IOException {
+        if (this.size() == 0) {
+            throw new IOException("Empty image: " + (file != null ? file : "in-memory image"));
+        }
+
+        Mat encoded = this.encoded();
+        Mat image;
+        try {
+            image = Imgcodecs.imdecode(encoded, flags);
+        } finally {
+            encoded.release();
+        }
+
+        if (image.empty()) {
+            image.release();
+
+            BufferedImage buf = ImageIO.read(this.openStream());
+            if (buf == null) {
+                throw new IOException("Unsupported image format: " + (file != null ? file : "in-memory image"));
+            }
+            image = ImageConversionUtils.toMat(buf, flags);
+        }
+
+        return image;
+    }
+
+    /**
+     * Legge la risoluzione dai metadati dell'immagine (JFIF, pHYs, TIFF...), senza decodificarla
+     *
+     * @return dpi orizzontali dichiarati, NaN se assenti o non leggibili
+     */
+    double declaredDpi() {
+        try {
+            // anche per i file legge le intestazioni dalla memoria mappata, senza riaprirli
+            ImageInfo info = array != null
+                    ? Imaging.getImageInfo(array)
+                    : Imaging.getImageInfo(this.openStream(), file != null ? file.getName() : "image");
+            int dpi = info.getPhysicalWidthDpi();
+            return dpi > 0 ? dpi : Double.NaN;
+        } catch (ImageReadException | IOException | RuntimeException e) {
+            // formato non gestito da commons-imaging: la risoluzione verrà stimata
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Aggiorna il digest con il contenuto della sorgente, senza copiarlo
+     */
+    void update(MessageDigest digest) {
+        if (array != null) {
+            digest.update(array);
+        } else {
+            digest.update(buffer.duplicate());
+        }
+    }
+
+    /**
+     * @return Mat 1xN CV_8UC1 con i byte codificati; per i buffer diretti condivide la memoria della sorgente
+     */
+    private Mat encoded() {
+        if (array != null) {
+            Mat encoded = new Mat(1, array.length, CvType.CV_8UC1);
+            encoded.put(0, 0, array);
+            return encoded;
+        }
+        if (buffer.isDirect()) {
+            return new Mat(1, buffer.remaining(), CvType.CV_8UC1, buffer);
+        }
+
+        // buffer in sola lettura senza array accessibile
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        Mat encoded = new Mat(1, bytes.length, CvType.CV_8UC1);
+        encoded.put(0, 0, bytes);
+        return encoded;
+    }
+
+    private InputStream openStream() {
+        if (array != null) {
+            return new ByteArrayInputStream(array);
+        }
+
+        final ByteBuffer source = buffer.duplicate();
+        return new InputStream() {
+            @Override
+            public int read() {
+                return source.hasRemaining() ? source.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (!source.hasRemaining()) {
+                    return -1;
+                }
+                int n = Math.min(len, source.remaining());
+                source.get(b, off, n);
+                return n;
+            }
+        };
+    }
+}
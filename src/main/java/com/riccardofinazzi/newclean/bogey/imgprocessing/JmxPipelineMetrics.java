@@ -0,0 +1,172 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link PipelineMetrics} esposte via JMX.
+ * <p>
+ * Per ogni fase tiene un istogramma a bucket logaritmici (il bucket <code>i</code> conta le durate
+ * in <code>[2^(i-1), 2^i)</code> nanosecondi): registrare un tempo costa un paio di operazioni
+ * atomiche e nessuna allocazione.
+ * <pre>
+ * JmxPipelineMetrics metrics = JmxPipelineMetrics.register("batch");
+ * processor.setMetrics(metrics);
+ * </pre>
+ */
+public class JmxPipelineMetrics implements PipelineMetrics, PipelineMetricsMXBean {
+
+    static final String DOMAIN = "com.riccardofinazzi.newclean.bogey";
+
+    private static final int BUCKETS = 64;
+
+    private static final PipelineMetrics.Stage[] STAGES = PipelineMetrics.Stage.values();
+    private static final PipelineMetrics.Counter[] COUNTERS = PipelineMetrics.Counter.values();
+
+    private final AtomicLongArray histograms = new AtomicLongArray(STAGES.length * BUCKETS);
+    private final LongAdder[] totals = new LongAdder[STAGES.length];
+    private final AtomicLong[] maxima = new AtomicLong[STAGES.length];
+    private final LongAdder[] counters = new LongAdder[COUNTERS.length];
+
+    public JmxPipelineMetrics() {
+        for (int i = 0; i < STAGES.length; i++) {
+            totals[i] = new LongAdder();
+            maxima[i] = new AtomicLong();
+        }
+        for (int i = 0; i < COUNTERS.length; i++) {
+            counters[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Crea le metriche e le registra sull'MBeanServer della piattaforma come
+     * <code>com.riccardofinazzi.newclean.bogey:type=PipelineMetrics,name=&lt;name&gt;</code>.
+     * Se il nome è già registrato l'istanza precedente viene sostituita.
+     */
+    public static JmxPipelineMetrics register(String name) {
+        JmxPipelineMetrics metrics = new JmxPipelineMetrics();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=PipelineMetrics,name=" + ObjectName.quote(name));
+            try {
+                server.registerMBean(metrics, objectName);
+            } catch (InstanceAlreadyExistsException e) {
+                server.unregisterMBean(objectName);
+                server.registerMBean(metrics, objectName);
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register pipeline metrics " + name, e);
+        }
+        return metrics;
+    }
+
+    @Override
+    public void record(PipelineMetrics.Stage stage, long nanos) {
+        int s = stage.ordinal();
+        long value = Math.max(0, nanos);
+
+        histograms.incrementAndGet(s * BUCKETS + Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+        totals[s].add(value);
+
+        AtomicLong max = maxima[s];
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // riprova
+        }
+    }
+
+    @Override
+    public void increment(PipelineMetrics.Counter counter, long delta) {
+        counters[counter.ordinal()].add(delta);
+    }
+
+    /**
+     * @return valore corrente del contatore
+     */
+    public long get(PipelineMetrics.Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    /**
+     * @return istantanea dei tempi della fase
+     */
+    public StageStatistics get(PipelineMetrics.Stage stage) {
+        int s = stage.ordinal();
+        long[] buckets = new long[BUCKETS];
+        long count = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = histograms.get(s * BUCKETS + i);
+            count += buckets[i];
+        }
+
+        double max = millis(maxima[s].get());
+        return new StageStatistics(stage.name(), count, millis(totals[s].sum()), max,
+                Math.min(max, percentile(buckets, count, 0.50)), Math.min(max, percentile(buckets, count, 0.99)));
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (PipelineMetrics.Counter counter : COUNTERS) {
+            values.put(counter.name(), get(counter));
+        }
+        return values;
+    }
+
+    @Override
+    public List<StageStatistics> getStages() {
+        List<StageStatistics> stages = new ArrayList<>(STAGES.length);
+        for (PipelineMetrics.Stage stage : STAGES) {
+            stages.add(get(stage));
+        }
+        return stages;
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < histograms.length(); i++) {
+            histograms.set(i, 0);
+        }
+        for (int i = 0; i < STAGES.length; i++) {
+            totals[i].reset();
+            maxima[i].set(0);
+        }
+        for (LongAdder counter : counters) {
+            counter.reset();
+        }
+    }
+
+    /**
+     * @return limite superiore del bucket che contiene il percentile richiesto
+     */
+    private static double percentile(long[] buckets, long count, double quantile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return millis(i == BUCKETS - 1 ? Long.MAX_VALUE : 1L << i);
+            }
+        }
+        return millis(Long.MAX_VALUE);
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
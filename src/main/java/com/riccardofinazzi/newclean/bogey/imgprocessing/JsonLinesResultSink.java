@@ -0,0 +1,79 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.opencv.core.Rect;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Scrive i risultati in formato <a href="https://jsonlines.org/">JSON Lines</a>, un oggetto per riga:
+ * <pre>
+ * {"file":"scan001.jpg","skewAngle":-3.1,"index":0,"row":0,"column":0,"x":120,"y":340,"width":14,"height":14,"fill":42.5,"marked":true}
+ * {"file":"scan002.jpg","error":"Unsupported image format: scan002.jpg"}
+ * </pre>
+ */
+public class JsonLinesResultSink extends StreamingResultSink {
+
+    public JsonLinesResultSink(Writer writer) {
+        super(writer);
+    }
+
+    @Override
+    void writeCheckbox(Writer writer, PageResult page, CheckboxResult checkbox) throws IOException {
+        Rect box = checkbox.getBox();
+
+        writer.write("{\"file\":");
+        writeString(writer, fileName(page));
+        writer.write(",\"skewAngle\":" + page.getSkewAngle()
+                + ",\"index\":" + checkbox.getIndex()
+                + ",\"row\":" + checkbox.getRow()
+                + ",\"column\":" + checkbox.getColumn()
+                + ",\"x\":" + box.x
+                + ",\"y\":" + box.y
+                + ",\"width\":" + box.width
+                + ",\"height\":" + box.height
+                + ",\"fill\":" + checkbox.getPercentage()
+                + ",\"marked\":" + checkbox.isMarked()
+                + "}\n");
+    }
+
+    @Override
+    void writeFailure(Writer writer, PageResult page) throws IOException {
+        writer.write("{\"file\":");
+        writeString(writer, fileName(page));
+        writer.write(",\"error\":");
+        writeString(writer, errorMessage(page));
+        writer.write("}\n");
+    }
+
+    private static void writeString(Writer writer, String value) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+            }
+        }
+        writer.write('"');
+    }
+}
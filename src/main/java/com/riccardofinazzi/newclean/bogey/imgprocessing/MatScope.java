@@ -0,0 +1,63 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Raccoglie le Mat create durante una fase dell'elaborazione e ne libera la memoria nativa
+ * alla chiusura, senza aspettare che il GC finalizzi i wrapper Java.
+ * <p>
+ * <pre>
+ * try (MatScope scope = new MatScope()) {
+ *     Mat hierarchy = scope.add(new Mat());
+ *     ...
+ * }
+ * </pre>
+ * Resta solo l'header nativo della Mat (pochi byte), rilasciato come sempre dal finalizer.
+ */
+public class MatScope implements AutoCloseable {
+
+    private final List<Mat> mats = new ArrayList<>();
+
+    /**
+     * Registra una Mat da rilasciare alla chiusura dello scope
+     *
+     * @return la stessa Mat
+     */
+    public <T extends Mat> T add(T mat) {
+        mats.add(mat);
+        return mat;
+    }
+
+    /**
+     * Registra un gruppo di Mat, ad esempio i contorni restituiti da findContours
+     */
+    public <T extends Mat> void addAll(Collection<T> mats) {
+        this.mats.addAll(mats);
+    }
+
+    /**
+     * Toglie una Mat dallo scope, perché deve sopravvivergli
+     *
+     * @return la stessa Mat
+     */
+    public <T extends Mat> T keep(T mat) {
+        for (int i = mats.size() - 1; i >= 0; i--) {
+            if (mats.get(i) == mat) {
+                mats.remove(i);
+            }
+        }
+        return mat;
+    }
+
+    @Override
+    public void close() {
+        for (int i = mats.size() - 1; i >= 0; i--) {
+            mats.get(i).release();
+        }
+        mats.clear();
+    }
+}
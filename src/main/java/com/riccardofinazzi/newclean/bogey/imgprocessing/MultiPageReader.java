@@ -0,0 +1,288 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.apache.commons.imaging.FormatCompliance;
+import org.apache.commons.imaging.ImageReadException;
+import org.apache.commons.imaging.common.bytesource.ByteSourceFile;
+import org.apache.commons.imaging.formats.tiff.TiffDirectory;
+import org.apache.commons.imaging.formats.tiff.TiffField;
+import org.apache.commons.imaging.formats.tiff.TiffHeader;
+import org.apache.commons.imaging.formats.tiff.TiffReader;
+import org.apache.commons.imaging.formats.tiff.constants.TiffTagConstants;
+import org.opencv.core.Mat;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Legge una alla volta le pagine di un lotto di scansioni in un unico file, senza caricarlo per intero:
+ * <ul>
+ * <li>TIFF multipagina: le pagine vengono lette seguendo la catena delle IFD, ciascuna con i soli dati
+ * della propria immagine, e decodificate con commons-imaging (non compresse, LZW, PackBits, CCITT G3/G4);</li>
+ * <li>PDF prodotti da scanner, con un'immagine JPEG (<code>DCTDecode</code>, eventualmente preceduto da
+ * <code>FlateDecode</code>) per pagina: le pagine vengono lette nell'ordine dell'albero delle pagine e di
+ * ognuna viene decodificata con openCV l'immagine più grande tra le sue risorse (vedi {@link PdfDocument}).
+ * Le pagine senza immagini o con immagini in altre codifiche non vengono decodificate.</li>
+ * </ul>
+ * Le pagine vengono consegnate al {@link Listener} man mano che vengono decodificate: è il listener
+ * a limitare quante restano in memoria, bloccando la lettura finché non ne ha liberata qualcuna. Le
+ * pagine che non si possono decodificare gli vengono segnalate con il proprio indice, senza
+ * interrompere la lettura delle successive.
+ */
+public final class MultiPageReader {
+
+    private static final byte[] PDF_MAGIC = "%PDF".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Riceve le pagine decodificate
+     */
+    public interface Listener {
+
+        /**
+         * @param index indice della pagina nel file, da 0
+         * @param image pagina decodificata, CV_8UC3 o CV_8UC1; da liberare a cura del listener
+         * @param dpi   risoluzione dichiarata nel file, NaN se non nota
+         * @return <code>false</code> per interrompere la lettura
+         */
+        boolean page(int index, Mat image, double dpi) throws InterruptedException;
+
+        /**
+         * @param index indice della pagina nel file, da 0
+         * @param error motivo per cui la pagina non è stata decodificata
+         * @return <code>false</code> per interrompere la lettura
+         */
+        boolean failed(int index, IOException error) throws InterruptedException;
+    }
+
+    private MultiPageReader() {
+    }
+
+    /**
+     * @return <code>true</code> se il file è un PDF o un TIFF con più di una pagina
+     */
+    public static boolean isMultiPage(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] magic = new byte[4];
+            if (raf.read(magic) < 4) {
+                return false;
+            }
+            if (Arrays.equals(magic, PDF_MAGIC)) {
+                return true;
+            }
+            return tiffByteOrder(magic) != null && countTiffPages(raf, tiffByteOrder(magic), 2) > 1;
+        }
+    }
+
+    /**
+     * Legge tutte le pagine del file; un file di una sola immagine viene letto come una pagina
+     *
+     * @param flags {@link ImageProcessor#LOAD_COLOR} o {@link ImageProcessor#LOAD_GRAYSCALE}
+     * @return numero di pagine consegnate al listener, escluse quelle segnalate con
+     * {@link Listener#failed(int, IOException)}
+     * @throws IOException se il file non si può leggere; le pagine già consegnate o segnalate al
+     *                     listener hanno indice inferiore a quello della pagina in lettura
+     */
+    public static int read(File file, int flags, Listener listener) throws IOException, InterruptedException {
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+
+        byte[] magic = new byte[4];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.readFully(magic);
+        }
+
+        if (Arrays.equals(magic, PDF_MAGIC)) {
+            return readPdf(file, flags, listener);
+        }
+        if (tiffByteOrder(magic) != null) {
+            return readTiff(file, flags, listener);
+        }
+
+        ImageSource source = ImageSource.of(file.toPath());
+        listener.page(0, source.decode(flags), source.declaredDpi());
+        return 1;
+    }
+
+    private static ByteOrder tiffByteOrder(byte[] magic) {
+        if (magic[0] == 'I' && magic[1] == 'I' && magic[2] == 42 && magic[3] == 0) {
+            return ByteOrder.LITTLE_ENDIAN;
+        }
+        if (magic[0] == 'M' && magic[1] == 'M' && magic[2] == 0 && magic[3] == 42) {
+            return ByteOrder.BIG_ENDIAN;
+        }
+        return null;
+    }
+
+    /**
+     * Conta le IFD seguendo solo gli offset, senza leggere i tag
+     *
+     * @param limit numero di pagine oltre il quale smettere di contare
+     */
+    private static int countTiffPages(RandomAccessFile raf, ByteOrder order, int limit) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(4).order(order);
+        raf.seek(4);
+        raf.readFully(b.array());
+        long offset = b.getInt(0) & 0xFFFFFFFFL;
+
+        int pages = 0;
+        while (offset != 0 && offset + 2 <= raf.length() && pages < limit) {
+            pages++;
+            raf.seek(offset);
+            raf.readFully(b.array(), 0, 2);
+            int entries = b.getShort(0) & 0xFFFF;
+            raf.seek(offset + 2 + 12L * entries);
+            if (raf.getFilePointer() + 4 > raf.length()) {
+                break;
+            }
+            raf.readFully(b.array());
+            offset = b.getInt(0) & 0xFFFFFFFFL;
+        }
+        return pages;
+    }
+
+    private static int readTiff(final File file, final int flags, final Listener listener) throws IOException, InterruptedException {
+        final int[] pages = new int[1];
+        final int[] delivered = new int[1];
+        final InterruptedException[] interrupted = new InterruptedException[1];
+
+        TiffReader.Listener tiffListener = new TiffReader.Listener() {
+            private ByteOrder byteOrder;
+
+            @Override
+            public boolean setTiffHeader(TiffHeader tiffHeader) {
+                byteOrder = tiffHeader.byteOrder;
+                return true;
+            }
+
+            @Override
+            public boolean addDirectory(TiffDirectory directory) {
+                int index = pages[0];
+                Mat image = null;
+                double dpi = Double.NaN;
+                IOException error = null;
+                try {
+                    if (isReducedResolution(directory)) {
+                        // miniatura della pagina precedente
+                        return true;
+                    }
+                    dpi = dpi(directory);
+                    image = ImageConversionUtils.toMat(directory.getTiffImage(byteOrder), flags);
+                } catch (ImageReadException | IOException | RuntimeException e) {
+                    error = new IOException("Cannot read page " + (index + 1) + " of " + file + ": " + e.getMessage(), e);
+                }
+
+                pages[0]++;
+                try {
+                    if (error != null) {
+                        return listener.failed(index, error);
+                    }
+                    delivered[0]++;
+                    return listener.page(index, image, dpi);
+                } catch (InterruptedException e) {
+                    interrupted[0] = e;
+                    return false;
+                }
+            }
+
+            @Override
+            public boolean addField(TiffField field) {
+                return true;
+            }
+
+            @Override
+            public boolean readImageData() {
+                return true;
+            }
+
+            @Override
+            public boolean readOffsetDirectories() {
+                // EXIF e GPS non servono
+                return false;
+            }
+        };
+
+        try {
+            new TiffReader(true).read(new ByteSourceFile(file), new HashMap<String, Object>(),
+                    FormatCompliance.getDefault(), tiffListener);
+        } catch (ImageReadException e) {
+            throw new IOException("Cannot read page " + (pages[0] + 1) + " of " + file + ": " + e.getMessage(), e);
+        }
+
+        if (interrupted[0] != null) {
+            throw interrupted[0];
+        }
+        return delivered[0];
+    }
+
+    private static boolean isReducedResolution(TiffDirectory directory) throws ImageReadException {
+        TiffField type = directory.findField(TiffTagConstants.TIFF_TAG_NEW_SUBFILE_TYPE);
+        return type != null && (type.getIntValue() & 1) != 0;
+    }
+
+    private static double dpi(TiffDirectory directory) throws ImageReadException {
+        TiffField resolution = directory.findField(TiffTagConstants.TIFF_TAG_XRESOLUTION);
+        if (resolution == null) {
+            return Double.NaN;
+        }
+        TiffField unit = directory.findField(TiffTagConstants.TIFF_TAG_RESOLUTION_UNIT);
+        // il default della specifica è in pollici
+        int unitValue = unit == null ? TiffTagConstants.RESOLUTION_UNIT_VALUE_INCHES : unit.getIntValue();
+        if (unitValue == TiffTagConstants.RESOLUTION_UNIT_VALUE_INCHES) {
+            return resolution.getDoubleValue();
+        }
+        if (unitValue == TiffTagConstants.RESOLUTION_UNIT_VALUE_CM) {
+            return resolution.getDoubleValue() * 2.54;
+        }
+        return Double.NaN;
+    }
+
+    private static int readPdf(File file, int flags, Listener listener) throws IOException, InterruptedException {
+        PdfDocument pdf = PdfDocument.open(file);
+        List<PdfDocument.Image> images = pdf.pageImages();
+        if (images.isEmpty()) {
+            throw new IOException("No pages found in " + file);
+        }
+
+        int pages = 0;
+        for (int index = 0; index < images.size(); index++) {
+            PdfDocument.Image image = images.get(index);
+            Mat decoded = null;
+            double dpi = Double.NaN;
+            IOException error = null;
+            try {
+                if (image == null) {
+                    throw new IOException("no image");
+                }
+                if (!image.isJpeg()) {
+                    throw new IOException("image encoded as " + (image.getFilters().isEmpty() ? "raw samples" : image.getFilters())
+                            + ", only scanned pages encoded as JPEG are supported");
+                }
+                ImageSource source = ImageSource.of(pdf.jpegData(image));
+                decoded = source.decode(flags);
+                dpi = source.declaredDpi();
+            } catch (IOException | RuntimeException e) {
+                error = new IOException("Cannot read page " + (index + 1) + " of " + file + ": " + e.getMessage(), e);
+            }
+
+            boolean more;
+            if (error != null) {
+                more = listener.failed(index, error);
+            } else {
+                pages++;
+                more = listener.page(index, decoded, dpi);
+            }
+            if (!more) {
+                break;
+            }
+        }
+        return pages;
+    }
+}
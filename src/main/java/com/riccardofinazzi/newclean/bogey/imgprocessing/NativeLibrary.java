@@ -0,0 +1,212 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import nu.pattern.OpenCV;
+import org.opencv.core.Core;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * Caricamento della libreria nativa di openCV, una sola volta per JVM.
+ * <p>
+ * <code>OpenCV.loadShared()</code> estrae la libreria dal jar (oltre 70 MB su linux) in una cartella
+ * temporanea a ogni avvio. Qui viene estratta una volta sola nella cartella indicata dalla
+ * proprietà di sistema <code>bogey.native.cache</code> (di default <code>~/.cache/bogey</code>) e
+ * riutilizzata dai processi successivi. Il nome del file contiene la CRC della libreria nel jar,
+ * così un aggiornamento di openCV produce un file nuovo. All'estrazione viene salvato anche lo
+ * SHA-256 della libreria, verificato a ogni caricamento con <code>-Dbogey.native.verify=true</code>.
+ * <p>
+ * Se la piattaforma non è tra quelle incluse nel jar, o la cache non è scrivibile, si ricade su
+ * <code>OpenCV.loadShared()</code>.
+ */
+public final class NativeLibrary {
+
+    private static final Logger log = LoggerFactory.getLogger(NativeLibrary.class);
+
+    private static volatile boolean loaded;
+
+    private NativeLibrary() {
+    }
+
+    /**
+     * Carica la libreria, se non è già stata caricata
+     */
+    public static void load() {
+        if (loaded) {
+            return;
+        }
+        synchronized (NativeLibrary.class) {
+            if (loaded) {
+                return;
+            }
+
+            File library = null;
+            try {
+                library = cached();
+            } catch (IOException e) {
+                log.warn("Cannot use the native library cache, falling back to a temporary copy: {}", e.getMessage());
+            }
+
+            if (library != null) {
+                System.load(library.getAbsolutePath());
+                log.debug("Loaded {}", library);
+            } else {
+                OpenCV.loadShared();
+            }
+            loaded = true;
+        }
+    }
+
+    /**
+     * @return la libreria estratta nella cache, <code>null</code> se il jar non la include per
+     * questa piattaforma
+     */
+    static File cached() throws IOException {
+        String name = System.mapLibraryName(Core.NATIVE_LIBRARY_NAME);
+        String platform = platform();
+        URL url = platform == null ? null : NativeLibrary.class.getResource("/nu/pattern/opencv/" + platform + "/" + name);
+        if (url == null) {
+            return null;
+        }
+
+        // identifico la libreria dai metadati del jar, senza leggerla
+        URLConnection connection = url.openConnection();
+        long size = connection.getContentLengthLong();
+        long version = connection instanceof JarURLConnection
+                ? ((JarURLConnection) connection).getJarEntry().getCrc()
+                : connection.getLastModified();
+
+        File directory = cacheDirectory();
+        int dot = name.lastIndexOf('.');
+        File library = new File(directory, name.substring(0, dot) + "-" + Long.toHexString(version) + name.substring(dot));
+        File checksum = new File(directory, library.getName() + ".sha256");
+
+        if (library.length() == size && checksum.isFile()) {
+            if (!Boolean.getBoolean("bogey.native.verify")) {
+                return library;
+            }
+            String expected = new String(Files.readAllBytes(checksum.toPath()), StandardCharsets.US_ASCII).trim();
+            if (expected.equals(sha256(library))) {
+                return library;
+            }
+            log.warn("Checksum mismatch for {}, extracting it again", library);
+        }
+
+        extract(connection, library, checksum);
+        return library;
+    }
+
+    /**
+     * Estrae la libreria in un file temporaneo della cartella di cache e poi lo rinomina: più processi
+     * possono estrarla contemporaneamente senza che nessuno veda un file incompleto.
+     */
+    private static void extract(URLConnection connection, File library, File checksum) throws IOException {
+        File directory = library.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+
+        File temp = File.createTempFile(library.getName(), ".tmp", directory);
+        File tempChecksum = File.createTempFile(checksum.getName(), ".tmp", directory);
+        try {
+            MessageDigest digest = sha256();
+            try (InputStream is = new DigestInputStream(connection.getInputStream(), digest);
+                 OutputStream os = Files.newOutputStream(temp.toPath())) {
+                byte[] buffer = new byte[1 << 16];
+                int n;
+                while ((n = is.read(buffer)) > 0) {
+                    os.write(buffer, 0, n);
+                }
+            }
+            Files.write(tempChecksum.toPath(), hex(digest.digest()).getBytes(StandardCharsets.US_ASCII));
+
+            // il checksum per ultimo: una libreria senza checksum viene estratta di nuovo
+            Files.move(temp.toPath(), library.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tempChecksum.toPath(), checksum.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.info("Extracted {}", library);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+            Files.deleteIfExists(tempChecksum.toPath());
+        }
+    }
+
+    private static File cacheDirectory() {
+        String directory = System.getProperty("bogey.native.cache");
+        if (directory != null) {
+            return new File(directory);
+        }
+        return new File(System.getProperty("user.home"), ".cache" + File.separator + "bogey");
+    }
+
+    /**
+     * @return la cartella della libreria nel jar di openpnp, <code>null</code> se non prevista
+     */
+    private static String platform() {
+        String os = System.getProperty("os.name").toLowerCase(Locale.ROOT);
+        String arch = System.getProperty("os.arch").toLowerCase(Locale.ROOT);
+
+        String osDirectory;
+        if (os.startsWith("linux")) {
+            osDirectory = "linux";
+        } else if (os.startsWith("mac")) {
+            osDirectory = "osx";
+        } else if (os.startsWith("windows")) {
+            osDirectory = "windows";
+        } else {
+            return null;
+        }
+
+        String archDirectory;
+        if (arch.equals("amd64") || arch.equals("x86_64")) {
+            archDirectory = "x86_64";
+        } else if (arch.equals("x86") || arch.equals("i386") || arch.equals("i686")) {
+            archDirectory = "x86_32";
+        } else if (arch.equals("aarch64")) {
+            archDirectory = "ARMv8";
+        } else {
+            return null;
+        }
+        return osDirectory + "/" + archDirectory;
+    }
+
+    private static String sha256(File file) throws IOException {
+        MessageDigest digest = sha256();
+        try (InputStream is = new DigestInputStream(Files.newInputStream(file.toPath()), digest)) {
+            byte[] buffer = new byte[1 << 16];
+            while (is.read(buffer) > 0) {
+                // il digest si aggiorna leggendo
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,117 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.opencv.core.Mat;
+
+import java.io.File;
+
+/**
+ * Una pagina decodificata. Viene letta una sola volta e passata tra le fasi dell'elaborazione
+ * (raddrizzamento, ricerca e valutazione delle checkbox), evitando di decodificare più volte
+ * lo stesso file.
+ */
+public class Page {
+
+    private final File source;
+    private final Mat image;
+    private final double scale;
+    private final SkewEstimate registrationSkew;
+    private final int originX;
+    private final int originY;
+    private double skewAngle = Double.NaN;
+
+    /**
+     * @param source file di provenienza, può essere <code>null</code> se la pagina non arriva dal filesystem
+     * @param image  immagine decodificata, CV_8UC3 o CV_8UC1
+     */
+    public Page(File source, Mat image) {
+        this(source, image, 1.0);
+    }
+
+    /**
+     * @param scale pixel della scansione originale per ogni pixel di <code>image</code>
+     */
+    Page(File source, Mat image, double scale) {
+        this(source, image, scale, null);
+    }
+
+    /**
+     * @param registrationSkew inclinazione ricavata dai segni di registrazione
+     */
+    Page(File source, Mat image, double scale, SkewEstimate registrationSkew) {
+        this(source, image, scale, registrationSkew, 0, 0);
+    }
+
+    /**
+     * @param originX ascissa dell'angolo in alto a sinistra di <code>image</code> nella pagina intera,
+     *                in pixel di <code>image</code>
+     * @param originY ordinata dello stesso angolo
+     */
+    Page(File source, Mat image, double scale, SkewEstimate registrationSkew, int originX, int originY) {
+        this.source = source;
+        this.image = image;
+        this.scale = scale;
+        this.registrationSkew = registrationSkew;
+        this.originX = originX;
+        this.originY = originY;
+    }
+
+    public File getSource() {
+        return source;
+    }
+
+    /**
+     * @return l'immagine decodificata, ridotta alla risoluzione di lavoro se necessario
+     */
+    public Mat getImage() {
+        return image;
+    }
+
+    /**
+     * @return pixel della scansione originale per ogni pixel dell'immagine, maggiore di 1 se la
+     * pagina è stata ridotta alla risoluzione di lavoro
+     */
+    public double getScale() {
+        return scale;
+    }
+
+    /**
+     * @return inclinazione ricavata dai segni di registrazione, <code>null</code> se la pagina non è
+     * stata ritagliata ai segni
+     */
+    SkewEstimate getRegistrationSkew() {
+        return registrationSkew;
+    }
+
+    /**
+     * @return ascissa dell'immagine nella pagina intera, diversa da 0 se la pagina è stata ritagliata
+     * ai segni di registrazione
+     */
+    int getOriginX() {
+        return originX;
+    }
+
+    /**
+     * @return ordinata dell'immagine nella pagina intera
+     */
+    int getOriginY() {
+        return originY;
+    }
+
+    /**
+     * @return angolo di inclinazione in gradi, NaN se non ancora calcolato
+     */
+    public double getSkewAngle() {
+        return skewAngle;
+    }
+
+    void setSkewAngle(double skewAngle) {
+        this.skewAngle = skewAngle;
+    }
+
+    /**
+     * Libera la memoria nativa dell'immagine. La pagina non è più utilizzabile.
+     */
+    public void release() {
+        image.release();
+    }
+}
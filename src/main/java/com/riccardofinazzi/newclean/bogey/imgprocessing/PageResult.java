@@ -0,0 +1,110 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Esito dell'elaborazione di una pagina: l'elenco delle checkbox individuate oppure l'errore
+ * che ne ha impedito l'elaborazione.
+ */
+public class PageResult {
+
+    private final File file;
+    private final int page;
+    private final SkewEstimate skew;
+    private final List<CheckboxResult> checkboxes;
+    private final Exception error;
+
+    public PageResult(File file, SkewEstimate skew, List<CheckboxResult> checkboxes) {
+        this(file, 0, skew, checkboxes);
+    }
+
+    /**
+     * @param page numero della pagina all'interno di un file multipagina, da 1; 0 se il file contiene una sola pagina
+     */
+    public PageResult(File file, int page, SkewEstimate skew, List<CheckboxResult> checkboxes) {
+        this.file = file;
+        this.page = page;
+        this.skew = skew;
+        this.checkboxes = Collections.unmodifiableList(checkboxes);
+        this.error = null;
+    }
+
+    private PageResult(File file, int page, Exception error) {
+        this.file = file;
+        this.page = page;
+        this.skew = null;
+        this.checkboxes = Collections.emptyList();
+        this.error = error;
+    }
+
+    public static PageResult failed(File file, Exception error) {
+        return new PageResult(file, 0, error);
+    }
+
+    /**
+     * @param page numero della pagina all'interno di un file multipagina, da 1
+     */
+    public static PageResult failed(File file, int page, Exception error) {
+        return new PageResult(file, page, error);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return numero della pagina all'interno di un file multipagina, da 1; 0 se il file contiene una sola pagina
+     */
+    public int getPage() {
+        return page;
+    }
+
+    /**
+     * @return questo risultato riferito alla pagina <code>page</code> del file
+     */
+    PageResult withPage(int page) {
+        return isSuccess() ? new PageResult(file, page, skew, checkboxes) : new PageResult(file, page, error);
+    }
+
+    /**
+     * @return angolo di raddrizzamento applicato, in gradi
+     */
+    public double getSkewAngle() {
+        return skew == null ? 0 : skew.getAngle();
+    }
+
+    /**
+     * @return stima dell'angolo con la relativa affidabilità, <code>null</code> se la pagina non è stata elaborata
+     */
+    public SkewEstimate getSkew() {
+        return skew;
+    }
+
+    public List<CheckboxResult> getCheckboxes() {
+        return checkboxes;
+    }
+
+    /**
+     * @return l'eccezione che ha interrotto l'elaborazione, <code>null</code> se la pagina è stata elaborata
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    @Override
+    public String toString() {
+        return isSuccess()
+                ? "PageResult{file=" + file + pageSuffix() + ", skew=" + skew + ", checkboxes=" + checkboxes.size() + '}'
+                : "PageResult{file=" + file + pageSuffix() + ", error=" + error + '}';
+    }
+
+    private String pageSuffix() {
+        return page > 0 ? ", page=" + page : "";
+    }
+}
@@ -0,0 +1,920 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Lettura minima della struttura di un PDF, quanto basta per i file prodotti dagli scanner: tabella
+ * dei riferimenti incrociati (anche come stream, PDF 1.5, con le catene <code>/Prev</code>), object
+ * stream, albero delle pagine e immagini tra le risorse di ogni pagina.
+ * <p>
+ * Il contenuto delle pagine non viene interpretato: di ogni pagina si considera l'immagine più grande
+ * tra gli XObject delle sue risorse (anche dentro gli XObject di tipo form), così che loghi e
+ * immagini accessorie vengano ignorati; miniature (<code>/Thumb</code>) e maschere
+ * (<code>/SMask</code>) non sono risorse della pagina. I file cifrati non sono supportati.
+ * <p>
+ * Il file viene mappato in memoria e i dati delle immagini letti solo quando richiesti.
+ */
+final class PdfDocument {
+
+    private static final byte[] STARTXREF = "startxref".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Byte finali del file in cui cercare <code>startxref</code>
+     */
+    private static final int TRAILER_WINDOW = 1024;
+
+    /**
+     * Annidamento oltre il quale l'albero delle pagine, o degli XObject, è considerato malformato
+     */
+    private static final int MAX_DEPTH = 64;
+
+    private static final String FLATE = "FlateDecode";
+    private static final String DCT = "DCTDecode";
+
+    private static final Keyword DICTIONARY_END = new Keyword(">>");
+    private static final Keyword ARRAY_END = new Keyword("]");
+
+    private final File file;
+    private final ByteBuffer data;
+
+    /**
+     * Per numero di oggetto: tipo (0 libero, 1 in chiaro, 2 in un object stream), offset o numero
+     * dell'object stream, generazione o indice nell'object stream
+     */
+    private final Map<Integer, long[]> xref = new HashMap<>();
+    private final Map<Integer, Object> objects = new HashMap<>();
+    private Map<String, Object> trailer;
+
+    private PdfDocument(File file, ByteBuffer data) {
+        this.file = file;
+        this.data = data;
+    }
+
+    static PdfDocument open(File file) throws IOException {
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        PdfDocument document = new PdfDocument(file, data);
+        try {
+            document.readXref();
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed PDF " + file + ": " + e.getMessage(), e);
+        }
+        if (document.trailer.get("Encrypt") != null) {
+            throw new IOException("Encrypted PDF not supported: " + file);
+        }
+        return document;
+    }
+
+    /**
+     * @return per ogni pagina, nell'ordine dell'albero delle pagine, l'immagine più grande tra le sue
+     * risorse; <code>null</code> per le pagine senza immagini
+     */
+    List<Image> pageImages() throws IOException {
+        try {
+            List<Image> pages = new ArrayList<>();
+            Map<String, Object> catalog = this.dictionary(trailer.get("Root"));
+            this.walk(catalog.get("Pages"), null, pages, new HashSet<Integer>(), 0);
+            return pages;
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed PDF " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return i dati JPEG dell'immagine, decompressi se preceduti da <code>FlateDecode</code>
+     * @throws IOException se l'immagine non è codificata in JPEG
+     */
+    ByteBuffer jpegData(Image image) throws IOException {
+        if (!image.isJpeg()) {
+            throw new IOException("Not a JPEG image: " + image.getFilters());
+        }
+        if (image.filters.size() == 1) {
+            return image.stream.raw();
+        }
+        return ByteBuffer.wrap(this.decode(image.stream, image.filters.size() - 1));
+    }
+
+    private void walk(Object node, Map<String, Object> inheritedResources, List<Image> pages,
+                      Set<Integer> visited, int depth) throws IOException {
+        if (depth > MAX_DEPTH || (node instanceof Ref && !visited.add(((Ref) node).number))) {
+            throw new IOException("Loop in the page tree of " + file);
+        }
+        Map<String, Object> dictionary = this.dictionary(node);
+
+        // le risorse sono ereditate dai nodi intermedi
+        Object ownResources = dictionary.get("Resources");
+        Map<String, Object> resources = ownResources != null ? this.dictionary(ownResources) : inheritedResources;
+
+        Object kids = this.resolve(dictionary.get("Kids"));
+        if (!"Page".equals(this.resolve(dictionary.get("Type"))) && kids instanceof List) {
+            for (Object kid : (List<?>) kids) {
+                this.walk(kid, resources, pages, visited, depth + 1);
+            }
+        } else {
+            pages.add(this.largestImage(resources, null, depth));
+        }
+    }
+
+    private Image largestImage(Map<String, Object> resources, Image largest, int depth) throws IOException {
+        if (resources == null || depth > MAX_DEPTH) {
+            return largest;
+        }
+        Object xObjects = this.resolve(resources.get("XObject"));
+        if (!(xObjects instanceof Map)) {
+            return largest;
+        }
+
+        for (Object value : ((Map<?, ?>) xObjects).values()) {
+            Object xObject = this.resolve(value);
+            if (!(xObject instanceof Stream)) {
+                continue;
+            }
+            Map<String, Object> dictionary = ((Stream) xObject).dictionary;
+            Object subtype = this.resolve(dictionary.get("Subtype"));
+
+            if ("Image".equals(subtype) && !Boolean.TRUE.equals(this.resolve(dictionary.get("ImageMask")))) {
+                Image image = new Image((Stream) xObject,
+                        this.toInt(dictionary.get("Width")), this.toInt(dictionary.get("Height")),
+                        this.names(dictionary.get("Filter")));
+                if (largest == null || image.area() > largest.area()) {
+                    largest = image;
+                }
+            } else if ("Form".equals(subtype)) {
+                Object formResources = dictionary.get("Resources");
+                if (formResources != null) {
+                    largest = this.largestImage(this.dictionary(formResources), largest, depth + 1);
+                }
+            }
+        }
+        return largest;
+    }
+
+    private void readXref() throws IOException {
+        int from = Math.max(0, data.limit() - TRAILER_WINDOW);
+        int start = lastIndexOf(data, STARTXREF, from);
+        if (start < 0) {
+            throw new IOException("Missing startxref in " + file);
+        }
+        Lexer lexer = new Lexer(data, start + STARTXREF.length);
+        long next = this.toLong(lexer.readToken());
+
+        Set<Long> visited = new HashSet<>();
+        while (next >= 0) {
+            if (!visited.add(next)) {
+                throw new IOException("Loop in the cross-reference sections of " + file);
+            }
+            Map<String, Object> section;
+            lexer = new Lexer(data, this.offset(next));
+            Object token = lexer.readToken();
+            if (token instanceof Keyword && "xref".equals(((Keyword) token).value)) {
+                section = this.readXrefTable(lexer);
+                // file ibridi: gli oggetti negli object stream sono elencati in uno stream a parte
+                Object xrefStream = section.get("XRefStm");
+                if (xrefStream instanceof Long) {
+                    this.readXrefStream((Long) xrefStream);
+                }
+            } else {
+                section = this.readXrefStream(next);
+            }
+
+            // la sezione più recente è la prima letta
+            if (trailer == null) {
+                trailer = section;
+            }
+            Object previous = section.get("Prev");
+            next = previous instanceof Long ? (Long) previous : -1;
+        }
+    }
+
+    private Map<String, Object> readXrefTable(Lexer lexer) throws IOException {
+        while (true) {
+            Object token = lexer.readToken();
+            if (token instanceof Keyword && "trailer".equals(((Keyword) token).value)) {
+                return this.dictionary(lexer.readObject());
+            }
+            long first = this.toLong(token);
+            long count = this.toLong(lexer.readToken());
+            for (long k = 0; k < count; k++) {
+                long offset = this.toLong(lexer.readToken());
+                long generation = this.toLong(lexer.readToken());
+                Object type = lexer.readToken();
+                boolean inUse = type instanceof Keyword && "n".equals(((Keyword) type).value);
+                this.putXref((int) (first + k), inUse ? 1 : 0, offset, generation);
+            }
+        }
+    }
+
+    private Map<String, Object> readXrefStream(long offset) throws IOException {
+        Object object = this.readIndirect(offset, -1);
+        if (!(object instanceof Stream) || !"XRef".equals(((Stream) object).dictionary.get("Type"))) {
+            throw new IOException("Missing cross-reference section at offset " + offset + " of " + file);
+        }
+        Stream stream = (Stream) object;
+        byte[] entries = this.decode(stream, this.names(stream.dictionary.get("Filter")).size());
+
+        List<?> widthList = (List<?>) stream.dictionary.get("W");
+        int[] widths = new int[3];
+        for (int i = 0; i < 3; i++) {
+            widths[i] = this.toInt(widthList.get(i));
+        }
+        int entryLength = widths[0] + widths[1] + widths[2];
+
+        List<?> index = (List<?>) stream.dictionary.get("Index");
+        if (index == null) {
+            index = Arrays.asList(0L, stream.dictionary.get("Size"));
+        }
+
+        int position = 0;
+        for (int s = 0; s + 1 < index.size(); s += 2) {
+            int first = this.toInt(index.get(s));
+            int count = this.toInt(index.get(s + 1));
+            for (int k = 0; k < count && position + entryLength <= entries.length; k++) {
+                // senza il primo campo il tipo è 1
+                long type = widths[0] == 0 ? 1 : field(entries, position, widths[0]);
+                long second = field(entries, position + widths[0], widths[1]);
+                long third = field(entries, position + widths[0] + widths[1], widths[2]);
+                this.putXref(first + k, (int) type, second, third);
+                position += entryLength;
+            }
+        }
+        return stream.dictionary;
+    }
+
+    private static long field(byte[] entries, int position, int width) {
+        long value = 0;
+        for (int i = 0; i < width; i++) {
+            value = (value << 8) | (entries[position + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private void putXref(int number, int type, long second, long third) {
+        if (!xref.containsKey(number)) {
+            xref.put(number, new long[]{type, second, third});
+        }
+    }
+
+    private Object resolve(Object object) throws IOException {
+        int depth = 0;
+        while (object instanceof Ref) {
+            if (depth++ > MAX_DEPTH) {
+                throw new IOException("Loop of references in " + file);
+            }
+            object = this.getObject(((Ref) object).number);
+        }
+        return object;
+    }
+
+    private Object getObject(int number) throws IOException {
+        if (objects.containsKey(number)) {
+            return objects.get(number);
+        }
+
+        long[] entry = xref.get(number);
+        Object object = null;
+        if (entry != null && entry[0] == 1) {
+            // segnaposto: un riferimento circolare, ad esempio in /Length, si risolve in null
+            objects.put(number, null);
+            object = this.readIndirect(entry[1], number);
+        } else if (entry != null && entry[0] == 2) {
+            this.readObjectStream((int) entry[1]);
+            object = objects.get(number);
+        }
+        objects.put(number, object);
+        return object;
+    }
+
+    /**
+     * @param number numero atteso dell'oggetto, -1 per non verificarlo
+     */
+    private Object readIndirect(long offset, int number) throws IOException {
+        Lexer lexer = new Lexer(data, this.offset(offset));
+        long found = this.toLong(lexer.readToken());
+        lexer.readToken();
+        Object keyword = lexer.readToken();
+        if (!(keyword instanceof Keyword) || !"obj".equals(((Keyword) keyword).value)
+                || (number >= 0 && found != number)) {
+            throw new IOException("Object " + number + " not found at offset " + offset + " of " + file);
+        }
+
+        Object object = lexer.readObject();
+        if (!(object instanceof Map) || !lexer.skipKeyword("stream")) {
+            return object;
+        }
+
+        // i dati iniziano dopo il fine riga che segue la parola chiave
+        int start = lexer.position;
+        if (start < data.limit() && data.get(start) == '\r') {
+            start++;
+        }
+        if (start < data.limit() && data.get(start) == '\n') {
+            start++;
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> dictionary = (Map<String, Object>) object;
+        int length = this.toInt(dictionary.get("Length"));
+        if (length < 0 || (long) start + length > data.limit()) {
+            throw new IOException("Invalid stream length " + length + " at offset " + offset + " of " + file);
+        }
+        return new Stream(dictionary, data, start, length);
+    }
+
+    private void readObjectStream(int number) throws IOException {
+        long[] streamEntry = xref.get(number);
+        // un object stream non può essere contenuto in un altro
+        Object object = streamEntry != null && streamEntry[0] == 1 ? this.getObject(number) : null;
+        if (!(object instanceof Stream) || !"ObjStm".equals(((Stream) object).dictionary.get("Type"))) {
+            throw new IOException("Object stream " + number + " not found in " + file);
+        }
+        Stream stream = (Stream) object;
+        byte[] content = this.decode(stream, this.names(stream.dictionary.get("Filter")).size());
+        int count = this.toInt(stream.dictionary.get("N"));
+        int first = this.toInt(stream.dictionary.get("First"));
+
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        Lexer header = new Lexer(buffer, 0);
+        for (int i = 0; i < count; i++) {
+            int contained = this.toInt(header.readToken());
+            int offset = this.toInt(header.readToken());
+            long[] entry = xref.get(contained);
+            // solo gli oggetti di cui questo object stream è la versione corrente
+            if (entry != null && entry[0] == 2 && entry[1] == number && !objects.containsKey(contained)) {
+                objects.put(contained, new Lexer(buffer, first + offset).readObject());
+            }
+        }
+    }
+
+    /**
+     * Applica i primi <code>count</code> filtri dello stream; solo <code>FlateDecode</code>, con i
+     * predittori PNG
+     */
+    private byte[] decode(Stream stream, int count) throws IOException {
+        List<String> filters = this.names(stream.dictionary.get("Filter"));
+        Object parameters = this.resolve(stream.dictionary.get("DecodeParms"));
+
+        ByteBuffer raw = stream.raw();
+        byte[] bytes = new byte[raw.remaining()];
+        raw.get(bytes);
+        for (int i = 0; i < count; i++) {
+            if (!FLATE.equals(filters.get(i))) {
+                throw new IOException("Unsupported PDF filter " + filters.get(i) + " in " + file);
+            }
+            Object filterParameters = parameters instanceof List ? ((List<?>) parameters).get(i) : parameters;
+            bytes = this.unpredict(inflate(bytes), this.resolve(filterParameters));
+        }
+        return bytes;
+    }
+
+    private static byte[] inflate(byte[] compressed) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 2);
+            byte[] chunk = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(chunk);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    // stream troncato: tengo quanto decompresso
+                    break;
+                }
+                out.write(chunk, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt FlateDecode stream: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private byte[] unpredict(byte[] bytes, Object parameters) throws IOException {
+        if (!(parameters instanceof Map)) {
+            return bytes;
+        }
+        Map<?, ?> p = (Map<?, ?>) parameters;
+        int predictor = p.get("Predictor") == null ? 1 : this.toInt(p.get("Predictor"));
+        if (predictor == 1) {
+            return bytes;
+        }
+        if (predictor < 10) {
+            throw new IOException("Unsupported PDF predictor " + predictor + " in " + file);
+        }
+        int colors = p.get("Colors") == null ? 1 : this.toInt(p.get("Colors"));
+        int bits = p.get("BitsPerComponent") == null ? 8 : this.toInt(p.get("BitsPerComponent"));
+        int columns = p.get("Columns") == null ? 1 : this.toInt(p.get("Columns"));
+        int pixelBytes = Math.max(1, colors * bits / 8);
+        int rowLength = (colors * bits * columns + 7) / 8;
+
+        // ogni riga è preceduta dal tipo di predittore PNG
+        int rows = bytes.length / (rowLength + 1);
+        byte[] out = new byte[rows * rowLength];
+        for (int row = 0; row < rows; row++) {
+            int in = row * (rowLength + 1);
+            int type = bytes[in++];
+            int current = row * rowLength;
+            int previous = current - rowLength;
+            for (int i = 0; i < rowLength; i++) {
+                int left = i >= pixelBytes ? out[current + i - pixelBytes] & 0xFF : 0;
+                int up = row > 0 ? out[previous + i] & 0xFF : 0;
+                int upLeft = row > 0 && i >= pixelBytes ? out[previous + i - pixelBytes] & 0xFF : 0;
+                int predicted;
+                switch (type) {
+                    case 0:
+                        predicted = 0;
+                        break;
+                    case 1:
+                        predicted = left;
+                        break;
+                    case 2:
+                        predicted = up;
+                        break;
+                    case 3:
+                        predicted = (left + up) / 2;
+                        break;
+                    case 4:
+                        predicted = paeth(left, up, upLeft);
+                        break;
+                    default:
+                        throw new IOException("Invalid PNG predictor " + type + " in " + file);
+                }
+                out[current + i] = (byte) (bytes[in + i] + predicted);
+            }
+        }
+        return out;
+    }
+
+    private static int paeth(int left, int up, int upLeft) {
+        int estimate = left + up - upLeft;
+        int dLeft = Math.abs(estimate - left);
+        int dUp = Math.abs(estimate - up);
+        int dUpLeft = Math.abs(estimate - upLeft);
+        if (dLeft <= dUp && dLeft <= dUpLeft) {
+            return left;
+        }
+        return dUp <= dUpLeft ? up : upLeft;
+    }
+
+    private Map<String, Object> dictionary(Object object) throws IOException {
+        object = this.resolve(object);
+        if (object instanceof Stream) {
+            return ((Stream) object).dictionary;
+        }
+        if (!(object instanceof Map)) {
+            throw new IOException("Expected a dictionary in " + file + ", found " + object);
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> dictionary = (Map<String, Object>) object;
+        return dictionary;
+    }
+
+    /**
+     * @return i nomi di un valore che può essere un nome o un array di nomi, come <code>/Filter</code>
+     */
+    private List<String> names(Object object) throws IOException {
+        object = this.resolve(object);
+        if (object == null) {
+            return Collections.emptyList();
+        }
+        if (object instanceof String) {
+            return Collections.singletonList((String) object);
+        }
+        List<String> names = new ArrayList<>();
+        for (Object name : (List<?>) object) {
+            names.add((String) this.resolve(name));
+        }
+        return names;
+    }
+
+    private long toLong(Object object) throws IOException {
+        object = this.resolve(object);
+        if (!(object instanceof Number)) {
+            throw new IOException("Expected a number in " + file + ", found " + object);
+        }
+        return ((Number) object).longValue();
+    }
+
+    private int toInt(Object object) throws IOException {
+        long value = this.toLong(object);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new IOException("Number out of range in " + file + ": " + value);
+        }
+        return (int) value;
+    }
+
+    private int offset(long offset) throws IOException {
+        if (offset < 0 || offset >= data.limit()) {
+            throw new IOException("Offset " + offset + " outside of " + file);
+        }
+        return (int) offset;
+    }
+
+    private static int lastIndexOf(ByteBuffer buffer, byte[] pattern, int from) {
+        outer:
+        for (int i = buffer.limit() - pattern.length; i >= from; i--) {
+            for (int k = 0; k < pattern.length; k++) {
+                if (buffer.get(i + k) != pattern[k]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Immagine tra le risorse di una pagina
+     */
+    static final class Image {
+
+        private final Stream stream;
+        private final int width;
+        private final int height;
+        private final List<String> filters;
+
+        Image(Stream stream, int width, int height, List<String> filters) {
+            this.stream = stream;
+            this.width = width;
+            this.height = height;
+            this.filters = filters;
+        }
+
+        int getWidth() {
+            return width;
+        }
+
+        int getHeight() {
+            return height;
+        }
+
+        List<String> getFilters() {
+            return filters;
+        }
+
+        /**
+         * @return <code>true</code> se l'ultimo filtro è <code>DCTDecode</code>, preceduto al più
+         * da <code>FlateDecode</code>
+         */
+        boolean isJpeg() {
+            if (filters.isEmpty() || !DCT.equals(filters.get(filters.size() - 1))) {
+                return false;
+            }
+            for (int i = 0; i < filters.size() - 1; i++) {
+                if (!FLATE.equals(filters.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private long area() {
+            return (long) width * height;
+        }
+    }
+
+    private static final class Stream {
+
+        private final Map<String, Object> dictionary;
+        private final ByteBuffer data;
+        private final int start;
+        private final int length;
+
+        Stream(Map<String, Object> dictionary, ByteBuffer data, int start, int length) {
+            this.dictionary = dictionary;
+            this.data = data;
+            this.start = start;
+            this.length = length;
+        }
+
+        /**
+         * @return i dati dello stream così come sono nel file, lunghi <code>/Length</code>
+         */
+        ByteBuffer raw() {
+            ByteBuffer raw = data.duplicate();
+            raw.limit(start + length);
+            raw.position(start);
+            return raw.slice();
+        }
+    }
+
+    private static final class Ref {
+
+        private final int number;
+
+        Ref(int number) {
+            this.number = number;
+        }
+
+        @Override
+        public String toString() {
+            return number + " R";
+        }
+    }
+
+    private static final class Keyword {
+
+        private final String value;
+
+        Keyword(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return value;
+        }
+    }
+
+    /**
+     * Legge gli oggetti PDF: i nomi diventano {@link String} (senza la barra), le stringhe
+     * <code>byte[]</code>, gli interi {@link Long}, i reali {@link Double}, i dizionari {@link Map} e
+     * gli array {@link List}
+     */
+    private static final class Lexer {
+
+        private final ByteBuffer buffer;
+        private int position;
+
+        Lexer(ByteBuffer buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        /**
+         * Come {@link #readToken()}, ma riconosce i riferimenti <code>n g R</code>
+         */
+        Object readObject() throws IOException {
+            Object token = this.readToken();
+            if (token instanceof Long) {
+                int mark = position;
+                if (this.hasMore()) {
+                    Object generation = this.readToken();
+                    if (generation instanceof Long && this.hasMore()) {
+                        Object r = this.readToken();
+                        if (r instanceof Keyword && "R".equals(((Keyword) r).value)) {
+                            return new Ref(((Long) token).intValue());
+                        }
+                    }
+                }
+                position = mark;
+            }
+            return token;
+        }
+
+        /**
+         * @return <code>true</code> se la prossima parola chiave è <code>keyword</code>, che viene consumata
+         */
+        boolean skipKeyword(String keyword) throws IOException {
+            int mark = position;
+            if (this.hasMore()) {
+                Object token = this.readToken();
+                if (token instanceof Keyword && keyword.equals(((Keyword) token).value)) {
+                    return true;
+                }
+            }
+            position = mark;
+            return false;
+        }
+
+        private boolean hasMore() {
+            this.skipWhitespace();
+            return position < buffer.limit();
+        }
+
+        Object readToken() throws IOException {
+            this.skipWhitespace();
+            if (position >= buffer.limit()) {
+                throw new IOException("Unexpected end of PDF data");
+            }
+            int c = buffer.get(position);
+            switch (c) {
+                case '/':
+                    position++;
+                    return this.readName();
+                case '<':
+                    if (position + 1 < buffer.limit() && buffer.get(position + 1) == '<') {
+                        position += 2;
+                        return this.readDictionary();
+                    }
+                    position++;
+                    return this.readHexString();
+                case '>':
+                    if (position + 1 < buffer.limit() && buffer.get(position + 1) == '>') {
+                        position += 2;
+                        return DICTIONARY_END;
+                    }
+                    throw new IOException("Unexpected '>' at offset " + position);
+                case '[':
+                    position++;
+                    return this.readArray();
+                case ']':
+                    position++;
+                    return ARRAY_END;
+                case '(':
+                    position++;
+                    return this.readLiteralString();
+                default:
+                    return this.readRegular();
+            }
+        }
+
+        private Map<String, Object> readDictionary() throws IOException {
+            Map<String, Object> dictionary = new LinkedHashMap<>();
+            while (true) {
+                Object key = this.readObject();
+                if (key == DICTIONARY_END) {
+                    return dictionary;
+                }
+                if (!(key instanceof String)) {
+                    throw new IOException("Expected a name at offset " + position + ", found " + key);
+                }
+                Object value = this.readObject();
+                if (value == DICTIONARY_END || value == ARRAY_END) {
+                    throw new IOException("Missing value for /" + key + " at offset " + position);
+                }
+                // un valore null equivale a una chiave assente
+                if (value != null) {
+                    dictionary.put((String) key, value);
+                }
+            }
+        }
+
+        private List<Object> readArray() throws IOException {
+            List<Object> array = new ArrayList<>();
+            while (true) {
+                Object value = this.readObject();
+                if (value == ARRAY_END) {
+                    return array;
+                }
+                if (value == DICTIONARY_END) {
+                    throw new IOException("Unexpected '>>' at offset " + position);
+                }
+                array.add(value);
+            }
+        }
+
+        private String readName() {
+            StringBuilder name = new StringBuilder();
+            while (position < buffer.limit() && isRegular(buffer.get(position))) {
+                int c = buffer.get(position++) & 0xFF;
+                if (c == '#' && position + 1 < buffer.limit()) {
+                    int hi = Character.digit(buffer.get(position), 16);
+                    int lo = Character.digit(buffer.get(position + 1), 16);
+                    if (hi >= 0 && lo >= 0) {
+                        c = hi * 16 + lo;
+                        position += 2;
+                    }
+                }
+                name.append((char) c);
+            }
+            return name.toString();
+        }
+
+        private byte[] readHexString() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int high = -1;
+            while (true) {
+                if (position >= buffer.limit()) {
+                    throw new IOException("Unterminated hex string");
+                }
+                int c = buffer.get(position++);
+                if (c == '>') {
+                    break;
+                }
+                int digit = Character.digit(c, 16);
+                if (digit < 0) {
+                    continue;
+                }
+                if (high < 0) {
+                    high = digit;
+                } else {
+                    out.write(high * 16 + digit);
+                    high = -1;
+                }
+            }
+            if (high >= 0) {
+                out.write(high * 16);
+            }
+            return out.toByteArray();
+        }
+
+        /**
+         * Le sequenze di escape non vengono interpretate: le stringhe non servono alla lettura delle pagine
+         */
+        private byte[] readLiteralString() throws IOException {
+            int start = position;
+            int depth = 1;
+            while (depth > 0) {
+                if (position >= buffer.limit()) {
+                    throw new IOException("Unterminated string");
+                }
+                int c = buffer.get(position++);
+                if (c == '\\') {
+                    position++;
+                } else if (c == '(') {
+                    depth++;
+                } else if (c == ')') {
+                    depth--;
+                }
+            }
+            byte[] bytes = new byte[position - 1 - start];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(start + i);
+            }
+            return bytes;
+        }
+
+        private Object readRegular() throws IOException {
+            int start = position;
+            while (position < buffer.limit() && isRegular(buffer.get(position))) {
+                position++;
+            }
+            if (position == start) {
+                throw new IOException("Unexpected character '" + (char) buffer.get(position) + "' at offset " + position);
+            }
+            StringBuilder sb = new StringBuilder(position - start);
+            for (int i = start; i < position; i++) {
+                sb.append((char) (buffer.get(i) & 0xFF));
+            }
+            String token = sb.toString();
+
+            char first = token.charAt(0);
+            if ((first >= '0' && first <= '9') || first == '-' || first == '+' || first == '.') {
+                try {
+                    return token.indexOf('.') >= 0 ? (Object) Double.parseDouble(token) : (Object) Long.parseLong(token);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid number " + token + " at offset " + start, e);
+                }
+            }
+            switch (token) {
+                case "true":
+                    return Boolean.TRUE;
+                case "false":
+                    return Boolean.FALSE;
+                case "null":
+                    return null;
+                default:
+                    return new Keyword(token);
+            }
+        }
+
+        private void skipWhitespace() {
+            while (position < buffer.limit()) {
+                int c = buffer.get(position);
+                if (c == '%') {
+                    while (position < buffer.limit() && buffer.get(position) != '\n' && buffer.get(position) != '\r') {
+                        position++;
+                    }
+                } else if (isWhitespace(c)) {
+                    position++;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private static boolean isWhitespace(int c) {
+            return c == 0 || c == '\t' || c == '\n' || c == '\f' || c == '\r' || c == ' ';
+        }
+
+        private static boolean isRegular(int c) {
+            if (isWhitespace(c)) {
+                return false;
+            }
+            switch (c) {
+                case '(':
+                case ')':
+                case '<':
+                case '>':
+                case '[':
+                case ']':
+                case '{':
+                case '}':
+                case '/':
+                case '%':
+                    return false;
+                default:
+                    return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+/**
+ * Raccoglie tempi e contatori della pipeline.
+ * <p>
+ * Viene chiamata più volte per ogni pagina da tutti i thread di elaborazione: le implementazioni
+ * devono essere thread-safe e non allocare memoria a ogni chiamata.
+ *
+ * @see JmxPipelineMetrics
+ */
+public interface PipelineMetrics {
+
+    /**
+     * Fasi dell'elaborazione di una pagina
+     */
+    enum Stage {
+        /**
+         * Decodifica della scansione
+         */
+        DECODE,
+        /**
+         * Riduzione alla risoluzione di lavoro
+         */
+        RESIZE,
+        /**
+         * Ricerca dei segni di registrazione e ritaglio all'area attiva
+         */
+        REGISTRATION,
+        /**
+         * Calcolo dell'angolo di inclinazione
+         */
+        DESKEW_ANGLE,
+        /**
+         * Rotazione della pagina
+         */
+        ROTATION,
+        /**
+         * Scala di grigi, sfocatura e soglia adattiva
+         */
+        PREPROCESS,
+        /**
+         * Ricerca delle checkbox (o allineamento al modello del modulo)
+         */
+        DETECTION,
+        /**
+         * Calcolo del riempimento delle checkbox
+         */
+        SCORING,
+        /**
+         * Annotazione e scrittura dell'immagine di output
+         */
+        ENCODE
+    }
+
+    enum Counter {
+        /**
+         * Pagine elaborate con successo
+         */
+        PAGES,
+        /**
+         * Contorni (o componenti connesse) esaminati dalla ricerca delle checkbox
+         */
+        CANDIDATES,
+        /**
+         * Checkbox che hanno superato il filtro sulle dimensioni
+         */
+        CHECKBOXES,
+        /**
+         * Pagine in cui la stima dell'inclinazione è stata ricalcolata con la trasformata completa
+         * oppure scartata perché non affidabile
+         */
+        DESKEW_FALLBACKS,
+        /**
+         * Pagine su cui non sono stati trovati i segni di registrazione, elaborate per intero
+         */
+        REGISTRATION_FALLBACKS,
+        /**
+         * Pagine non elaborate per un errore
+         */
+        FAILURES,
+        /**
+         * Pagine il cui risultato è stato preso da {@link ResultCache} senza elaborarle
+         */
+        CACHE_HITS,
+        /**
+         * Pagine elaborate riutilizzando l'angolo di inclinazione salvato in {@link ResultCache}
+         */
+        DESKEW_CACHE_HITS
+    }
+
+    /**
+     * Non registra nulla
+     */
+    PipelineMetrics NOOP = new PipelineMetrics() {
+        @Override
+        public void record(Stage stage, long nanos) {
+        }
+
+        @Override
+        public void increment(Counter counter, long delta) {
+        }
+    };
+
+    /**
+     * @param stage fase
+     * @param nanos durata in nanosecondi
+     */
+    void record(Stage stage, long nanos);
+
+    /**
+     * @param counter contatore
+     * @param delta   incremento
+     */
+    void increment(Counter counter, long delta);
+}
@@ -0,0 +1,25 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Vista JMX di {@link JmxPipelineMetrics}
+ */
+public interface PipelineMetricsMXBean {
+
+    /**
+     * @return valore di ogni {@link PipelineMetrics.Counter}
+     */
+    Map<String, Long> getCounters();
+
+    /**
+     * @return statistiche dei tempi di ogni {@link PipelineMetrics.Stage}
+     */
+    List<StageStatistics> getStages();
+
+    /**
+     * Azzera tempi e contatori
+     */
+    void reset();
+}
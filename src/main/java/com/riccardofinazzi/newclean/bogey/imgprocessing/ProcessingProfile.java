@@ -0,0 +1,302 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import java.util.Properties;
+
+/**
+ * Parametri di riconoscimento di un tipo di modulo: binarizzazione, dimensione delle checkbox,
+ * margine escluso dal calcolo del riempimento, soglia di riempimento e dimensione dei segni di
+ * registrazione.
+ * <p>
+ * Immutabile: viene risolto una volta sola, ad esempio dalle properties dell'applicazione, e poi
+ * passato a ogni pagina. Pagine di moduli diversi possono essere elaborate contemporaneamente
+ * dallo stesso {@link ImageProcessor}, ciascuna con il proprio profilo.
+ * <pre>
+ * ProcessingProfile timesheet = ProcessingProfile.builder("timesheet").fillThreshold(25).build();
+ * processor.evaluateCheckboxes(source, null, null, timesheet);
+ * </pre>
+ */
+public final class ProcessingProfile {
+
+    /**
+     * I valori usati finora per i fogli presenza
+     */
+    public static final ProcessingProfile DEFAULT = builder("default").build();
+
+    private final String name;
+    private final int blurSize;
+    private final int thresholdBlockSize;
+    private final double thresholdC;
+    private final int minBoxSize;
+    private final int maxBoxSize;
+    private final int insetLeading;
+    private final int insetTrailing;
+    private final float fillThreshold;
+    private final int minMarkSize;
+    private final int maxMarkSize;
+
+    private ProcessingProfile(Builder builder) {
+        this.name = builder.name;
+        this.blurSize = builder.blurSize;
+        this.thresholdBlockSize = builder.thresholdBlockSize;
+        this.thresholdC = builder.thresholdC;
+        this.minBoxSize = builder.minBoxSize;
+        this.maxBoxSize = builder.maxBoxSize;
+        this.insetLeading = builder.insetLeading;
+        this.insetTrailing = builder.insetTrailing;
+        this.fillThreshold = builder.fillThreshold;
+        this.minMarkSize = builder.minMarkSize;
+        this.maxMarkSize = builder.maxMarkSize;
+    }
+
+    public static Builder builder(String name) {
+        return new Builder(name);
+    }
+
+    /**
+     * @return un builder con i valori di questo profilo
+     */
+    public Builder toBuilder() {
+        return new Builder(name)
+                .blurSize(blurSize)
+                .threshold(thresholdBlockSize, thresholdC)
+                .boxSize(minBoxSize, maxBoxSize)
+                .inset(insetLeading, insetTrailing)
+                .fillThreshold(fillThreshold)
+                .markSize(minMarkSize, maxMarkSize);
+    }
+
+    /**
+     * Legge il profilo dalle properties con prefisso <code>&lt;prefix&gt;.</code>; le chiavi assenti
+     * prendono il valore di {@link #DEFAULT}:
+     * <pre>
+     * timesheet.blur.size=5
+     * timesheet.threshold.block.size=7
+     * timesheet.threshold.c=5
+     * timesheet.box.min=27
+     * timesheet.box.max=32
+     * timesheet.inset.leading=7
+     * timesheet.inset.trailing=8
+     * timesheet.fill.threshold=30
+     * timesheet.mark.min=20
+     * timesheet.mark.max=80
+     * </pre>
+     *
+     * @param prefix prefisso delle chiavi, diventa anche il nome del profilo
+     * @throws IllegalArgumentException se un valore non è valido
+     */
+    public static ProcessingProfile fromProperties(Properties p, String prefix) {
+        ProcessingProfile d = DEFAULT;
+        String k = prefix + ".";
+        try {
+            return builder(prefix)
+                    .blurSize(Integer.parseInt(p.getProperty(k + "blur.size", String.valueOf(d.blurSize)).trim()))
+                    .threshold(Integer.parseInt(p.getProperty(k + "threshold.block.size", String.valueOf(d.thresholdBlockSize)).trim()),
+                            Double.parseDouble(p.getProperty(k + "threshold.c", String.valueOf(d.thresholdC)).trim()))
+                    .boxSize(Integer.parseInt(p.getProperty(k + "box.min", String.valueOf(d.minBoxSize)).trim()),
+                            Integer.parseInt(p.getProperty(k + "box.max", String.valueOf(d.maxBoxSize)).trim()))
+                    .inset(Integer.parseInt(p.getProperty(k + "inset.leading", String.valueOf(d.insetLeading)).trim()),
+                            Integer.parseInt(p.getProperty(k + "inset.trailing", String.valueOf(d.insetTrailing)).trim()))
+                    .fillThreshold(Float.parseFloat(p.getProperty(k + "fill.threshold", String.valueOf(d.fillThreshold)).trim()))
+                    .markSize(Integer.parseInt(p.getProperty(k + "mark.min", String.valueOf(d.minMarkSize)).trim()),
+                            Integer.parseInt(p.getProperty(k + "mark.max", String.valueOf(d.maxMarkSize)).trim()))
+                    .build();
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid processing profile " + prefix + ": " + e.getMessage(), e);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return lato del kernel della sfocatura gaussiana
+     */
+    public int getBlurSize() {
+        return blurSize;
+    }
+
+    /**
+     * @return lato dell'intorno della soglia adattiva
+     */
+    public int getThresholdBlockSize() {
+        return thresholdBlockSize;
+    }
+
+    /**
+     * @return costante sottratta alla media dell'intorno dalla soglia adattiva
+     */
+    public double getThresholdC() {
+        return thresholdC;
+    }
+
+    /**
+     * @return lato minimo di una checkbox, escluso
+     */
+    public int getMinBoxSize() {
+        return minBoxSize;
+    }
+
+    /**
+     * @return lato massimo di una checkbox, escluso
+     */
+    public int getMaxBoxSize() {
+        return maxBoxSize;
+    }
+
+    /**
+     * @return pixel del bordo esclusi dal calcolo del riempimento, a sinistra e in alto
+     */
+    public int getInsetLeading() {
+        return insetLeading;
+    }
+
+    /**
+     * @return pixel del bordo esclusi dal calcolo del riempimento, a destra e in basso
+     */
+    public int getInsetTrailing() {
+        return insetTrailing;
+    }
+
+    /**
+     * @return percentuale di pixel marcati oltre la quale una checkbox è considerata selezionata
+     */
+    public float getFillThreshold() {
+        return fillThreshold;
+    }
+
+    /**
+     * @return lato minimo di un segno di registrazione
+     * @see RegistrationMode#CORNER_MARKS
+     */
+    public int getMinMarkSize() {
+        return minMarkSize;
+    }
+
+    /**
+     * @return lato massimo di un segno di registrazione
+     * @see RegistrationMode#CORNER_MARKS
+     */
+    public int getMaxMarkSize() {
+        return maxMarkSize;
+    }
+
+    /**
+     * Impronta dei parametri da cui dipendono le checkbox trovate e la loro percentuale di
+     * riempimento, per la {@link ResultCache}. La soglia di riempimento non ne fa parte: lo stato
+     * delle checkbox viene ricalcolato dalle percentuali.
+     */
+    String fingerprint() {
+        return "blur" + blurSize + ".block" + thresholdBlockSize + ".c" + thresholdC
+                + ".size" + minBoxSize + "-" + maxBoxSize + ".inset" + insetLeading + "-" + insetTrailing
+                + ".mark" + minMarkSize + "-" + maxMarkSize;
+    }
+
+    @Override
+    public String toString() {
+        return "ProcessingProfile{name=" + name + ", " + fingerprint() + ", fill=" + fillThreshold + '}';
+    }
+
+    public static final class Builder {
+
+        private final String name;
+        private int blurSize = 5;
+        private int thresholdBlockSize = 7;
+        private double thresholdC = 5;
+        private int minBoxSize = 27;
+        private int maxBoxSize = 32;
+        private int insetLeading = 7;
+        private int insetTrailing = 8;
+        private float fillThreshold = 30.0F;
+        private int minMarkSize = 20;
+        private int maxMarkSize = 80;
+
+        private Builder(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @param size lato del kernel della sfocatura gaussiana, dispari
+         */
+        public Builder blurSize(int size) {
+            this.blurSize = size;
+            return this;
+        }
+
+        /**
+         * @param blockSize lato dell'intorno della soglia adattiva, dispari e maggiore di 1
+         * @param c         costante sottratta alla media dell'intorno
+         */
+        public Builder threshold(int blockSize, double c) {
+            this.thresholdBlockSize = blockSize;
+            this.thresholdC = c;
+            return this;
+        }
+
+        /**
+         * @param min lato minimo di una checkbox, escluso
+         * @param max lato massimo di una checkbox, escluso
+         */
+        public Builder boxSize(int min, int max) {
+            this.minBoxSize = min;
+            this.maxBoxSize = max;
+            return this;
+        }
+
+        /**
+         * @param leading  pixel del bordo esclusi a sinistra e in alto
+         * @param trailing pixel del bordo esclusi a destra e in basso
+         */
+        public Builder inset(int leading, int trailing) {
+            this.insetLeading = leading;
+            this.insetTrailing = trailing;
+            return this;
+        }
+
+        /**
+         * @param fillThreshold percentuale di pixel marcati oltre la quale una checkbox è selezionata
+         */
+        public Builder fillThreshold(float fillThreshold) {
+            this.fillThreshold = fillThreshold;
+            return this;
+        }
+
+        /**
+         * @param min lato minimo di un segno di registrazione, come lato del quadrato di pari area
+         * @param max lato massimo di un segno di registrazione
+         */
+        public Builder markSize(int min, int max) {
+            this.minMarkSize = min;
+            this.maxMarkSize = max;
+            return this;
+        }
+
+        /**
+         * @throws IllegalArgumentException se i parametri non sono validi
+         */
+        public ProcessingProfile build() {
+            if (name == null || !name.matches("[\\w.-]+")) {
+                throw new IllegalArgumentException("Invalid profile name: " + name);
+            }
+            if (blurSize < 1 || blurSize % 2 == 0) {
+                throw new IllegalArgumentException("blurSize must be odd and positive: " + blurSize);
+            }
+            if (thresholdBlockSize < 3 || thresholdBlockSize % 2 == 0) {
+                throw new IllegalArgumentException("thresholdBlockSize must be odd and greater than 1: " + thresholdBlockSize);
+            }
+            if (minBoxSize < 0 || maxBoxSize <= minBoxSize + 1) {
+                throw new IllegalArgumentException("Invalid box size range: " + minBoxSize + "-" + maxBoxSize);
+            }
+            if (insetLeading < 0 || insetTrailing < 0) {
+                throw new IllegalArgumentException("Invalid inset: " + insetLeading + "-" + insetTrailing);
+            }
+            if (minMarkSize < 1 || maxMarkSize < minMarkSize) {
+                throw new IllegalArgumentException("Invalid mark size range: " + minMarkSize + "-" + maxMarkSize);
+            }
+            if (fillThreshold < 0 || fillThreshold > 100) {
+                throw new IllegalArgumentException("fillThreshold must be between 0 and 100: " + fillThreshold);
+            }
+            return new ProcessingProfile(this);
+        }
+    }
+}
@@ -2,14 +2,19 @@ package com.riccardofinazzi.newclean.bogey.imgprocessing;
 
 import org.apache.commons.imaging.ImageReadException;
 import org.apache.commons.imaging.Imaging;
+import org.opencv.core.Mat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Classe di util fatta e finita per determinare l'angolo di inclinazione di una immagine secondo la trasformata di Radon
@@ -21,7 +26,9 @@ public class RadonDeskewer {
     private RadonDeskewer() {}
 
     /**
-     * Unico metodo pubblico
+     * Calcola l'angolo decodificando il file
+     *
+     * @see #calculateAngle(Mat)
      */
     public static double calculateAngle(File file) throws IOException, ImageReadException {
 
@@ -33,11 +40,214 @@ public class RadonDeskewer {
         g.drawImage(image, 0, 0, null);
         g.dispose();
 
-        skewRadians = findSkew(black);
+        skewRadians = findSkew(((DataBufferByte) black.getRaster().getDataBuffer()).getData(),
+                black.getWidth(), black.getHeight());
         skewAngle = -57.295779513082320876798154814105 * skewRadians;
         return skewAngle;
     }
 
+    /**
+     * Calcola l'angolo su di un'immagine in memoria, decodificandola in scala di grigi
+     *
+     * @see #calculateAngle(Mat)
+     */
+    public static double calculateAngle(ImageSource source) throws IOException {
+        Mat image = source.decode(ImageProcessor.LOAD_GRAYSCALE);
+        try {
+            return calculateAngle(image);
+        } finally {
+            image.release();
+        }
+    }
+
+    /**
+     * Come {@link #estimateAngle(Mat, DeskewMode)}, su di un'immagine in memoria
+     */
+    public static SkewEstimate estimateAngle(ImageSource source, DeskewMode mode) throws IOException {
+        Mat image = source.decode(ImageProcessor.LOAD_GRAYSCALE);
+        try {
+            return estimateAngle(image, mode);
+        } finally {
+            image.release();
+        }
+    }
+
+    /**
+     * Calcola l'angolo su di una immagine già decodificata, senza rileggere il file
+     *
+     * @param image immagine CV_8UC3 (BGR) o CV_8UC1
+     * @return angolo di inclinazione in gradi
+     */
+    public static double calculateAngle(Mat image) {
+        return calculateAngle(BinaryPage.of(image, 128));
+    }
+
+    /**
+     * Calcola l'angolo su di una pagina già binarizzata
+     *
+     * @return angolo di inclinazione in gradi
+     */
+    public static double calculateAngle(BinaryPage page) {
+        return -57.295779513082320876798154814105 * skew(page.toBytes(), page.getWidth(), page.getHeight());
+    }
+
+    /**
+     * Come {@link #calculateAngle(Mat)}, ma restituisce anche l'affidabilità della stima e permette
+     * di scegliere la strategia di calcolo.
+     *
+     * @param image immagine CV_8UC3 (BGR) o CV_8UC1
+     * @param mode  {@link DeskewMode#EXACT} per la trasformata completa,
+     *              {@link DeskewMode#COARSE_TO_FINE} per la stima a risoluzione ridotta
+     */
+    public static SkewEstimate estimateAngle(Mat image, DeskewMode mode) {
+        return estimateAngle(image, mode, null);
+    }
+
+    /**
+     * Come {@link #estimateAngle(Mat, DeskewMode)}, con gli array di lavoro del thread corrente
+     *
+     * @param buffers buffer del thread corrente, <code>null</code> per allocare nuovi array
+     */
+    static SkewEstimate estimateAngle(Mat image, DeskewMode mode, WorkBuffers buffers) {
+        return estimateAngle(BinaryPage.of(image, 128, buffers), mode, buffers);
+    }
+
+    /**
+     * Come {@link #estimateAngle(Mat, DeskewMode)}, su di una pagina già binarizzata
+     */
+    public static SkewEstimate estimateAngle(BinaryPage page, DeskewMode mode) {
+        return estimateAngle(page, mode, null);
+    }
+
+    static SkewEstimate estimateAngle(BinaryPage page, DeskewMode mode, WorkBuffers buffers) {
+        final int width = page.getWidth();
+        final int height = page.getHeight();
+        // il layout della pagina è già quello della trasformata
+        final int size = getByteWidth(width) * height;
+        final byte[] data = page.toBytes(buffers != null ? buffers.transformArray(size) : new byte[size]);
+
+        if (mode == DeskewMode.EXACT || height < 2 * COARSE_FACTOR) {
+            final Peak peak = radonPeak(data, width, height);
+            final double radians = peak.isReliable() ? Math.atan((double) peak.iskew / (8 * peak.w2)) : 0;
+            return new SkewEstimate(-57.295779513082320876798154814105 * radians, peak.confidence(), false);
+        }
+
+        return coarseToFine(data, width, height, buffers);
+    }
+
+    /**
+     * Fattore di decimazione verticale della stima grossolana
+     */
+    private static final int COARSE_FACTOR = 4;
+
+    /**
+     * Semiampiezza della finestra di raffinamento, in passi della trasformata a piena risoluzione.
+     * La stima grossolana può discostarsi di un paio di passi decimati da quella completa.
+     */
+    private static final int REFINE_WINDOW = 2 * COARSE_FACTOR;
+
+    /**
+     * Stima l'angolo su un'immagine con {@link #COARSE_FACTOR} volte meno righe, poi lo raffina a
+     * piena risoluzione solo nell'intorno dell'angolo trovato.
+     * <p>
+     * Accorpando le righe la pendenza delle righe di testo si riduce dello stesso fattore, quindi la
+     * stima grossolana cade solo su un passo ogni {@link #COARSE_FACTOR} della trasformata completa:
+     * il raffinamento, che costa {@link #REFINE_WINDOW} volte 2 + 1 profili, viene quindi eseguito
+     * sempre. L'affidabilità restituita è quella della stima grossolana, su una scala diversa da
+     * quella della trasformata completa (circa un quarto), per cui non viene usata come soglia.
+     * <p>
+     * Errore atteso rispetto a {@link DeskewMode#EXACT}: uno o due passi della trasformata completa,
+     * cioè <code>atan(1 / (8 * w2))</code> gradi ciascuno, dove <code>w2</code> è la larghezza in byte
+     * arrotondata alla potenza di 2 (circa 0.03° per un A4 a 200 dpi).
+     */
+    private static SkewEstimate coarseToFine(final byte[] data, final int width, final int height,
+                                             final WorkBuffers buffers) {
+        final int byteWidth = getByteWidth(width);
+        final int coarseHeight = height / COARSE_FACTOR;
+
+        // accorpa COARSE_FACTOR righe in una (OR), così le linee sottili non si perdono
+        final int size = coarseHeight * byteWidth;
+        final byte[] coarse = buffers != null ? buffers.coarseArray(size) : new byte[size];
+        Arrays.fill(coarse, 0, size, (byte) 0);
+        for (int row = 0; row < coarseHeight * COARSE_FACTOR; row++) {
+            final int src = row * byteWidth;
+            final int dst = (row / COARSE_FACTOR) * byteWidth;
+            for (int col = 0; col < byteWidth; col++) {
+                coarse[dst + col] |= data[src + col];
+            }
+        }
+
+        final Peak peak = radonPeak(coarse, width, coarseHeight);
+
+        // nessun picco sull'immagine decimata (pagina quasi vuota, immagine piccola): trasformata completa
+        if (!peak.isReliable()) {
+            final Peak full = radonPeak(data, width, height);
+            final double radians = full.isReliable() ? Math.atan((double) full.iskew / (8 * full.w2)) : 0;
+            return new SkewEstimate(-57.295779513082320876798154814105 * radians, full.confidence(), true, true);
+        }
+
+        final int coarseSkew = peak.iskew * COARSE_FACTOR;
+        final int iskew = refine(data, width, height, peak.w2, coarseSkew - REFINE_WINDOW, coarseSkew + REFINE_WINDOW);
+
+        final double radians = Math.atan((double) iskew / (8 * peak.w2));
+        return new SkewEstimate(-57.295779513082320876798154814105 * radians, peak.confidence(), true);
+    }
+
+    /**
+     * Cerca la pendenza più nitida nell'intervallo <code>[from, to]</code> a piena risoluzione.
+     * Per ogni pendenza candidata le colonne di byte vengono traslate verticalmente e sommate in un
+     * profilo per riga, valutato con la stessa somma dei quadrati delle differenze della trasformata.
+     *
+     * @return la pendenza (in righe su <code>w2</code> colonne di byte) con nitidezza massima
+     */
+    private static int refine(final byte[] data, final int width, final int height, final int w2,
+                              final int from, final int to) {
+        final int w = getByteWidth(width);
+        final int h = height;
+
+        final Scratch scratch = Scratch.acquire(Math.max(h * w, h));
+        try {
+            // conteggi per colonna di byte, memorizzati per colonna come nella trasformata
+            final int[] counts = scratch.p1;
+            for (int row = 0; row < h; row++) {
+                final int scanlinePosition = row * w;
+                for (int column = 0; column < w; column++) {
+                    counts[h * column + row] = BitUtils.bitcount_[data[scanlinePosition + column] & 0xFF];
+                }
+            }
+
+            final int[] profile = scratch.p2;
+            int best = 0;
+            long bestSharpness = -1;
+            for (int iskew = from; iskew <= to; iskew++) {
+                Arrays.fill(profile, 0, h, 0);
+                for (int column = 0; column < w; column++) {
+                    // una pendenza negativa scende verso destra
+                    final int offset = (int) Math.round(-(double) iskew * column / w2);
+                    final int col = h * column;
+                    final int first = Math.max(0, -offset);
+                    final int last = Math.min(h, h - offset);
+                    for (int row = first; row < last; row++) {
+                        profile[row] += counts[col + row + offset];
+                    }
+                }
+
+                long acc = 0;
+                for (int row = 0; row + 1 < h; row++) {
+                    final long diff = profile[row] - profile[row + 1];
+                    acc += diff * diff;
+                }
+                if (acc > bestSharpness) {
+                    bestSharpness = acc;
+                    best = iskew;
+                }
+            }
+            return best;
+        } finally {
+            Scratch.release(scratch);
+        }
+    }
+
     private static int getByteWidth(final int width) {
         return (width + 7) / 8;
     }
@@ -69,103 +279,248 @@ public class RadonDeskewer {
         }
     }
 
-    private static double findSkew(final BufferedImage img) {
-        final DataBuffer buffer = img.getRaster().getDataBuffer();
-        final int byteWidth = getByteWidth(img.getWidth());
-        final int padmask = 0xFF << ((img.getWidth() + 7) % 8);
+    /**
+     * Libera le tabelle di lavoro della trasformata tenute per le pagine successive. Da chiamare a
+     * fine lotto: le tabelle di una pagina A4 occupano decine di MB.
+     */
+    public static void releaseScratch() {
+        Scratch.clear();
+    }
+
+    /**
+     * Tabelle di lavoro della trasformata, riutilizzate tra una pagina e l'altra.
+     * <p>
+     * Le tabelle libere stanno in un'unica pila condivisa da tutti i thread, non legata ai thread
+     * del fork/join (che vivono quanto la JVM): ne restano al massimo {@link #MAX_POOLED}, le altre
+     * vengono lasciate al GC, e {@link #releaseScratch()} le libera tutte. Una tabella in uso non è
+     * mai nella pila, per cui anche la passata di segno opposto eseguita dallo stesso thread mentre
+     * attende i propri sotto-task (work stealing) riceve tabelle diverse.
+     */
+    private static class Scratch {
+
+        /**
+         * Due passate, di segno opposto, per ogni pagina elaborata in parallelo
+         */
+        private static final int MAX_POOLED = 2 * Runtime.getRuntime().availableProcessors();
+
+        private static final ArrayDeque<Scratch> POOL = new ArrayDeque<>();
+
+        int[] p1 = new int[0];
+        int[] p2 = new int[0];
+
+        static Scratch acquire(final int size) {
+            Scratch scratch;
+            synchronized (POOL) {
+                scratch = POOL.poll();
+            }
+            if (scratch == null) {
+                scratch = new Scratch();
+            }
+            if (scratch.p1.length < size) {
+                // le tabelle crescono solo: dopo le prime pagine non si alloca più nulla
+                scratch.p1 = new int[size];
+                scratch.p2 = new int[size];
+            }
+            return scratch;
+        }
+
+        static void release(final Scratch scratch) {
+            synchronized (POOL) {
+                if (POOL.size() < MAX_POOLED) {
+                    POOL.push(scratch);
+                }
+            }
+        }
+
+        static void clear() {
+            synchronized (POOL) {
+                POOL.clear();
+            }
+        }
+    }
+
+    /**
+     * Numero indicativo di celle elaborate da ciascun task del fork/join
+     */
+    private static final int TASK_CELLS = 1 << 16;
+
+    /**
+     * @param data   immagine a 1 bit per pixel (bianco = 1, bit più significativo a sinistra),
+     *               righe di {@link #getByteWidth(int)} byte. Viene modificata.
+     * @param width  larghezza in pixel
+     * @param height altezza in pixel
+     */
+    private static double findSkew(final byte[] data, final int width, final int height) {
+        prepare(data, width, height);
+        return skew(data, width, height);
+    }
+
+    /**
+     * @param data immagine già nel formato della trasformata (vedi {@link #prepare(byte[], int, int)})
+     * @return angolo di inclinazione in radianti, 0 se non c'è un picco affidabile
+     */
+    private static double skew(final byte[] data, final int width, final int height) {
+        final Peak peak = radonPeak(data, width, height);
+        if (!peak.isReliable()) {
+            return 0;
+        }
+        return Math.atan((double) peak.iskew / (8 * peak.w2));
+    }
+
+    /**
+     * Porta l'immagine nel formato della trasformata: nero = 1, bit meno significativo a sinistra
+     */
+    private static void prepare(final byte[] data, final int width, final int height) {
+        final int byteWidth = getByteWidth(width);
+        final int padmask = 0xFF << ((width + 7) % 8);
         int elementIndex = 0;
-        for (int row = 0; row < img.getHeight(); row++) {
+        for (int row = 0; row < height; row++) {
             for (int col = 0; col < byteWidth; col++) {
-                int elem = buffer.getElem(elementIndex);
+                int elem = data[elementIndex] & 0xFF;
                 elem ^= 0xff;// invert colors
-                elem = BitUtils.invbits_[elem]; // Change the bit order
-                buffer.setElem(elementIndex, elem);
+                data[elementIndex] = (byte) BitUtils.invbits_[elem]; // Change the bit order
                 elementIndex++;
             }
-            final int lastElement = buffer.getElem(elementIndex - 1) & padmask;
-            buffer.setElem(elementIndex - 1, lastElement); // Zero trailing bits
+            data[elementIndex - 1] = (byte) (data[elementIndex - 1] & padmask); // Zero trailing bits
+        }
+    }
+
+    /**
+     * Picco della tabella di nitidezza
+     */
+    private static class Peak {
+        final int w2;
+        final int h;
+        final int iskew;
+        final int vmax;
+        final double sum;
+
+        Peak(final int w2, final int h, final int iskew, final int vmax, final double sum) {
+            this.w2 = w2;
+            this.h = h;
+            this.iskew = iskew;
+            this.vmax = vmax;
+            this.sum = sum;
+        }
+
+        /**
+         * @return rapporto tra il picco e la nitidezza media per riga
+         */
+        double confidence() {
+            return sum == 0 ? 0 : (double) vmax * h / sum;
+        }
+
+        boolean isReliable() {
+            return vmax > 3 * sum / h; // Heuristics !!!
         }
-        final int w2 = next_pow2(byteWidth);
+    }
+
+    /**
+     * Trasformata completa su un'immagine già preparata con {@link #prepare(byte[], int, int)}
+     */
+    private static Peak radonPeak(final byte[] data, final int width, final int height) {
+        final int w2 = next_pow2(getByteWidth(width));
         final int ssize = 2 * w2 - 1; // Size of sharpness table
-        final int sharpness[] = new int[ssize];
-        radon(img.getWidth(), img.getHeight(), buffer, 1, sharpness);
-        radon(img.getWidth(), img.getHeight(), buffer, -1, sharpness);
+
+        // ogni passata scrive la propria tabella, così le due passate possono girare in parallelo
+        final int[] negative = new int[w2];
+        final int[] positive = new int[w2];
+        ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                invokeAll(new RadonTask(data, width, height, 1, positive),
+                        new RadonTask(data, width, height, -1, negative));
+            }
+        });
+
         int i, imax = 0;
         int vmax = 0;
         double sum = 0.;
         for (i = 0; i < ssize; i++) {
-            final int s = sharpness[i];
+            // la colonna 0 è comune ai due segni: vale quella del segno negativo, calcolata per ultima
+            final int s = i <= w2 - 1 ? negative[w2 - 1 - i] : positive[i - w2 + 1];
             if (s > vmax) {
                 imax = i;
                 vmax = s;
             }
             sum += s;
         }
-        final int h = img.getHeight();
-        if (vmax <= 3 * sum / h) { // Heuristics !!!
-            return 0;
-        }
-        final double iskew = imax - w2 + 1;
-        return Math.atan(iskew / (8 * w2));
+        return new Peak(w2, height, imax - w2 + 1, vmax, sum);
     }
 
-    private static void radon(final int width, final int height, final DataBuffer buffer, final int sign,
-                      final int sharpness[]) {
+    /**
+     * Una passata della trasformata per un segno
+     */
+    private static class RadonTask extends RecursiveAction {
 
-        int[] p1_, p2_; // Stored columnwise
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] data;
+        private final int width;
+        private final int height;
+        private final int sign;
+        private final int[] sharpness;
+
+        RadonTask(final byte[] data, final int width, final int height, final int sign, final int[] sharpness) {
+            this.data = data;
+            this.width = width;
+            this.height = height;
+            this.sign = sign;
+            this.sharpness = sharpness;
+        }
+
+        @Override
+        protected void compute() {
+            final int w2 = next_pow2(getByteWidth(width));
+            final Scratch scratch = Scratch.acquire(height * w2);
+            try {
+                radon(width, height, data, sign, sharpness, scratch);
+            } finally {
+                Scratch.release(scratch);
+            }
+        }
+    }
+
+    /**
+     * @param sharpness tabella di <code>w2</code> elementi, indicizzata per colonna
+     */
+    private static void radon(final int width, final int height, final byte[] data, final int sign,
+                              final int[] sharpness, final Scratch scratch) {
 
         final int w2 = next_pow2(getByteWidth(width));
         final int w = getByteWidth(width);
         final int h = height;
 
-        final int s = h * w2;
-        p1_ = new int[s];
-        p2_ = new int[s];
+        final int[] p1_ = scratch.p1; // Stored columnwise
+        final int[] p2_ = scratch.p2;
+
         // Fill in the first table
         int row, column;
-        int scanlinePosition = 0;
+        int scanlinePosition;
         for (row = 0; row < h; row++) {
             scanlinePosition = row * w;
             for (column = 0; column < w; column++) {
                 if (sign > 0) {
-                    final int b = buffer.getElem(0, scanlinePosition + w - 1 - column);
+                    final int b = data[scanlinePosition + w - 1 - column] & 0xFF;
                     p1_[h * column + row] = BitUtils.bitcount_[b];
                 } else {
-                    final int b = buffer.getElem(0, scanlinePosition + column);
+                    final int b = data[scanlinePosition + column] & 0xFF;
                     p1_[h * column + row] = BitUtils.bitcount_[b];
                 }
             }
         }
+        // le tabelle arrivano dal pool: le colonne oltre la larghezza vanno azzerate
+        Arrays.fill(p1_, h * w, h * w2, 0);
 
         int[] x1 = p1_;
         int[] x2 = p2_;
         // Iterate
         int step = 1;
         for (; ; ) {
-            int i;
-            for (i = 0; i < w2; i += 2 * step) {
-                int j;
-                for (j = 0; j < step; j++) {
-                    // Columns-sources:
-                    final int s1 = h * (i + j);// x1 pointer
-                    final int s2 = h * (i + j + step); // x1 pointer
-
-                    // Columns-targets:
-                    final int t1 = h * (i + 2 * j); // x2 pointer
-                    final int t2 = h * (i + 2 * j + 1); // x2 pointer
-                    int m;
-                    for (m = 0; m < h; m++) {
-                        x2[t1 + m] = x1[s1 + m];
-                        x2[t2 + m] = x1[s1 + m];
-                        if (m + j < h) {
-                            x2[t1 + m] += x1[s2 + m + j];
-                        }
-                        if (m + j + 1 < h) {
-                            x2[t2 + m] += x1[s2 + m + j + 1];
-                        }
-                    }
-                }
-            }
+            // le coppie di colonne di ciascun passo sono indipendenti: le divido tra più task
+            new ButterflyTask(x1, x2, h, step, 0, w2 / 2, Math.max(1, TASK_CELLS / (2 * h))).invoke();
 
             // Swap the tables:
             final int[] aux = x1;
@@ -185,7 +540,70 @@ public class RadonDeskewer {
                 final int diff = x1[col + row] - x1[col + row + 1];
                 acc += diff * diff;
             }
-            sharpness[w2 - 1 + sign * column] = acc;
+            sharpness[column] = acc;
+        }
+    }
+
+    /**
+     * Un passo della butterfly sulle coppie di colonne <code>[from, to)</code>.
+     * La coppia <code>k</code> corrisponde al blocco <code>i = (k / step) * 2 * step</code>
+     * e alla colonna <code>j = k % step</code> all'interno del blocco.
+     */
+    private static class ButterflyTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] x1;
+        private final int[] x2;
+        private final int h;
+        private final int step;
+        private final int from;
+        private final int to;
+        private final int threshold;
+
+        ButterflyTask(final int[] x1, final int[] x2, final int h, final int step,
+                      final int from, final int to, final int threshold) {
+            this.x1 = x1;
+            this.x2 = x2;
+            this.h = h;
+            this.step = step;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > threshold) {
+                final int mid = (from + to) >>> 1;
+                invokeAll(new ButterflyTask(x1, x2, h, step, from, mid, threshold),
+                        new ButterflyTask(x1, x2, h, step, mid, to, threshold));
+                return;
+            }
+
+            for (int k = from; k < to; k++) {
+                final int i = (k / step) * 2 * step;
+                final int j = k % step;
+
+                // Columns-sources:
+                final int s1 = h * (i + j);// x1 pointer
+                final int s2 = h * (i + j + step); // x1 pointer
+
+                // Columns-targets:
+                final int t1 = h * (i + 2 * j); // x2 pointer
+                final int t2 = h * (i + 2 * j + 1); // x2 pointer
+                int m;
+                for (m = 0; m < h; m++) {
+                    x2[t1 + m] = x1[s1 + m];
+                    x2[t2 + m] = x1[s1 + m];
+                    if (m + j < h) {
+                        x2[t1 + m] += x1[s2 + m + j];
+                    }
+                    if (m + j + 1 < h) {
+                        x2[t2 + m] += x1[s2 + m + j + 1];
+                    }
+                }
+            }
         }
     }
 
@@ -0,0 +1,193 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import java.util.Arrays;
+
+/**
+ * Indice spaziale delle checkbox di una pagina: le raggruppa in righe e colonne e ne ricava
+ * l'ordine di lettura (per righe dall'alto, da sinistra a destra in ogni riga).
+ * <p>
+ * Righe e colonne si ottengono ordinando una volta sola i centri dei rettangoli e separando i
+ * gruppi dove la distanza tra due centri consecutivi supera la tolleranza, metà del lato tipico
+ * di una checkbox. A differenza di un confronto a coppie con tolleranza, che non è transitivo,
+ * il raggruppamento non dipende dall'ordine dei candidati: la numerazione è la stessa a ogni
+ * scansione dello stesso modulo, anche se le checkbox di una riga differiscono di qualche pixel
+ * in altezza o la pagina è rimasta leggermente inclinata.
+ * <p>
+ * Riga e colonna di una checkbox, e la checkbox di una cella, si leggono in tempo costante.
+ */
+final class ReadingOrder {
+
+    /**
+     * Indici dei rettangoli nell'ordine di lettura
+     */
+    private final int[] order;
+    private final int[] row;
+    private final int[] column;
+
+    private final int rows;
+    private final int columns;
+
+    /**
+     * Indice del primo rettangolo di ogni cella, per righe; -1 se la cella è vuota. Costruita alla
+     * prima chiamata di {@link #at(int, int)}: occupa <code>rows * columns</code> interi, che per
+     * rettangoli sparsi possono essere molti più dei rettangoli.
+     */
+    private int[] cells;
+
+    private ReadingOrder(int[] order, int[] row, int[] column, int rows, int columns) {
+        this.order = order;
+        this.row = row;
+        this.column = column;
+        this.rows = rows;
+        this.columns = columns;
+    }
+
+    /**
+     * Ordina i rettangoli nell'ordine di lettura
+     */
+    static void sort(BoxList boxes) {
+        boxes.reorder(of(boxes).order);
+    }
+
+    /**
+     * Costruisce l'indice senza modificare <code>boxes</code>, con la tolleranza ricavata dalle
+     * dimensioni dei rettangoli
+     */
+    static ReadingOrder of(BoxList boxes) {
+        return of(boxes, tolerance(boxes));
+    }
+
+    /**
+     * @param tolerance distanza massima, in pixel, tra i centri di due rettangoli consecutivi
+     *                  della stessa riga o colonna
+     */
+    static ReadingOrder of(BoxList boxes, int tolerance) {
+        int n = boxes.size();
+        // coordinate dei centri raddoppiate, per restare sugli interi
+        int[] centerX = new int[n];
+        int[] centerY = new int[n];
+        for (int i = 0; i < n; i++) {
+            centerX[i] = 2 * boxes.getX(i) + boxes.getWidth(i);
+            centerY[i] = 2 * boxes.getY(i) + boxes.getHeight(i);
+        }
+
+        int[] byX = sortedIndices(centerX);
+        int[] column = new int[n];
+        int columns = cluster(centerX, byX, 2 * tolerance, column);
+
+        int[] row = new int[n];
+        int rows = cluster(centerY, sortedIndices(centerY), 2 * tolerance, row);
+
+        // ripartizione stabile per riga dei rettangoli già ordinati per x
+        int[] rowStart = new int[rows + 1];
+        for (int i = 0; i < n; i++) {
+            rowStart[row[i] + 1]++;
+        }
+        for (int r = 0; r < rows; r++) {
+            rowStart[r + 1] += rowStart[r];
+        }
+        int[] next = Arrays.copyOf(rowStart, rows);
+        int[] order = new int[n];
+        for (int i : byX) {
+            order[next[row[i]]++] = i;
+        }
+
+        return new ReadingOrder(order, row, column, rows, columns);
+    }
+
+    /**
+     * @return metà del lato corto mediano dei rettangoli, almeno 1
+     */
+    static int tolerance(BoxList boxes) {
+        if (boxes.size() == 0) {
+            return 1;
+        }
+        int[] sides = new int[boxes.size()];
+        for (int i = 0; i < sides.length; i++) {
+            sides[i] = Math.min(boxes.getWidth(i), boxes.getHeight(i));
+        }
+        Arrays.sort(sides);
+        return Math.max(1, sides[sides.length / 2] / 2);
+    }
+
+    /**
+     * @return indici ordinati per valore crescente, a parità di valore per indice
+     */
+    private static int[] sortedIndices(int[] values) {
+        long[] keys = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            // valore nei 32 bit alti, indice in quelli bassi: l'ordinamento risulta stabile
+            keys[i] = ((long) values[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        int[] sorted = new int[values.length];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = (int) keys[i];
+        }
+        return sorted;
+    }
+
+    /**
+     * Assegna lo stesso gruppo ai valori consecutivi distanti al più <code>gap</code>
+     *
+     * @param sorted indici di <code>values</code> in ordine crescente
+     * @param group  gruppo di ciascun valore, numerati in ordine crescente
+     * @return numero di gruppi
+     */
+    private static int cluster(int[] values, int[] sorted, int gap, int[] group) {
+        int groups = 0;
+        for (int k = 0; k < sorted.length; k++) {
+            if (k == 0 || values[sorted[k]] - values[sorted[k - 1]] > gap) {
+                groups++;
+            }
+            group[sorted[k]] = groups - 1;
+        }
+        return groups;
+    }
+
+    int rows() {
+        return rows;
+    }
+
+    int columns() {
+        return columns;
+    }
+
+    /**
+     * @param i indice del rettangolo
+     * @return riga, da 0 in alto
+     */
+    int row(int i) {
+        return row[i];
+    }
+
+    /**
+     * @param i indice del rettangolo
+     * @return colonna, da 0 a sinistra
+     */
+    int column(int i) {
+        return column[i];
+    }
+
+    /**
+     * @return indice del primo rettangolo nella cella indicata, nell'ordine di lettura; -1 se la
+     * cella è vuota
+     */
+    int at(int row, int column) {
+        if (row < 0 || row >= rows || column < 0 || column >= columns) {
+            return -1;
+        }
+        if (cells == null) {
+            int[] table = new int[rows * columns];
+            Arrays.fill(table, -1);
+            // a ritroso, così in ogni cella resta il primo rettangolo
+            for (int k = order.length - 1; k >= 0; k--) {
+                int i = order[k];
+                table[this.row[i] * columns + this.column[i]] = i;
+            }
+            cells = table;
+        }
+        return cells[row * columns + column];
+    }
+}
@@ -0,0 +1,22 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+/**
+ * Come allineare la pagina al modulo prima dell'elaborazione
+ */
+public enum RegistrationMode {
+
+    /**
+     * Elabora l'intera scansione, margini compresi
+     */
+    NONE,
+
+    /**
+     * Cerca i segni di registrazione (quadrati neri pieni) negli angoli della pagina, ritaglia la
+     * pagina all'area tra i segni e ne ricava l'inclinazione senza la trasformata di Radon. Se i
+     * segni non vengono trovati la pagina viene elaborata per intero.
+     * <p>
+     * Le coordinate delle checkbox nei risultati sono relative all'area tra i segni, quindi stabili
+     * tra una scansione e l'altra dello stesso modulo.
+     */
+    CORNER_MARKS
+}
@@ -0,0 +1,62 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+/**
+ * Risoluzione di una scansione, per riportarla alla risoluzione di lavoro con cui sono tarati i
+ * parametri del {@link ProcessingProfile}.
+ * <p>
+ * I dpi dichiarati nei metadati non sono affidabili: molti scanner e programmi scrivono un valore
+ * fisso (72, 96, 300) qualunque sia la risoluzione reale. Vengono usati solo se compresi tra
+ * {@link #MIN_DECLARED} e {@link #MAX_DECLARED} e se si discostano al più di {@link #TOLERANCE} dalla
+ * stima ricavata dal lato corto della pagina, supponendo un A4 scansionato per intero; altrimenti
+ * viene usata la stima. Una pagina più piccola di un A4, o ritagliata oltre la tolleranza, viene
+ * quindi riportata alla risoluzione di lavoro come se fosse un A4.
+ */
+final class Resolution {
+
+    /**
+     * Lato corto di un A4, in pollici
+     */
+    static final double A4_SHORT_SIDE = 210 / 25.4;
+
+    /**
+     * Intervallo dei dpi dichiarati considerati plausibili per una scansione
+     */
+    static final double MIN_DECLARED = 100;
+    static final double MAX_DECLARED = 1200;
+
+    /**
+     * Scarto massimo tra dpi dichiarati e stimati perché i primi siano considerati attendibili
+     */
+    static final double TOLERANCE = 0.15;
+
+    private Resolution() {
+    }
+
+    /**
+     * @return dpi stimati dalle dimensioni in pixel di una pagina A4
+     */
+    static double estimate(int cols, int rows) {
+        return Math.min(cols, rows) / A4_SHORT_SIDE;
+    }
+
+    /**
+     * @param declared dpi letti dai metadati, NaN se assenti
+     * @return <code>true</code> se il valore dichiarato può essere la risoluzione reale di una scansione
+     */
+    static boolean isPlausible(double declared) {
+        return declared >= MIN_DECLARED && declared <= MAX_DECLARED;
+    }
+
+    /**
+     * @param declared dpi letti dai metadati, NaN se assenti
+     * @return i dpi dichiarati se plausibili e compatibili con le dimensioni della pagina, altrimenti
+     * quelli stimati
+     */
+    static double resolve(double declared, int cols, int rows) {
+        double estimated = estimate(cols, rows);
+        if (isPlausible(declared) && Math.abs(declared / estimated - 1) <= TOLERANCE) {
+            return declared;
+        }
+        return estimated;
+    }
+}
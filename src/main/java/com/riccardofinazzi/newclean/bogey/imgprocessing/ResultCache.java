@@ -0,0 +1,176 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Cache dei risultati indicizzata sul contenuto delle scansioni: se lo stesso file viene inviato
+ * di nuovo, con la stessa configurazione, il risultato viene restituito senza decodificare l'immagine.
+ * <p>
+ * La chiave è lo SHA-256 dei byte del file seguito dall'impronta della configurazione che ha
+ * prodotto il risultato. I risultati più recenti stanno in memoria (LRU di dimensione fissa);
+ * se è indicata una cartella vengono salvati anche su disco, un file <code>&lt;chiave&gt;.result</code>
+ * per voce, e sopravvivono al riavvio.
+ */
+public class ResultCache {
+
+    private static final Logger log = LoggerFactory.getLogger(ResultCache.class);
+
+    private static final String EXTENSION = ".result";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Map<String, CachedPage> memory;
+    private final File directory;
+
+    /**
+     * @param capacity  numero massimo di voci tenute in memoria
+     * @param directory cartella in cui salvare i risultati, <code>null</code> per tenerli solo in memoria
+     */
+    public ResultCache(final int capacity, File directory) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Cannot create cache directory: " + directory);
+        }
+        this.directory = directory;
+        this.memory = new LinkedHashMap<String, CachedPage>(16, 0.75F, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedPage> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return SHA-256 del contenuto della sorgente, in esadecimale
+     */
+    static String contentHash(ImageSource source) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        source.update(digest);
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @return i byte in esadecimale, minuscolo
+     */
+    static String toHex(byte[] hash) {
+        char[] chars = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            chars[2 * i] = HEX[(hash[i] >> 4) & 0xF];
+            chars[2 * i + 1] = HEX[hash[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @param hash        {@link #contentHash(ImageSource)} della scansione
+     * @param fingerprint impronta della configurazione
+     * @return la voce, cercata prima in memoria e poi su disco; <code>null</code> se assente
+     */
+    CachedPage get(String hash, String fingerprint) {
+        String key = key(hash, fingerprint);
+
+        synchronized (memory) {
+            CachedPage page = memory.get(key);
+            if (page != null || directory == null) {
+                return page;
+            }
+        }
+
+        File file = new File(directory, key + EXTENSION);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        Properties p = new Properties();
+        CachedPage page;
+        try (InputStream is = new FileInputStream(file)) {
+            p.load(is);
+            page = CachedPage.fromProperties(p);
+        } catch (IOException | RuntimeException e) {
+            // una voce illeggibile equivale a una voce assente: la pagina verrà rielaborata
+            log.warn("Cannot read cached result {}: {}", file, e.getMessage());
+            return null;
+        }
+
+        synchronized (memory) {
+            memory.put(key, page);
+        }
+        return page;
+    }
+
+    /**
+     * Salva la voce in memoria e, se configurata, su disco. Un errore di scrittura su disco non
+     * fa fallire l'elaborazione della pagina.
+     */
+    void put(String hash, String fingerprint, CachedPage page) {
+        String key = key(hash, fingerprint);
+
+        synchronized (memory) {
+            memory.put(key, page);
+        }
+
+        if (directory != null) {
+            File file = new File(directory, key + EXTENSION);
+            File temp = new File(directory, key + EXTENSION + ".tmp");
+            try {
+                try (OutputStream os = new FileOutputStream(temp)) {
+                    page.toProperties().store(os, null);
+                }
+                // la voce compare su disco solo quando è completa
+                if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+                    throw new IOException("Cannot rename " + temp + " to " + file);
+                }
+            } catch (IOException e) {
+                log.warn("Cannot save cached result {}: {}", file, e.getMessage());
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * @return numero di voci in memoria
+     */
+    public int size() {
+        synchronized (memory) {
+            return memory.size();
+        }
+    }
+
+    /**
+     * Svuota la cache in memoria; i file su disco restano
+     */
+    public void clear() {
+        synchronized (memory) {
+            memory.clear();
+        }
+    }
+
+    private static String key(String hash, String fingerprint) {
+        if (!fingerprint.matches("[\\w.-]+")) {
+            throw new IllegalArgumentException("Invalid fingerprint: " + fingerprint);
+        }
+        return hash + '-' + fingerprint;
+    }
+}
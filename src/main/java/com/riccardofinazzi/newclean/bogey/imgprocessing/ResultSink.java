@@ -0,0 +1,35 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Destinazione dei risultati di un lotto: riceve le pagine man mano che vengono elaborate e le
+ * scrive come flusso di record, una riga per checkbox, senza tenerle in memoria.
+ *
+ * @see JsonLinesResultSink
+ * @see CsvResultSink
+ */
+public interface ResultSink extends Closeable {
+
+    /**
+     * Scrive i record di una pagina. Può essere chiamato da più thread.
+     */
+    void write(PageResult result) throws IOException;
+
+    /**
+     * Sceglie il formato in base all'estensione del file: <code>.csv</code> per CSV, altrimenti JSON Lines
+     */
+    static ResultSink forFile(File file) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+        return file.getName().toLowerCase(Locale.ROOT).endsWith(".csv")
+                ? new CsvResultSink(writer)
+                : new JsonLinesResultSink(writer);
+    }
+}
@@ -0,0 +1,19 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+/**
+ * Come correggere l'inclinazione della pagina
+ */
+public enum RotationMode {
+
+    /**
+     * Ruota l'intera pagina a colori con <code>warpAffine</code> prima di cercare le checkbox
+     */
+    WARP,
+
+    /**
+     * Lascia la pagina com'è e porta le coordinate delle checkbox da e verso la pagina raddrizzata
+     * con una {@link RotationTransform}. Le aree su cui si calcola il riempimento restano allineate
+     * agli assi della pagina originale: adatto a inclinazioni di pochi gradi.
+     */
+    COORDINATES
+}
@@ -0,0 +1,130 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+/**
+ * Rotazione applicata da {@link ImageProcessor#adjustRotation(Mat, double)}, calcolata una volta
+ * per pagina: permette di passare dalle coordinate della pagina originale a quelle della pagina
+ * raddrizzata e viceversa senza ruotare l'immagine.
+ * <p>
+ * Come per <code>adjustRotation</code>, la pagina raddrizzata è un quadrato di lato pari alla
+ * dimensione maggiore della pagina, ruotato attorno al proprio centro.
+ */
+public class RotationTransform {
+
+    /**
+     * Matrice 2x3 della trasformazione diretta, come da <code>getRotationMatrix2D</code>
+     */
+    private final double m00, m01, m02, m10, m11, m12;
+
+    private final int size;
+
+    private final double boundsScale;
+
+    private RotationTransform(double angle, int size) {
+        this.size = size;
+
+        // centro con divisione intera, come in adjustRotation
+        double cx = size / 2;
+        double cy = size / 2;
+        double radians = Math.toRadians(angle);
+        double alpha = Math.cos(radians);
+        double beta = Math.sin(radians);
+
+        m00 = alpha;
+        m01 = beta;
+        m02 = (1 - alpha) * cx - beta * cy;
+        m10 = -beta;
+        m11 = alpha;
+        m12 = beta * cx + (1 - alpha) * cy;
+        boundsScale = Math.abs(alpha) + Math.abs(beta);
+    }
+
+    /**
+     * @param angle angolo di rotazione in gradi, come per {@link ImageProcessor#adjustRotation(Mat, double)}
+     * @param cols  larghezza della pagina originale
+     * @param rows  altezza della pagina originale
+     */
+    public static RotationTransform of(double angle, int cols, int rows) {
+        return new RotationTransform(angle, Math.max(cols, rows));
+    }
+
+    /**
+     * @return lato della pagina raddrizzata
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return rapporto tra il lato del rettangolo esterno di un quadrato ruotato e il lato del quadrato
+     */
+    public double getBoundsScale() {
+        return boundsScale;
+    }
+
+    public double forwardX(double x, double y) {
+        return m00 * x + m01 * y + m02;
+    }
+
+    public double forwardY(double x, double y) {
+        return m10 * x + m11 * y + m12;
+    }
+
+    public double inverseX(double x, double y) {
+        // la parte lineare è una rotazione: l'inversa è la trasposta
+        return m00 * (x - m02) + m10 * (y - m12);
+    }
+
+    public double inverseY(double x, double y) {
+        return m01 * (x - m02) + m11 * (y - m12);
+    }
+
+    /**
+     * @return la stessa trasformazione come Mat 2x3 CV_64F, utilizzabile con <code>warpAffine</code>
+     */
+    public Mat toMat() {
+        Mat m = new Mat(2, 3, CvType.CV_64F);
+        m.put(0, 0, m00, m01, m02, m10, m11, m12);
+        return m;
+    }
+
+    /**
+     * Porta i rettangoli esterni di quadrati ruotati, trovati sulla pagina originale, nella pagina
+     * raddrizzata: il centro viene ruotato e i lati ridotti di {@link #getBoundsScale()}.
+     */
+    BoxList forward(BoxList boxes) {
+        BoxList mapped = new BoxList(boxes.size());
+        for (int i = 0; i < boxes.size(); i++) {
+            double cx = boxes.getX(i) + boxes.getWidth(i) / 2.0;
+            double cy = boxes.getY(i) + boxes.getHeight(i) / 2.0;
+            int width = (int) Math.round(boxes.getWidth(i) / boundsScale);
+            int height = (int) Math.round(boxes.getHeight(i) / boundsScale);
+            Rect r = centered(forwardX(cx, cy), forwardY(cx, cy), width, height);
+            mapped.add(r.x, r.y, r.width, r.height, boxes.getArea(i));
+        }
+        return mapped;
+    }
+
+    /**
+     * Porta un rettangolo della pagina raddrizzata nella pagina originale. Per rotazioni di pochi
+     * gradi basta spostare il centro: il rettangolo mantiene le sue dimensioni e resta allineato agli assi.
+     */
+    Rect inverse(int x, int y, int width, int height) {
+        double cx = x + width / 2.0;
+        double cy = y + height / 2.0;
+        return centered(inverseX(cx, cy), inverseY(cx, cy), width, height);
+    }
+
+    private static Rect centered(double cx, double cy, int width, int height) {
+        return new Rect((int) Math.round(cx - width / 2.0), (int) Math.round(cy - height / 2.0), width, height);
+    }
+
+    @Override
+    public String toString() {
+        return "RotationTransform{[" + m00 + ", " + m01 + ", " + m02 + "], [" + m10 + ", " + m11 + ", " + m12
+                + "], size=" + size + '}';
+    }
+}
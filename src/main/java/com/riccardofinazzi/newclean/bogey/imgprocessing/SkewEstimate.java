@@ -0,0 +1,74 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+/**
+ * Angolo di inclinazione stimato da {@link RadonDeskewer}
+ */
+public class SkewEstimate {
+
+    /**
+     * Sotto questa soglia la stima non viene considerata affidabile e l'angolo è 0
+     */
+    public static final double MIN_CONFIDENCE = 3;
+
+    private final double angle;
+    private final double confidence;
+    private final boolean refined;
+    private final boolean fallback;
+
+    public SkewEstimate(double angle, double confidence, boolean refined) {
+        this(angle, confidence, refined, false);
+    }
+
+    /**
+     * @param fallback <code>true</code> se la strategia richiesta non ha dato un risultato e l'angolo
+     *                 è stato ricalcolato con la trasformata completa
+     */
+    public SkewEstimate(double angle, double confidence, boolean refined, boolean fallback) {
+        this.angle = angle;
+        this.confidence = confidence;
+        this.refined = refined;
+        this.fallback = fallback;
+    }
+
+    /**
+     * @return angolo in gradi
+     */
+    public double getAngle() {
+        return angle;
+    }
+
+    /**
+     * @return rapporto tra la nitidezza massima della trasformata e la nitidezza media per riga
+     */
+    public double getConfidence() {
+        return confidence;
+    }
+
+    /**
+     * @return <code>true</code> se la stima è stata raffinata a piena risoluzione
+     */
+    public boolean isRefined() {
+        return refined;
+    }
+
+    /**
+     * @return <code>true</code> se la stima grossolana non aveva un picco ed è stata sostituita
+     * dalla trasformata completa
+     */
+    public boolean isFallback() {
+        return fallback;
+    }
+
+    /**
+     * @return <code>false</code> se il picco non era abbastanza marcato e l'angolo è stato azzerato
+     */
+    public boolean isReliable() {
+        return confidence > MIN_CONFIDENCE;
+    }
+
+    @Override
+    public String toString() {
+        return "SkewEstimate{angle=" + angle + ", confidence=" + confidence + ", refined=" + refined
+                + ", fallback=" + fallback + '}';
+    }
+}
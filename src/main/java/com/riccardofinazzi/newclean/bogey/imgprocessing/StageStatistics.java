@@ -0,0 +1,62 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Istantanea dei tempi di una fase della pipeline. I percentili sono approssimati per eccesso
+ * alla potenza di due di nanosecondi successiva, senza superare il massimo osservato.
+ */
+public class StageStatistics {
+
+    private final String stage;
+    private final long count;
+    private final double totalMillis;
+    private final double maxMillis;
+    private final double p50Millis;
+    private final double p99Millis;
+
+    @ConstructorProperties({"stage", "count", "totalMillis", "maxMillis", "p50Millis", "p99Millis"})
+    public StageStatistics(String stage, long count, double totalMillis, double maxMillis,
+                           double p50Millis, double p99Millis) {
+        this.stage = stage;
+        this.count = count;
+        this.totalMillis = totalMillis;
+        this.maxMillis = maxMillis;
+        this.p50Millis = p50Millis;
+        this.p99Millis = p99Millis;
+    }
+
+    public String getStage() {
+        return stage;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getTotalMillis() {
+        return totalMillis;
+    }
+
+    public double getMeanMillis() {
+        return count == 0 ? 0 : totalMillis / count;
+    }
+
+    public double getMaxMillis() {
+        return maxMillis;
+    }
+
+    public double getP50Millis() {
+        return p50Millis;
+    }
+
+    public double getP99Millis() {
+        return p99Millis;
+    }
+
+    @Override
+    public String toString() {
+        return "StageStatistics{stage=" + stage + ", count=" + count + ", mean=" + getMeanMillis()
+                + "ms, p50=" + p50Millis + "ms, p99=" + p99Millis + "ms, max=" + maxMillis + "ms}";
+    }
+}
@@ -0,0 +1,377 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.opencv.core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Elabora le pagine in una catena di fasi, ciascuna con i propri thread, collegate da code di
+ * dimensione fissa:
+ * <ol>
+ * <li>lettura e decodifica del file;</li>
+ * <li>calcolo dell'angolo e raddrizzamento;</li>
+ * <li>binarizzazione, ricerca delle checkbox e calcolo del riempimento;</li>
+ * <li>annotazione e scrittura dell'immagine di output.</li>
+ * </ol>
+ * Mentre una pagina viene decodificata o scritta su disco, le altre occupano i core nelle fasi di
+ * calcolo. Quando una coda è piena la fase precedente si ferma, fino a {@link #submit}: le pagine
+ * in memoria sono al più la somma delle capacità delle code e dei thread.
+ * <pre>
+ * try (StagedPipeline pipeline = new StagedPipeline(processor, null)) {
+ *     for (File file : files) {
+ *         pipeline.submit(file, null, callback);
+ *     }
+ * }
+ * </pre>
+ * A differenza di {@link BatchProcessor} non consulta la {@link ResultCache} del processor.
+ */
+public class StagedPipeline implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(StagedPipeline.class);
+
+    /**
+     * Notificata una sola volta per ogni pagina accodata, con successo o con errore, da uno dei thread
+     * della pipeline o, per le pagine scartate, da {@link #close()}
+     */
+    public interface Callback {
+        void completed(PageResult result);
+    }
+
+    /**
+     * Pagina in transito tra le fasi
+     */
+    private static class Job {
+        final File input;
+        final File output;
+        final Callback callback;
+
+        Page page;
+        double scale = 1.0;
+        int originX;
+        int originY;
+        SkewEstimate skew;
+        Mat rotated;
+        RotationTransform transform;
+        List<CheckboxResult> results;
+
+        Job(File input, File output, Callback callback) {
+            this.input = input;
+            this.output = output;
+            this.callback = callback;
+        }
+
+        /**
+         * @return pagina raddrizzata, oppure originale se le coordinate vengono ruotate
+         */
+        Mat image() {
+            return transform == null ? rotated : page.getImage();
+        }
+
+        void release() {
+            if (page != null) {
+                page.release();
+            }
+            if (rotated != null) {
+                rotated.release();
+            }
+        }
+    }
+
+    /**
+     * Segnala ai thread di una fase che non arriveranno altre pagine
+     */
+    private static final Job POISON = new Job(null, null, null);
+
+    private interface Task {
+        void process(Job job) throws Exception;
+    }
+
+    private final ImageProcessor processor;
+    private final FormTemplate template;
+    private final ProcessingProfile profile;
+    private final List<Stage> stages = new ArrayList<>();
+    private volatile boolean closed;
+
+    /**
+     * Impostato quando i thread delle fasi sono terminati, o devono terminare perché la pipeline è
+     * stata interrotta: le pagine rimaste nelle code non verranno più elaborate
+     */
+    private volatile boolean stopped;
+
+    /**
+     * Due thread per lettura e scrittura, i core disponibili divisi tra raddrizzamento e analisi
+     *
+     * @param template modello del modulo a cui appartengono tutte le pagine, <code>null</code> per
+     *                 cercare le checkbox su ogni pagina
+     */
+    public StagedPipeline(ImageProcessor processor, FormTemplate template) {
+        this(processor, template, 2, Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2), 2, 4);
+    }
+
+    /**
+     * @param readers   thread di lettura e decodifica
+     * @param deskewers thread di calcolo dell'angolo e raddrizzamento
+     * @param analyzers thread di binarizzazione, ricerca e calcolo del riempimento
+     * @param writers   thread di annotazione e scrittura
+     * @param capacity  pagine in attesa davanti a ciascuna fase
+     */
+    public StagedPipeline(ImageProcessor processor, FormTemplate template,
+                          int readers, int deskewers, int analyzers, int writers, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        processor.checkTemplate(template);
+        this.processor = processor;
+        this.template = template;
+        // tutte le pagine con gli stessi parametri, anche se il profilo del processor cambia
+        this.profile = processor.getProfile();
+
+        stages.add(new Stage("read", readers, capacity, new Task() {
+            @Override
+            public void process(Job job) throws Exception {
+                job.page = StagedPipeline.this.processor.readPage(job.input,
+                        StagedPipeline.this.processor.decodeFlags(job.output != null));
+                job.scale = job.page.getScale();
+            }
+        }));
+        stages.add(new Stage("deskew", deskewers, capacity, new Task() {
+            @Override
+            public void process(Job job) {
+                ImageProcessor p = StagedPipeline.this.processor;
+                Page registered = p.register(job.page, StagedPipeline.this.profile);
+                if (registered != job.page) {
+                    job.page.release();
+                    job.page = registered;
+                }
+                job.originX = job.page.getOriginX();
+                job.originY = job.page.getOriginY();
+                job.rotated = new Mat();
+                job.skew = p.deskew(job.page, job.page.getRegistrationSkew(), job.rotated);
+                job.transform = p.transform(job.page);
+
+                if (job.transform == null) {
+                    // da qui in poi serve solo la pagina raddrizzata
+                    job.page.release();
+                    job.page = null;
+                }
+            }
+        }));
+        stages.add(new Stage("analyze", analyzers, capacity, new Task() {
+            @Override
+            public void process(Job job) {
+                ImageProcessor p = StagedPipeline.this.processor;
+                job.results = p.analyze(job.image(), StagedPipeline.this.template, p.workBuffers(), job.transform,
+                        StagedPipeline.this.profile);
+            }
+        }));
+        stages.add(new Stage("write", writers, capacity, new Task() {
+            @Override
+            public void process(Job job) {
+                StagedPipeline.this.processor.annotate(job.image(), job.skew, job.results, job.output, job.transform,
+                        StagedPipeline.this.profile);
+            }
+        }));
+
+        for (int i = 0; i < stages.size(); i++) {
+            stages.get(i).start(i + 1 < stages.size() ? stages.get(i + 1) : null);
+        }
+    }
+
+    /**
+     * Accoda una pagina. Se la prima coda è piena attende che si liberi un posto.
+     *
+     * @param input    file della pagina scansionata
+     * @param output   file su cui scrivere l'immagine annotata, <code>null</code> per non scriverla
+     * @param callback notificata al termine della pagina
+     * @throws IllegalStateException se la pipeline è stata chiusa, anche durante l'attesa
+     */
+    public void submit(File input, File output, Callback callback) throws InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("Pipeline is closed");
+        }
+        BlockingQueue<Job> queue = stages.get(0).queue;
+        Job job = new Job(input, output, callback);
+        queue.put(job);
+        if (stopped && queue.remove(job)) {
+            // accodata dopo che close() ha svuotato le code: nessuno la elaborerebbe
+            throw new IllegalStateException("Pipeline is closed");
+        }
+    }
+
+    /**
+     * Attende il completamento di tutte le pagine accodate e termina i thread. Se il thread
+     * chiamante viene interrotto durante l'attesa, interrompe le fasi e ripristina il flag di
+     * interruzione: le pagine non ancora completate vengono notificate come errori, e le chiamate a
+     * {@link #submit} in attesa di un posto terminano.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            // ogni fase viene chiusa solo dopo che la precedente le ha passato tutte le pagine
+            for (Stage stage : stages) {
+                stage.shutdown();
+            }
+        } catch (InterruptedException e) {
+            stopped = true;
+            for (Stage stage : stages) {
+                stage.interrupt();
+            }
+            try {
+                for (Stage stage : stages) {
+                    stage.join();
+                }
+            } catch (InterruptedException again) {
+                // i thread ancora attivi scartano da soli le pagine che hanno in mano
+            }
+            Thread.currentThread().interrupt();
+        } finally {
+            stopped = true;
+            this.discardQueued();
+            RadonDeskewer.releaseScratch();
+        }
+    }
+
+    /**
+     * Notifica come errori le pagine rimaste nelle code: accodate da un {@link #submit} concorrente
+     * dopo la chiusura, o abbandonate da un'interruzione
+     */
+    private void discardQueued() {
+        for (Stage stage : stages) {
+            Job job;
+            while ((job = stage.queue.poll()) != null) {
+                if (job != POISON) {
+                    this.discard(job);
+                }
+            }
+        }
+    }
+
+    private void discard(Job job) {
+        this.fail(job, new CancellationException("Pipeline closed before the page was processed"));
+    }
+
+    private void complete(Job job) {
+        job.release();
+        processor.getMetrics().increment(PipelineMetrics.Counter.PAGES, 1);
+        notify(job, new PageResult(job.input, job.skew, ImageProcessor.toSourceScale(job.results, job.scale,
+                job.originX, job.originY)));
+    }
+
+    private void fail(Job job, Throwable e) {
+        job.release();
+        log.error("Error while processing {}: {}", job.input, e.getMessage(), e);
+        processor.getMetrics().increment(PipelineMetrics.Counter.FAILURES, 1);
+        notify(job, PageResult.failed(job.input, e instanceof Exception ? (Exception) e : new ExecutionException(e)));
+    }
+
+    private static void notify(Job job, PageResult result) {
+        try {
+            job.callback.completed(result);
+        } catch (Throwable e) {
+            log.error("Callback failed for {}: {}", job.input, e.getMessage(), e);
+        }
+    }
+
+    private class Stage {
+
+        private final String name;
+        private final BlockingQueue<Job> queue;
+        private final Thread[] threads;
+        private final Task task;
+
+        Stage(String name, int threads, int capacity, Task task) {
+            if (threads < 1) {
+                throw new IllegalArgumentException(name + " threads must be positive: " + threads);
+            }
+            this.name = name;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.threads = new Thread[threads];
+            this.task = task;
+        }
+
+        void start(final Stage next) {
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            work(next);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            // il thread termina: libero subito la memoria nativa dei suoi buffer
+                            processor.releaseWorkBuffers();
+                        }
+                    }
+                }, "bogey-" + name + "-" + (i + 1));
+                threads[i].setDaemon(true);
+                threads[i].start();
+            }
+        }
+
+        private void work(Stage next) throws InterruptedException {
+            while (!stopped) {
+                Job job = queue.take();
+                if (job == POISON) {
+                    return;
+                }
+
+                try {
+                    task.process(job);
+                } catch (Throwable e) {
+                    // anche un Error resta confinato alla pagina: se il thread terminasse,
+                    // close() resterebbe bloccato ad attenderlo
+                    fail(job, e);
+                    continue;
+                }
+
+                if (next == null) {
+                    complete(job);
+                } else if (stopped) {
+                    discard(job);
+                } else {
+                    // se la fase successiva è piena, questa si ferma
+                    try {
+                        next.queue.put(job);
+                    } catch (InterruptedException e) {
+                        discard(job);
+                        throw e;
+                    }
+                }
+            }
+        }
+
+        void shutdown() throws InterruptedException {
+            for (int i = 0; i < threads.length; i++) {
+                queue.put(POISON);
+            }
+            this.join();
+        }
+
+        void join() throws InterruptedException {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        void interrupt() {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Base dei {@link ResultSink} testuali: scrive su un Writer bufferizzato, una pagina alla volta,
+ * e svuota il buffer alla fine di ogni pagina così che il file sia leggibile durante il lotto.
+ */
+abstract class StreamingResultSink implements ResultSink {
+
+    private final Writer writer;
+
+    StreamingResultSink(Writer writer) {
+        this.writer = writer instanceof BufferedWriter ? writer : new BufferedWriter(writer);
+    }
+
+    @Override
+    public synchronized void write(PageResult result) throws IOException {
+        if (result.isSuccess()) {
+            for (CheckboxResult checkbox : result.getCheckboxes()) {
+                writeCheckbox(writer, result, checkbox);
+            }
+        } else {
+            writeFailure(writer, result);
+        }
+        writer.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            writeTrailer(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    abstract void writeCheckbox(Writer writer, PageResult page, CheckboxResult checkbox) throws IOException;
+
+    abstract void writeFailure(Writer writer, PageResult page) throws IOException;
+
+    /**
+     * Chiamato alla chiusura, prima di chiudere il Writer
+     */
+    void writeTrailer(Writer writer) throws IOException {
+    }
+
+    static String fileName(PageResult page) {
+        String name = page.getFile() == null ? "" : page.getFile().getPath();
+        // le pagine di un file multipagina si distinguono dal numero
+        return page.getPage() > 0 ? name + "#" + page.getPage() : name;
+    }
+
+    static String errorMessage(PageResult page) {
+        Exception error = page.getError();
+        return error.getMessage() == null ? error.getClass().getName() : error.getMessage();
+    }
+}
@@ -0,0 +1,126 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.opencv.core.Mat;
+
+/**
+ * Buffer di lavoro di un singolo thread, riutilizzati da una pagina all'altra.
+ * <p>
+ * Le funzioni di openCV riallocano la destinazione solo se dimensione o tipo cambiano, quindi
+ * con pagine dello stesso formato la memoria nativa viene allocata una sola volta per thread.
+ * Il contenuto è valido solo fino all'elaborazione della pagina successiva sullo stesso thread.
+ */
+class WorkBuffers {
+
+    /**
+     * Immagine raddrizzata, nel formato della pagina decodificata
+     */
+    final Mat rotated = new Mat();
+
+    /**
+     * Scala di grigi, non usata se la pagina è già decodificata in scala di grigi
+     */
+    final Mat gray = new Mat();
+
+    /**
+     * Scala di grigi sfocata
+     */
+    final Mat blur = new Mat();
+
+    /**
+     * Immagine binarizzata
+     */
+    final Mat binary = new Mat();
+
+    /**
+     * Maschera a piena pagina (es. immagine binarizzata invertita)
+     */
+    final Mat mask = new Mat();
+
+    /**
+     * Etichette, statistiche e centroidi delle componenti connesse
+     */
+    final Mat labels = new Mat();
+    final Mat stats = new Mat();
+    final Mat centroids = new Mat();
+
+    private int[] statsArray = new int[0];
+
+    private long[] wordArray = new long[0];
+
+    private byte[] pixelArray = new byte[0];
+
+    private byte[] transformArray = new byte[0];
+
+    private byte[] coarseArray = new byte[0];
+
+    /**
+     * @return array di almeno <code>size</code> elementi in cui copiare le statistiche delle componenti
+     */
+    int[] statsArray(int size) {
+        if (statsArray.length < size) {
+            statsArray = new int[size];
+        }
+        return statsArray;
+    }
+
+    /**
+     * @return array di almeno <code>size</code> elementi per una {@link BinaryPage}
+     */
+    long[] wordArray(int size) {
+        if (wordArray.length < size) {
+            wordArray = new long[size];
+        }
+        return wordArray;
+    }
+
+    /**
+     * @return array di almeno <code>size</code> elementi in cui copiare i pixel di un'immagine a 8 bit, intera o a strisce di righe
+     */
+    byte[] pixelArray(int size) {
+        if (pixelArray.length < size) {
+            pixelArray = new byte[size];
+        }
+        return pixelArray;
+    }
+
+    /**
+     * @return array di almeno <code>size</code> elementi per una pagina nel formato della trasformata
+     * di {@link RadonDeskewer}
+     */
+    byte[] transformArray(int size) {
+        if (transformArray.length < size) {
+            transformArray = new byte[size];
+        }
+        return transformArray;
+    }
+
+    /**
+     * @return array di almeno <code>size</code> elementi per la pagina decimata di
+     * {@link DeskewMode#COARSE_TO_FINE}; il contenuto non viene azzerato
+     */
+    byte[] coarseArray(int size) {
+        if (coarseArray.length < size) {
+            coarseArray = new byte[size];
+        }
+        return coarseArray;
+    }
+
+    /**
+     * Libera la memoria nativa di tutti i buffer
+     */
+    void release() {
+        rotated.release();
+        gray.release();
+        blur.release();
+        binary.release();
+        mask.release();
+        labels.release();
+        stats.release();
+        centroids.release();
+        statsArray = new int[0];
+        wordArray = new long[0];
+        pixelArray = new byte[0];
+        transformArray = new byte[0];
+        coarseArray = new byte[0];
+    }
+}
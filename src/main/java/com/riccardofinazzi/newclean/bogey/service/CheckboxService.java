@@ -0,0 +1,440 @@
+package com.riccardofinazzi.newclean.bogey.service;
+
+import com.riccardofinazzi.newclean.bogey.imgprocessing.ImageProcessor;
+import com.riccardofinazzi.newclean.bogey.imgprocessing.ImageSource;
+import com.riccardofinazzi.newclean.bogey.imgprocessing.JsonLinesResultSink;
+import com.riccardofinazzi.newclean.bogey.imgprocessing.PageResult;
+import com.riccardofinazzi.newclean.bogey.imgprocessing.ProcessingProfile;
+import com.riccardofinazzi.newclean.bogey.imgprocessing.RadonDeskewer;
+import com.riccardofinazzi.newclean.bogey.imgprocessing.ResultSink;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Servizio residente: la libreria nativa viene caricata e i processor riscaldati una volta sola,
+ * poi le pagine arrivano su HTTP, sulla sola interfaccia di loopback.
+ * <ul>
+ * <li><code>POST /pages[?name=...][&amp;profile=...]</code>: il corpo è l'immagine codificata (JPEG,
+ * PNG, TIFF...); la risposta è in JSON Lines, una riga per checkbox come {@link JsonLinesResultSink}.
+ * Se l'immagine non è leggibile la risposta è <code>422</code> con una riga di errore, se il profilo
+ * non è tra quelli registrati con {@link #addProfile(ProcessingProfile)} o <code>Content-Length</code>
+ * non è valido è <code>400</code>.</li>
+ * <li><code>GET /health</code>: <code>200</code> quando il servizio accetta pagine.</li>
+ * </ul>
+ * Le richieste vengono elaborate da un numero fisso di thread, ciascuno con un proprio processor
+ * preso da un pool. Quando anche la coda delle richieste in attesa è piena il thread che accetta le
+ * connessioni si ferma finché non si libera un posto: le richieste in eccesso restano nel backlog TCP.
+ * <pre>
+ * curl --data-binary @scan001.jpg http://localhost:8085/pages?name=scan001.jpg
+ * </pre>
+ */
+public class CheckboxService implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(CheckboxService.class);
+
+    /**
+     * Crea i processor del pool, già configurati
+     */
+    public interface ProcessorFactory {
+        ImageProcessor create();
+    }
+
+    private static final ProcessorFactory DEFAULT_FACTORY = new ProcessorFactory() {
+        @Override
+        public ImageProcessor create() {
+            return new ImageProcessor();
+        }
+    };
+
+    /**
+     * Dimensione massima di default del corpo di una richiesta
+     */
+    public static final int DEFAULT_MAX_PAGE_SIZE = 64 * 1024 * 1024;
+
+    private final BlockingQueue<ImageProcessor> processors;
+    private final List<ImageProcessor> allProcessors = new ArrayList<>();
+    private final ThreadPoolExecutor executor;
+    private final int threads;
+    private final Map<String, ProcessingProfile> profiles = new ConcurrentHashMap<>();
+
+    private int maxPageSize = DEFAULT_MAX_PAGE_SIZE;
+    private HttpServer server;
+
+    /**
+     * Processor con la configurazione di default
+     *
+     * @see #CheckboxService(ProcessorFactory, int, int)
+     */
+    public CheckboxService(int threads, int queueCapacity) {
+        this(DEFAULT_FACTORY, threads, queueCapacity);
+    }
+
+    /**
+     * @param factory       crea i processor, uno per thread
+     * @param threads       pagine elaborate in parallelo
+     * @param queueCapacity richieste in attesa di un thread libero
+     */
+    public CheckboxService(ProcessorFactory factory, int threads, int queueCapacity) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be positive: " + queueCapacity);
+        }
+        this.threads = threads;
+        this.processors = new ArrayBlockingQueue<>(threads);
+        for (int i = 0; i < threads; i++) {
+            ImageProcessor processor = factory.create();
+            allProcessors.add(processor);
+            processors.add(processor);
+        }
+
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            r.run();
+                        } finally {
+                            // il thread termina: libero la memoria nativa dei buffer di ogni processor
+                            for (ImageProcessor processor : allProcessors) {
+                                processor.releaseWorkBuffers();
+                            }
+                        }
+                    }
+                }, "bogey-service-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                if (executor.isShutdown()) {
+                    throw new RejectedExecutionException("Service is closed");
+                }
+                try {
+                    // coda piena: il chiamante attende un posto libero
+                    executor.getQueue().put(r);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException(e);
+                }
+            }
+        });
+        this.executor.prestartAllCoreThreads();
+    }
+
+    /**
+     * @param maxPageSize dimensione massima in byte dell'immagine di una richiesta, oltre la quale
+     *                    la risposta è <code>413</code>
+     */
+    public void setMaxPageSize(int maxPageSize) {
+        this.maxPageSize = maxPageSize;
+    }
+
+    /**
+     * Registra un profilo, richiesto con <code>profile=&lt;nome&gt;</code>: pagine di moduli diversi
+     * vengono elaborate dagli stessi processor, ciascuna con i propri parametri
+     */
+    public void addProfile(ProcessingProfile profile) {
+        profiles.put(profile.getName(), profile);
+    }
+
+    /**
+     * @return il profilo registrato con quel nome, <code>null</code> se non esiste
+     */
+    public ProcessingProfile getProfile(String name) {
+        return profiles.get(name);
+    }
+
+    /**
+     * Elabora <code>pages</code> pagine sintetiche su ogni thread, così che il JIT abbia già
+     * compilato la pipeline e i buffer di lavoro siano già allocati alla prima richiesta
+     */
+    public void warmUp(final int pages) throws InterruptedException {
+        final byte[] page = WarmUpPage.create();
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int k = 0; k < pages; k++) {
+                        CheckboxService.this.process(ImageSource.of(page), null);
+                    }
+                    return null;
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Future<Void> future : executor.invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Warm-up failed: " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+        log.info("{} processors warmed up in {} ms", threads, (System.nanoTime() - start) / 1000000);
+    }
+
+    /**
+     * Avvia il server HTTP sulla porta indicata, in ascolto solo su localhost
+     *
+     * @param port porta, 0 per sceglierne una libera (vedi {@link #getPort()})
+     */
+    public synchronized void start(int port) throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("Service already started");
+        }
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/pages", new PagesHandler());
+        server.createContext("/health", new HealthHandler());
+        server.setExecutor(executor);
+        server.start();
+        log.info("Listening on {}", server.getAddress());
+    }
+
+    /**
+     * @return porta su cui è in ascolto il server
+     */
+    public synchronized int getPort() {
+        if (server == null) {
+            throw new IllegalStateException("Service not started");
+        }
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Elabora una pagina con uno dei processor del pool
+     *
+     * @param name nome con cui riportare la pagina nei risultati, <code>null</code> se non noto
+     */
+    public PageResult process(ImageSource source, String name) throws InterruptedException {
+        return this.process(source, name, null);
+    }
+
+    /**
+     * @param profile parametri di riconoscimento, <code>null</code> per quelli del processor
+     * @see #process(ImageSource, String)
+     */
+    public PageResult process(ImageSource source, String name, ProcessingProfile profile) throws InterruptedException {
+        File file = name == null ? null : new File(name);
+
+        ImageProcessor processor = processors.take();
+        try {
+            PageResult result = processor.evaluateCheckboxes(source, null, null,
+                    profile != null ? profile : processor.getProfile());
+            return file == null ? result : new PageResult(file, result.getSkew(), result.getCheckboxes());
+        } catch (IOException e) {
+            // immagine non leggibile: è un errore del client
+            log.warn("Cannot read {}: {}", name, e.getMessage());
+            return PageResult.failed(file, e);
+        } catch (RuntimeException e) {
+            log.error("Error while processing {}: {}", name, e.getMessage(), e);
+            return PageResult.failed(file, e);
+        } finally {
+            processors.put(processor);
+        }
+    }
+
+    /**
+     * Ferma il server, attende le richieste in corso e termina i thread. Se il thread chiamante
+     * viene interrotto durante l'attesa, interrompe le richieste in corso e ripristina il flag di
+     * interruzione.
+     */
+    @Override
+    public synchronized void close() {
+        if (server != null) {
+            server.stop(1);
+            server = null;
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        } finally {
+            RadonDeskewer.releaseScratch();
+        }
+    }
+
+    /**
+     * <code>CheckboxService [porta] [thread] [coda]</code>: avvia il servizio e lo tiene attivo fino
+     * all'arresto della JVM
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8085;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int queue = args.length > 2 ? Integer.parseInt(args[2]) : 2 * threads;
+
+        final CheckboxService service = new CheckboxService(threads, queue);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                service.close();
+            }
+        }, "bogey-service-shutdown"));
+
+        service.warmUp(3);
+        service.start(port);
+    }
+
+    private class PagesHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (!"POST".equals(exchange.getRequestMethod())) {
+                    exchange.getResponseHeaders().set("Allow", "POST");
+                    sendEmpty(exchange, 405);
+                    return;
+                }
+
+                String profileName = queryParameter(exchange, "profile");
+                ProcessingProfile profile = profileName == null ? null : profiles.get(profileName);
+                if (profileName != null && profile == null) {
+                    sendEmpty(exchange, 400);
+                    return;
+                }
+
+                long length;
+                try {
+                    length = contentLength(exchange);
+                } catch (NumberFormatException e) {
+                    log.warn("Invalid Content-Length: {}", e.getMessage());
+                    sendEmpty(exchange, 400);
+                    return;
+                }
+
+                byte[] body = readBody(exchange, length);
+                if (body == null) {
+                    sendEmpty(exchange, 413);
+                    return;
+                }
+
+                PageResult result;
+                try {
+                    result = process(ImageSource.of(body), queryParameter(exchange, "name"), profile);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    sendEmpty(exchange, 503);
+                    return;
+                }
+
+                exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=utf-8");
+                exchange.sendResponseHeaders(result.isSuccess() ? 200 : 422, 0);
+                try (ResultSink sink = new JsonLinesResultSink(
+                        new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8))) {
+                    sink.write(result);
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+
+        /**
+         * @return lunghezza dichiarata del corpo, -1 se non dichiarata
+         * @throws NumberFormatException se l'intestazione non è un numero non negativo
+         */
+        private long contentLength(HttpExchange exchange) {
+            String length = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (length == null) {
+                return -1;
+            }
+            long value = Long.parseLong(length.trim());
+            if (value < 0) {
+                throw new NumberFormatException("For input string: \"" + length + "\"");
+            }
+            return value;
+        }
+
+        /**
+         * @param length lunghezza dichiarata del corpo, -1 se non dichiarata
+         * @return il corpo della richiesta, <code>null</code> se supera la dimensione massima
+         */
+        private byte[] readBody(HttpExchange exchange, long length) throws IOException {
+            if (length > maxPageSize) {
+                return null;
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(length >= 0 ? (int) length : 1 << 20);
+            byte[] chunk = new byte[64 * 1024];
+            try (InputStream is = exchange.getRequestBody()) {
+                int n;
+                while ((n = is.read(chunk)) > 0) {
+                    if (bytes.size() + n > maxPageSize) {
+                        return null;
+                    }
+                    bytes.write(chunk, 0, n);
+                }
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    private static class HealthHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            byte[] body = "{\"status\":\"UP\"}\n".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
+    }
+
+    private static void sendEmpty(HttpExchange exchange, int status) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+    private static String queryParameter(HttpExchange exchange, String name) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0 && pair.substring(0, eq).equals(name)) {
+                return URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,63 @@
+package com.riccardofinazzi.newclean.bogey.service;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import static org.opencv.imgproc.Imgproc.*;
+
+/**
+ * Pagina sintetica con cui riscaldare i processor: A4 a 200 dpi, leggermente inclinata, con una
+ * griglia di checkbox in parte barrate, così che il riscaldamento attraversi tutte le fasi della pipeline.
+ * Va generata dopo aver caricato la libreria nativa (es. creando un ImageProcessor).
+ */
+class WarmUpPage {
+
+    private static final int WIDTH = 1654;
+    private static final int HEIGHT = 2339;
+    private static final int BOX_SIDE = 29;
+    private static final double ANGLE = 1.5;
+
+    private WarmUpPage() {
+    }
+
+    /**
+     * @return la pagina codificata in JPEG
+     */
+    static byte[] create() {
+        Scalar black = new Scalar(0);
+        Scalar white = new Scalar(255);
+
+        Mat page = new Mat(HEIGHT, WIDTH, CvType.CV_8UC1, white);
+        Mat rotated = new Mat();
+        Mat rotation = getRotationMatrix2D(new Point(WIDTH / 2.0, HEIGHT / 2.0), ANGLE, 1.0);
+        MatOfByte encoded = new MatOfByte();
+        try {
+            int i = 0;
+            for (int y = 100; y + 2 * BOX_SIDE < HEIGHT - 100; y += 2 * BOX_SIDE) {
+                for (int x = 100; x + BOX_SIDE < WIDTH - 100; x += 360, i++) {
+                    rectangle(page, new Point(x, y), new Point(x + BOX_SIDE, y + BOX_SIDE), black, 2);
+                    if (i % 3 == 0) {
+                        line(page, new Point(x + 6, y + 6), new Point(x + BOX_SIDE - 6, y + BOX_SIDE - 6), black, 3);
+                    }
+                    putText(page, "Opzione", new Point(x + 2 * BOX_SIDE, y + BOX_SIDE),
+                            Core.FONT_HERSHEY_SIMPLEX, 1.0, black, 1);
+                }
+            }
+
+            warpAffine(page, rotated, rotation, new Size(WIDTH, HEIGHT), INTER_LINEAR, Core.BORDER_CONSTANT, white);
+            Imgcodecs.imencode(".jpg", rotated, encoded);
+            return encoded.toArray();
+        } finally {
+            page.release();
+            rotated.release();
+            rotation.release();
+            encoded.release();
+        }
+    }
+}
@@ -1,13 +1,51 @@
 import com.riccardofinazzi.newclean.bogey.common.ApplicationProperties;
+import com.riccardofinazzi.newclean.bogey.imgprocessing.BatchProcessor;
 import com.riccardofinazzi.newclean.bogey.imgprocessing.ImageProcessor;
+import com.riccardofinazzi.newclean.bogey.imgprocessing.JmxPipelineMetrics;
+import com.riccardofinazzi.newclean.bogey.imgprocessing.PageResult;
+import com.riccardofinazzi.newclean.bogey.imgprocessing.ProcessingProfile;
+import com.riccardofinazzi.newclean.bogey.imgprocessing.ResultSink;
+import com.riccardofinazzi.newclean.bogey.imgprocessing.StageStatistics;
+
+import java.io.File;
+import java.io.IOException;
 
 public class TestDrive {
 
-    public static void main(String[] args) {
+    /**
+     * Senza argomenti elabora il file indicato da <code>in.file</code>;
+     * altrimenti: <code>TestDrive &lt;cartella input&gt; [cartella output] [risultati .jsonl/.csv]</code>
+     */
+    public static void main(String[] args) throws IOException {
 
         ApplicationProperties pl = ApplicationProperties.getInstance();
         pl.init();
 
-        new ImageProcessor().evaluateCheckboxes();
+        if (args.length == 0) {
+            new ImageProcessor().evaluateCheckboxes();
+            return;
+        }
+
+        ImageProcessor processor = new ImageProcessor();
+        // parametri risolti una volta sola, le chiavi assenti mantengono i valori di default
+        processor.setProfile(ProcessingProfile.fromProperties(pl.getProperties(), "profile"));
+        JmxPipelineMetrics metrics = JmxPipelineMetrics.register("TestDrive");
+        processor.setMetrics(metrics);
+
+        File out = args.length > 1 && !args[1].isEmpty() ? new File(args[1]) : null;
+        if (args.length > 2) {
+            try (ResultSink sink = ResultSink.forFile(new File(args[2]))) {
+                new BatchProcessor(processor).process(new File(args[0]), out, sink);
+            }
+        } else {
+            for (PageResult result : new BatchProcessor(processor).process(new File(args[0]), out)) {
+                System.out.println(result);
+            }
+        }
+
+        System.out.println(metrics.getCounters());
+        for (StageStatistics stage : metrics.getStages()) {
+            System.out.println(stage);
+        }
     }
 }
@@ -0,0 +1,74 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.junit.Test;
+import org.opencv.core.Rect;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AnnotationPolicyTest {
+
+    private static final float THRESHOLD = 40;
+
+    private static final SkewEstimate RELIABLE = new SkewEstimate(-1.5, 10, false);
+    private static final SkewEstimate UNRELIABLE = new SkewEstimate(-1.5, 1, false);
+
+    private static List<CheckboxResult> fills(float... percentages) {
+        List<CheckboxResult> results = new ArrayList<>();
+        for (int i = 0; i < percentages.length; i++) {
+            results.add(new CheckboxResult(i, new Rect(10 * i, 0, 14, 14), percentages[i], percentages[i] > THRESHOLD));
+        }
+        return results;
+    }
+
+    @Test
+    public void sampledAnnotatesOnePageInN() {
+        AnnotationPolicy policy = AnnotationPolicy.sampled(3);
+        List<Boolean> annotated = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            annotated.add(policy.shouldAnnotate(RELIABLE, fills(0), THRESHOLD));
+        }
+        // a partire dalla prima
+        assertEquals(Arrays.asList(true, false, false, true, false, false, true), annotated);
+
+        AnnotationPolicy every = AnnotationPolicy.sampled(1);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(every.shouldAnnotate(RELIABLE, fills(0), THRESHOLD));
+        }
+    }
+
+    @Test
+    public void sampledRejectsNonPositiveN() {
+        for (int n : new int[]{0, -1}) {
+            try {
+                AnnotationPolicy.sampled(n);
+                fail("accepted " + n);
+            } catch (IllegalArgumentException expected) {
+                // atteso
+            }
+        }
+    }
+
+    @Test
+    public void lowConfidenceAnnotatesDoubtfulPages() {
+        AnnotationPolicy policy = AnnotationPolicy.lowConfidence(5);
+
+        // lontane dalla soglia
+        assertFalse(policy.shouldAnnotate(RELIABLE, fills(0, 34.9f, 45.1f, 100), THRESHOLD));
+        assertFalse(policy.shouldAnnotate(RELIABLE, Collections.<CheckboxResult>emptyList(), THRESHOLD));
+        // una sola checkbox a meno di 5 punti, sotto o sopra la soglia
+        assertTrue(policy.shouldAnnotate(RELIABLE, fills(0, 35.5f, 100), THRESHOLD));
+        assertTrue(policy.shouldAnnotate(RELIABLE, fills(0, 44.5f, 100), THRESHOLD));
+        // il margine è escluso
+        assertFalse(policy.shouldAnnotate(RELIABLE, fills(35, 45), THRESHOLD));
+        // angolo non affidabile, anche con checkbox nette
+        assertTrue(policy.shouldAnnotate(UNRELIABLE, fills(0, 100), THRESHOLD));
+    }
+}
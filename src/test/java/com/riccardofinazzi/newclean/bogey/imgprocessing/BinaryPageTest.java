@@ -0,0 +1,115 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class BinaryPageTest {
+
+    private static final int THRESHOLD = 128;
+
+    @BeforeClass
+    public static void loadLibrary() {
+        NativeLibrary.load();
+    }
+
+    /**
+     * Pagina di rumore, larga più di una parola e non multipla di 64
+     */
+    private static Mat noise(int width, int height, int type, long seed) {
+        Mat image = new Mat(height, width, type);
+        byte[] pixels = new byte[width * height * image.channels()];
+        new Random(seed).nextBytes(pixels);
+        image.put(0, 0, pixels);
+        return image;
+    }
+
+    /**
+     * Pixel neri secondo openCV: luminosità minore della soglia
+     */
+    private static int countNonZeroBelowThreshold(Mat gray, Rect rect) {
+        Mat black = new Mat();
+        Imgproc.threshold(gray.submat(rect), black, THRESHOLD - 1, 255, Imgproc.THRESH_BINARY_INV);
+        int count = Core.countNonZero(black);
+        black.release();
+        return count;
+    }
+
+    @Test
+    public void countBlackMatchesCountNonZero() {
+        Mat gray = noise(203, 57, CvType.CV_8UC1, 42);
+        BinaryPage page = BinaryPage.of(gray, THRESHOLD);
+
+        Rect[] rects = {
+                new Rect(0, 0, 203, 57),
+                new Rect(3, 5, 40, 20),     // dentro una parola
+                new Rect(60, 1, 10, 30),    // a cavallo di due parole
+                new Rect(1, 2, 200, 50),    // più parole intere
+                new Rect(64, 0, 64, 57),    // allineato alle parole
+                new Rect(202, 56, 1, 1)};
+        for (Rect rect : rects) {
+            assertEquals(rect.toString(), countNonZeroBelowThreshold(gray, rect),
+                    page.countBlack(rect.x, rect.y, rect.width, rect.height));
+        }
+        assertEquals(0, page.countBlack(10, 10, 0, 5));
+    }
+
+    @Test
+    public void colorAndNonContinuousInput() {
+        Mat color = noise(300, 40, CvType.CV_8UC3, 7);
+        // una sotto-matrice non è continua
+        Mat region = color.submat(new Rect(13, 4, 131, 30));
+        Mat gray = new Mat();
+        Imgproc.cvtColor(region, gray, Imgproc.COLOR_BGR2GRAY);
+
+        BinaryPage page = BinaryPage.of(region, THRESHOLD);
+        assertEquals(131, page.getWidth());
+        assertEquals(30, page.getHeight());
+        assertEquals(3, page.getWordsPerRow());
+
+        Rect all = new Rect(0, 0, 131, 30);
+        assertEquals(countNonZeroBelowThreshold(gray, all), page.countBlack(0, 0, 131, 30));
+        for (int y = 0; y < 30; y++) {
+            for (int x = 0; x < 131; x++) {
+                assertEquals((gray.get(y, x)[0] < THRESHOLD), page.isBlack(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void nonContinuousGrayWithReusedBuffers() {
+        Mat gray = noise(400, 300, CvType.CV_8UC1, 11);
+        Mat region = gray.submat(new Rect(7, 9, 250, 280));
+        Rect all = new Rect(0, 0, 250, 280);
+
+        WorkBuffers buffers = new WorkBuffers();
+        // un array già più grande della striscia, come dopo un'altra pagina
+        buffers.pixelArray(400 * 300);
+        BinaryPage page = BinaryPage.of(region, THRESHOLD, buffers);
+        assertEquals(countNonZeroBelowThreshold(region, all), page.countBlack(0, 0, 250, 280));
+
+        buffers.release();
+        page = BinaryPage.of(region, THRESHOLD, buffers);
+        assertEquals(countNonZeroBelowThreshold(region, all), page.countBlack(0, 0, 250, 280));
+        assertEquals(countNonZeroBelowThreshold(region, new Rect(100, 200, 150, 80)), page.countBlack(100, 200, 150, 80));
+    }
+
+    @Test
+    public void bitsBeyondTheWidthAreClear() {
+        Mat black = Mat.zeros(3, 70, CvType.CV_8UC1);
+        BinaryPage page = BinaryPage.of(black, THRESHOLD);
+        long[] words = page.getWords();
+        for (int row = 0; row < 3; row++) {
+            assertEquals(-1L, words[row * 2]);
+            assertEquals((1L << 6) - 1, words[row * 2 + 1]);
+        }
+    }
+}
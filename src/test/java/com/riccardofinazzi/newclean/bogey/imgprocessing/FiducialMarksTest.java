@@ -0,0 +1,289 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class FiducialMarksTest {
+
+    private static final double SAMPLE_ANGLE = -3.1023510872894717;
+
+    /**
+     * Margine bianco aggiunto attorno al modulo, con i segni di registrazione
+     */
+    private static final int PAD = 80;
+
+    private static final int MARK_OFFSET = 20;
+    private static final int MARK_SIDE = 40;
+
+    /**
+     * Pagina sintetica: A4 a 200 dpi, segni a 100 pixel dai bordi
+     */
+    private static final int PAGE_WIDTH = 1654;
+    private static final int PAGE_HEIGHT = 2339;
+    private static final int PAGE_MARK_OFFSET = 100;
+
+    private static File sample;
+
+    @BeforeClass
+    public static void loadSample() throws Exception {
+        NativeLibrary.load();
+        sample = new File(FiducialMarksTest.class.getResource("/input2.jpg").toURI());
+    }
+
+    @Test
+    public void locatesFourMarksOnARotatedPage() {
+        for (double angle : new double[]{0, 1.5, -2.5}) {
+            this.assertLocated(angle, true);
+        }
+    }
+
+    @Test
+    public void completesTheRectangleFromThreeMarks() {
+        for (double angle : new double[]{0, 1}) {
+            this.assertLocated(angle, false);
+        }
+    }
+
+    @Test
+    public void cropErasesTheMarks() {
+        Mat image = syntheticPage(0, true, new Point[4]);
+        Page page = new Page(sample, image);
+        Page cropped = null;
+        try {
+            FiducialMarks marks = FiducialMarks.locate(image, ProcessingProfile.DEFAULT.getMinMarkSize(),
+                    ProcessingProfile.DEFAULT.getMaxMarkSize());
+            assertNotNull(marks);
+            cropped = marks.crop(page);
+
+            Rect area = marks.getActiveArea();
+            assertEquals(area.width, cropped.getImage().cols());
+            assertEquals(area.height, cropped.getImage().rows());
+            assertEquals(area.x, cropped.getOriginX());
+            assertEquals(area.y, cropped.getOriginY());
+            assertSame(marks.getSkew(), cropped.getRegistrationSkew());
+            // gli angoli dell'area attiva sono i centri dei segni: dopo il ritaglio sono bianchi
+            assertEquals(0, Core.countNonZero(cornerInk(cropped.getImage())));
+        } finally {
+            if (cropped != null) {
+                cropped.release();
+            }
+            page.release();
+        }
+    }
+
+    @Test
+    public void pageWithoutMarksFallsBack() {
+        // solo checkbox vuote, che non sono quadrati pieni
+        Mat image = new Mat(PAGE_HEIGHT, PAGE_WIDTH, CvType.CV_8UC1, Scalar.all(255));
+        drawCheckboxes(image);
+        assertNull(FiducialMarks.locate(image, ProcessingProfile.DEFAULT.getMinMarkSize(),
+                ProcessingProfile.DEFAULT.getMaxMarkSize()));
+
+        final AtomicLong fallbacks = new AtomicLong();
+        ImageProcessor processor = new ImageProcessor();
+        processor.setRegistrationMode(RegistrationMode.CORNER_MARKS);
+        processor.setMetrics(new PipelineMetrics() {
+            @Override
+            public void record(Stage stage, long nanos) {
+            }
+
+            @Override
+            public void increment(Counter counter, long delta) {
+                if (counter == Counter.REGISTRATION_FALLBACKS) {
+                    fallbacks.addAndGet(delta);
+                }
+            }
+        });
+
+        Page page = new Page(sample, image);
+        try {
+            // la pagina viene elaborata per intero
+            assertSame(page, processor.register(page, ProcessingProfile.DEFAULT));
+            assertEquals(1, fallbacks.get());
+            assertEquals(0, page.getOriginX());
+            assertEquals(0, page.getOriginY());
+        } finally {
+            page.release();
+        }
+    }
+
+    @Test
+    public void resultsAreInWholePageCoordinates() throws Exception {
+        ImageProcessor processor = new ImageProcessor();
+        Mat image = marked(processor);
+        try {
+            processor.setRegistrationMode(RegistrationMode.NONE);
+            List<Rect> whole = markedBoxes(processor.evaluateCheckboxes(new Page(sample, image.clone()), null));
+            processor.setRegistrationMode(RegistrationMode.CORNER_MARKS);
+            List<Rect> registered = markedBoxes(processor.evaluateCheckboxes(new Page(sample, image.clone()), null));
+
+            assertEquals(6, whole.size());
+            // le checkbox trovate nell'area ritagliata tornano nella posizione della pagina intera
+            assertEquals(whole.size(), registered.size());
+            for (int i = 0; i < whole.size(); i++) {
+                assertEquals(whole.get(i).x, registered.get(i).x, 1);
+                assertEquals(whole.get(i).y, registered.get(i).y, 1);
+            }
+        } finally {
+            image.release();
+        }
+    }
+
+    /**
+     * Numero di segni, area attiva e inclinazione di una pagina sintetica ruotata di <code>angle</code> gradi
+     */
+    private void assertLocated(double angle, boolean fourth) {
+        Point[] centers = new Point[4];
+        Mat image = syntheticPage(angle, fourth, centers);
+        try {
+            FiducialMarks marks = FiducialMarks.locate(image, ProcessingProfile.DEFAULT.getMinMarkSize(),
+                    ProcessingProfile.DEFAULT.getMaxMarkSize());
+            assertNotNull("angle " + angle, marks);
+            assertEquals(fourth ? 4 : 3, marks.getCount());
+            // raddrizzare la pagina vuol dire ruotarla all'indietro
+            assertEquals(-angle, marks.getSkew().getAngle(), 0.05);
+
+            // il quarto vertice, se manca, è quello del parallelogramma: con una rotazione pura coincide
+            double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+            for (Point center : centers) {
+                minX = Math.min(minX, center.x);
+                minY = Math.min(minY, center.y);
+                maxX = Math.max(maxX, center.x);
+                maxY = Math.max(maxY, center.y);
+            }
+            Rect area = marks.getActiveArea();
+            assertEquals(minX, area.x, 1);
+            assertEquals(minY, area.y, 1);
+            assertEquals(maxX, area.x + area.width, 1);
+            assertEquals(maxY, area.y + area.height, 1);
+        } finally {
+            image.release();
+        }
+    }
+
+    /**
+     * Pagina bianca con alcune checkbox vuote, anche dentro le finestre di ricerca, e un segno pieno in
+     * ogni angolo (tranne quello in basso a destra se <code>fourth</code> è falso), ruotata di
+     * <code>angle</code> gradi attorno al centro
+     *
+     * @param centers riceve i centri dei quattro segni dopo la rotazione, in senso orario dall'angolo
+     *                in alto a sinistra
+     */
+    private static Mat syntheticPage(double angle, boolean fourth, Point[] centers) {
+        Mat image = new Mat(PAGE_HEIGHT, PAGE_WIDTH, CvType.CV_8UC1, Scalar.all(255));
+        drawCheckboxes(image);
+
+        int left = PAGE_MARK_OFFSET;
+        int top = PAGE_MARK_OFFSET;
+        int right = PAGE_WIDTH - PAGE_MARK_OFFSET - MARK_SIDE;
+        int bottom = PAGE_HEIGHT - PAGE_MARK_OFFSET - MARK_SIDE;
+        int[][] corners = {{left, top}, {right, top}, {right, bottom}, {left, bottom}};
+        for (int i = 0; i < corners.length; i++) {
+            if (fourth || i != 2) {
+                mark(image, corners[i][0], corners[i][1]);
+            }
+        }
+
+        Point center = new Point(PAGE_WIDTH / 2.0, PAGE_HEIGHT / 2.0);
+        Mat rotation = Imgproc.getRotationMatrix2D(center, angle, 1.0);
+        try {
+            for (int i = 0; i < corners.length; i++) {
+                // il rettangolo pieno di opencv comprende entrambi gli estremi
+                double x = corners[i][0] + MARK_SIDE / 2.0;
+                double y = corners[i][1] + MARK_SIDE / 2.0;
+                centers[i] = new Point(
+                        rotation.get(0, 0)[0] * x + rotation.get(0, 1)[0] * y + rotation.get(0, 2)[0],
+                        rotation.get(1, 0)[0] * x + rotation.get(1, 1)[0] * y + rotation.get(1, 2)[0]);
+            }
+            if (angle == 0) {
+                return image;
+            }
+            Mat rotated = new Mat();
+            Imgproc.warpAffine(image, rotated, rotation, new Size(PAGE_WIDTH, PAGE_HEIGHT), Imgproc.INTER_LINEAR,
+                    Core.BORDER_CONSTANT, Scalar.all(255));
+            image.release();
+            return rotated;
+        } finally {
+            rotation.release();
+        }
+    }
+
+    /**
+     * Checkbox vuote di 30 pixel: una per finestra di ricerca, lontana dal segno, e una riga al centro
+     */
+    private static void drawCheckboxes(Mat image) {
+        int[][] boxes = {{250, 250}, {PAGE_WIDTH - 280, 250}, {250, PAGE_HEIGHT - 280}, {PAGE_WIDTH - 280, PAGE_HEIGHT - 280}};
+        for (int[] box : boxes) {
+            Imgproc.rectangle(image, new Point(box[0], box[1]), new Point(box[0] + 30, box[1] + 30), Scalar.all(0), 2);
+        }
+        for (int x = 400; x < PAGE_WIDTH - 400; x += 60) {
+            Imgproc.rectangle(image, new Point(x, PAGE_HEIGHT / 2), new Point(x + 30, PAGE_HEIGHT / 2 + 30), Scalar.all(0), 2);
+        }
+    }
+
+    /**
+     * @return i quattro pixel agli angoli dell'immagine, invertiti: diversi da zero dove c'è inchiostro
+     */
+    private static Mat cornerInk(Mat image) {
+        Mat corners = new Mat(2, 2, CvType.CV_8UC1);
+        int lastRow = image.rows() - 1;
+        int lastCol = image.cols() - 1;
+        corners.put(0, 0, 255 - image.get(0, 0)[0], 255 - image.get(0, lastCol)[0],
+                255 - image.get(lastRow, 0)[0], 255 - image.get(lastRow, lastCol)[0]);
+        return corners;
+    }
+
+    /**
+     * Il modulo di esempio raddrizzato, con un margine bianco e tre segni di registrazione negli angoli
+     */
+    private static Mat marked(ImageProcessor processor) throws Exception {
+        Page page = processor.readPage(sample, processor.decodeFlags(false));
+        Mat straight = processor.adjustRotation(page.getImage(), SAMPLE_ANGLE);
+        page.release();
+
+        Mat image = new Mat(straight.rows() + 2 * PAD, straight.cols() + 2 * PAD, straight.type(), Scalar.all(255));
+        Mat content = image.submat(PAD, PAD + straight.rows(), PAD, PAD + straight.cols());
+        straight.copyTo(content);
+        content.release();
+        straight.release();
+
+        int right = image.cols() - MARK_OFFSET - MARK_SIDE;
+        int bottom = image.rows() - MARK_OFFSET - MARK_SIDE;
+        mark(image, MARK_OFFSET, MARK_OFFSET);
+        mark(image, right, MARK_OFFSET);
+        mark(image, MARK_OFFSET, bottom);
+        return image;
+    }
+
+    private static void mark(Mat image, int x, int y) {
+        Imgproc.rectangle(image, new Point(x, y), new Point(x + MARK_SIDE, y + MARK_SIDE), Scalar.all(0), -1);
+    }
+
+    private static List<Rect> markedBoxes(PageResult result) {
+        List<Rect> marked = new ArrayList<>();
+        for (CheckboxResult checkbox : result.getCheckboxes()) {
+            if (checkbox.isMarked()) {
+                marked.add(checkbox.getBox());
+            }
+        }
+        return marked;
+    }
+}
@@ -0,0 +1,147 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FormTemplateTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static FormTemplate template(String name, int workingDpi, RegistrationMode registrationMode) {
+        BoxList boxes = new BoxList();
+        boxes.add(10, 20, 15, 14, 15 * 14);
+        boxes.add(60, 21, 14, 15, 14 * 15);
+        return new FormTemplate(name, 100, 50, workingDpi, registrationMode, boxes,
+                new int[]{0, 3, 7, 2}, new int[]{1, 0, 5});
+    }
+
+    @Test
+    public void roundTripThroughDisk() throws Exception {
+        File directory = folder.newFolder("templates");
+        FormTemplate saved = template("modulo", 200, RegistrationMode.CORNER_MARKS);
+        new FormTemplateCache(directory).put(saved);
+
+        // nuova istanza: il modello viene letto dal file
+        FormTemplate loaded = new FormTemplateCache(directory).get("modulo");
+        assertEquals("modulo", loaded.getName());
+        assertEquals(200, loaded.getWorkingDpi());
+        assertEquals(RegistrationMode.CORNER_MARKS, loaded.getRegistrationMode());
+        assertEquals(saved.getHash(), loaded.getHash());
+        assertEquals(saved.getBoxes(), loaded.getBoxes());
+    }
+
+    @Test
+    public void hashDependsOnContentAndConfiguration() {
+        FormTemplate template = template("a", 200, RegistrationMode.NONE);
+        assertEquals(64, template.getHash().length());
+        assertTrue(template.getHash().matches("[0-9a-f]+"));
+
+        // il nome non fa parte dell'impronta, la configurazione sì
+        assertEquals(template.getHash(), template("b", 200, RegistrationMode.NONE).getHash());
+        assertNotEquals(template.getHash(), template("a", 150, RegistrationMode.NONE).getHash());
+        assertNotEquals(template.getHash(), template("a", 200, RegistrationMode.CORNER_MARKS).getHash());
+    }
+
+    @Test
+    public void tamperedFileIsRejected() throws Exception {
+        File file = this.saved();
+        String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1);
+        Files.write(file.toPath(), content.replace("10,20,15,14", "11,20,15,14").getBytes(StandardCharsets.ISO_8859_1));
+
+        this.assertNotLoaded(file);
+    }
+
+    @Test
+    public void fileWithoutConfigurationIsRejected() throws Exception {
+        File file = this.saved();
+        // modello salvato da una versione precedente, senza risoluzione, registrazione e impronta
+        List<String> legacy = new ArrayList<>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.ISO_8859_1)) {
+            if (!line.startsWith("dpi=") && !line.startsWith("registration=") && !line.startsWith("hash=")) {
+                legacy.add(line);
+            }
+        }
+        Files.write(file.toPath(), legacy, StandardCharsets.ISO_8859_1);
+
+        this.assertNotLoaded(file);
+    }
+
+    @Test
+    public void processorRejectsTemplatesOfAnotherConfiguration() {
+        ImageProcessor processor = new ImageProcessor();
+        processor.checkTemplate(null);
+        processor.checkTemplate(template("modulo", ImageProcessor.DEFAULT_WORKING_DPI, RegistrationMode.NONE));
+
+        FormTemplate otherDpi = template("modulo", 300, RegistrationMode.NONE);
+        FormTemplate otherRegistration = template("modulo", ImageProcessor.DEFAULT_WORKING_DPI, RegistrationMode.CORNER_MARKS);
+        for (FormTemplate template : new FormTemplate[]{otherDpi, otherRegistration}) {
+            try {
+                processor.checkTemplate(template);
+                fail("accepted " + template);
+            } catch (IllegalArgumentException expected) {
+                // atteso
+            }
+            try {
+                new BatchProcessor(processor, 1, template);
+                fail("accepted " + template);
+            } catch (IllegalArgumentException expected) {
+                // atteso
+            }
+        }
+    }
+
+    @Test
+    public void registrationHonoursTheRotationMode() throws Exception {
+        NativeLibrary.load();
+        File sample = new File(FormTemplateTest.class.getResource("/input2.jpg").toURI());
+
+        ImageProcessor processor = new ImageProcessor();
+        processor.setRotationMode(RotationMode.COORDINATES);
+        Page page = processor.readPage(sample, processor.decodeFlags(false));
+        try {
+            FormTemplate template = processor.registerTemplate("modulo", page);
+            assertEquals(ImageProcessor.DEFAULT_WORKING_DPI, template.getWorkingDpi());
+            assertFalse(template.getBoxes().isEmpty());
+
+            // le coordinate sono quelle della pagina raddrizzata, come con RotationMode.WARP
+            RotationTransform transform = processor.transform(page);
+            assertEquals(transform.getSize(), template.getWidth());
+            assertEquals(transform.getSize(), template.getHeight());
+
+            PageResult result = processor.evaluateCheckboxes(page, template, null);
+            assertEquals(template.getBoxes().size(), result.getCheckboxes().size());
+        } finally {
+            page.release();
+        }
+    }
+
+    private File saved() throws IOException {
+        File directory = folder.newFolder("templates");
+        new FormTemplateCache(directory).put(template("modulo", 200, RegistrationMode.NONE));
+        return new File(directory, "modulo.template");
+    }
+
+    private void assertNotLoaded(File file) {
+        try {
+            new FormTemplateCache(file.getParentFile()).get("modulo");
+            fail("loaded " + file);
+        } catch (IOException expected) {
+            // atteso
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Scalar;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MultiPageReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void loadLibrary() {
+        NativeLibrary.load();
+    }
+
+    /**
+     * Pagine lette: indice e larghezza dell'immagine, -1 per le pagine non decodificate
+     */
+    private static List<int[]> read(File file) throws Exception {
+        final List<int[]> pages = new ArrayList<>();
+        MultiPageReader.read(file, ImageProcessor.LOAD_GRAYSCALE, new MultiPageReader.Listener() {
+            @Override
+            public boolean page(int index, Mat image, double dpi) {
+                pages.add(new int[]{index, image.cols()});
+                image.release();
+                return true;
+            }
+
+            @Override
+            public boolean failed(int index, IOException error) {
+                pages.add(new int[]{index, -1});
+                return true;
+            }
+        });
+        return pages;
+    }
+
+    @Test
+    public void pdfPagesFollowThePageTree() throws Exception {
+        File file = this.write("lotto.pdf", scan(false));
+
+        assertTrue(MultiPageReader.isMultiPage(file));
+        assertPages(read(file));
+    }
+
+    @Test
+    public void pdfWithCompressedCrossReferences() throws Exception {
+        File file = this.write("lotto.pdf", scan(true));
+
+        assertPages(read(file));
+    }
+
+    @Test
+    public void batchNumbersPdfPagesInFileOrder() throws Exception {
+        File file = this.write("lotto.pdf", scan(true));
+
+        List<PageResult> results = new BatchProcessor(new ImageProcessor(), 2).process(Collections.singletonList(file), null);
+        assertEquals(5, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            // la pagina 4 viene riportata come errore, con il proprio numero
+            assertEquals(i != 3, results.get(i).isSuccess());
+            assertEquals(i + 1, results.get(i).getPage());
+        }
+    }
+
+    @Test
+    public void singleImageIsOnePage() throws Exception {
+        File file = this.write("pagina.jpg", jpeg(90, 120));
+
+        assertFalse(MultiPageReader.isMultiPage(file));
+        List<int[]> pages = read(file);
+        assertEquals(1, pages.size());
+        assertEquals(90, pages.get(0)[1]);
+    }
+
+    @Test(expected = IOException.class)
+    public void pdfWithoutCrossReferencesIsRejected() throws Exception {
+        read(this.write("rotto.pdf", "%PDF-1.4\n1 0 obj\n<< >>\nendobj\n".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    /**
+     * Le pagine 1, 2, 3 e 5 hanno un'immagine JPEG larga 200, 210, 220 e 240 pixel; la pagina 4 ha
+     * solo un'immagine non compressa e viene segnalata come non decodificata
+     */
+    private static void assertPages(List<int[]> pages) {
+        int[][] expected = {{0, 200}, {1, 210}, {2, 220}, {3, -1}, {4, 240}};
+        assertEquals(expected.length, pages.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i][0], pages.get(i)[0]);
+            assertEquals(expected[i][1], pages.get(i)[1]);
+        }
+    }
+
+    /**
+     * Lotto di cinque pagine come quelli degli scanner, con le complicazioni che una lettura
+     * sequenziale degli stream non gestisce:
+     * <ul>
+     * <li>oggetti in ordine diverso da quello delle pagine e albero delle pagine su due livelli, con
+     * le risorse ereditate dal nodo intermedio;</li>
+     * <li>una miniatura, un logo e una maschera più grandi o più piccoli della pagina;</li>
+     * <li>un'immagine compressa due volte (<code>[/FlateDecode /DCTDecode]</code>) e una
+     * <code>/Length</code> indiretta.</li>
+     * </ul>
+     */
+    private static byte[] scan(boolean compressedXref) throws IOException {
+        PdfWriter pdf = new PdfWriter();
+        // oggetti 1-5: immagini delle pagine, dall'ultima alla prima
+        pdf.stream(5, "/Type/XObject/Subtype/Image/Width 240/Height 100/ColorSpace/DeviceGray/BitsPerComponent 8/Filter/DCTDecode",
+                jpeg(240, 100));
+        pdf.stream(4, "/Type/XObject/Subtype/Image/Width 230/Height 100/ColorSpace/DeviceGray/BitsPerComponent 8",
+                new byte[230 * 100]);
+        pdf.stream(3, "/Type/XObject/Subtype/Image/Width 220/Height 100/ColorSpace/DeviceGray/BitsPerComponent 8/Filter/DCTDecode/SMask 20 0 R",
+                jpeg(220, 100));
+        pdf.stream(2, "/Type/XObject/Subtype/Image/Width 210/Height 100/ColorSpace/DeviceGray/BitsPerComponent 8/Filter[/FlateDecode/DCTDecode]",
+                deflate(jpeg(210, 100)));
+        pdf.streamWithIndirectLength(1, 21, "/Type/XObject/Subtype/Image/Width 200/Height 100/ColorSpace/DeviceGray/BitsPerComponent 8/Filter/DCTDecode",
+                jpeg(200, 100));
+
+        // miniatura, maschera e logo: più grandi o più piccoli, ma mai l'immagine della pagina
+        pdf.stream(18, "/Type/XObject/Subtype/Image/Width 500/Height 500/ColorSpace/DeviceGray/BitsPerComponent 8/Filter/DCTDecode",
+                jpeg(500, 500));
+        pdf.stream(20, "/Type/XObject/Subtype/Image/Width 600/Height 600/ColorSpace/DeviceGray/BitsPerComponent 8/Filter/DCTDecode",
+                jpeg(600, 600));
+        pdf.stream(19, "/Type/XObject/Subtype/Image/Width 20/Height 20/ColorSpace/DeviceGray/BitsPerComponent 8/Filter/DCTDecode",
+                jpeg(20, 20));
+
+        pdf.object(6, "<</Type/Catalog/Pages 7 0 R>>");
+        pdf.object(7, "<</Type/Pages/Kids[8 0 R 13 0 R 14 0 R 15 0 R]/Count 5>>");
+        // nodo intermedio con le pagine 1 e 2, che ereditano le sue risorse
+        pdf.object(8, "<</Type/Pages/Parent 7 0 R/Kids[12 0 R 11 0 R]/Count 2/Resources<</XObject<</Im1 2 0 R>>>>>>");
+        pdf.object(12, "<</Type/Page/Parent 8 0 R/MediaBox[0 0 595 842]/Resources<</XObject<</Logo 19 0 R/Im0 1 0 R>>>>>>");
+        pdf.object(11, "<</Type/Page/Parent 8 0 R/MediaBox[0 0 595 842]/Thumb 18 0 R>>");
+        pdf.object(13, "<</Type/Page/Parent 7 0 R/MediaBox[0 0 595 842]/Resources<</XObject<</Im2 3 0 R>>>>>>");
+        pdf.object(14, "<</Type/Page/Parent 7 0 R/MediaBox[0 0 595 842]/Resources<</XObject<</Im3 4 0 R>>>>>>");
+        // l'immagine della pagina 5 è dentro un XObject di tipo form
+        pdf.object(15, "<</Type/Page/Parent 7 0 R/MediaBox[0 0 595 842]/Resources<</XObject<</Fm0 16 0 R>>>>>>");
+        pdf.stream(16, "/Type/XObject/Subtype/Form/BBox[0 0 595 842]/Resources<</XObject<</Im4 5 0 R>>>>",
+                "/Im4 Do".getBytes(StandardCharsets.US_ASCII));
+
+        return pdf.toBytes(6, compressedXref);
+    }
+
+    private static byte[] jpeg(int width, int height) {
+        Mat image = new Mat(height, width, CvType.CV_8UC1, new Scalar(200));
+        MatOfByte encoded = new MatOfByte();
+        Imgcodecs.imencode(".jpg", image, encoded);
+        byte[] bytes = encoded.toArray();
+        image.release();
+        encoded.release();
+        return bytes;
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(bytes);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(chunk, 0, deflater.deflate(chunk));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private File write(String name, byte[] content) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    /**
+     * Scrive un PDF con una tabella dei riferimenti incrociati classica, oppure con uno stream di
+     * riferimenti incrociati (predittore PNG) e i dizionari in un object stream
+     */
+    private static final class PdfWriter {
+
+        private final List<Integer> numbers = new ArrayList<>();
+        private final List<byte[]> bodies = new ArrayList<>();
+        private final List<Boolean> streams = new ArrayList<>();
+
+        void object(int number, String body) {
+            this.add(number, body.getBytes(StandardCharsets.US_ASCII), false);
+        }
+
+        void stream(int number, String dictionary, byte[] data) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(("<<" + dictionary + "/Length " + data.length + ">>stream\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(data);
+            out.write("\r\nendstream".getBytes(StandardCharsets.US_ASCII));
+            this.add(number, out.toByteArray(), true);
+        }
+
+        void streamWithIndirectLength(int number, int lengthNumber, String dictionary, byte[] data) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(("<<" + dictionary + "/Length " + lengthNumber + " 0 R>>stream\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(data);
+            out.write("\nendstream".getBytes(StandardCharsets.US_ASCII));
+            this.add(number, out.toByteArray(), true);
+            this.object(lengthNumber, String.valueOf(data.length));
+        }
+
+        private void add(int number, byte[] body, boolean stream) {
+            numbers.add(number);
+            bodies.add(body);
+            streams.add(stream);
+        }
+
+        byte[] toBytes(int root, boolean compressedXref) throws IOException {
+            int size = Collections.max(numbers) + 1;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write("%PDF-1.5\n%âãÏÓ\n".getBytes(StandardCharsets.ISO_8859_1));
+
+            // per ogni oggetto: tipo, offset o object stream, indice
+            long[][] entries = new long[size + 2][];
+            entries[0] = new long[]{0, 0, 65535};
+
+            ByteArrayOutputStream objectStream = new ByteArrayOutputStream();
+            StringBuilder header = new StringBuilder();
+            int contained = 0;
+            int objectStreamNumber = size;
+            for (int i = 0; i < numbers.size(); i++) {
+                int number = numbers.get(i);
+                if (compressedXref && !streams.get(i)) {
+                    header.append(number).append(' ').append(objectStream.size()).append(' ');
+                    objectStream.write(bodies.get(i));
+                    objectStream.write('\n');
+                    entries[number] = new long[]{2, objectStreamNumber, contained++};
+                } else {
+                    entries[number] = new long[]{1, out.size(), 0};
+                    out.write((number + " 0 obj\n").getBytes(StandardCharsets.US_ASCII));
+                    out.write(bodies.get(i));
+                    out.write("\nendobj\n".getBytes(StandardCharsets.US_ASCII));
+                }
+            }
+
+            if (!compressedXref) {
+                long xref = out.size();
+                StringBuilder table = new StringBuilder("xref\n0 " + size + "\n");
+                for (int number = 0; number < size; number++) {
+                    long[] entry = entries[number];
+                    table.append(entry == null
+                            ? "0000000000 65535 f\r\n"
+                            : String.format("%010d %05d %s\r\n", entry[1], entry[2], number == 0 ? "f" : "n"));
+                }
+                table.append("trailer\n<</Size ").append(size).append("/Root ").append(root).append(" 0 R>>\n")
+                        .append("startxref\n").append(xref).append("\n%%EOF\n");
+                out.write(table.toString().getBytes(StandardCharsets.US_ASCII));
+                return out.toByteArray();
+            }
+
+            byte[] objects = concat(header.toString().getBytes(StandardCharsets.US_ASCII), objectStream.toByteArray());
+            entries[objectStreamNumber] = new long[]{1, out.size(), 0};
+            out.write((objectStreamNumber + " 0 obj\n<</Type/ObjStm/N " + contained + "/First " + header.length()
+                    + "/Filter/FlateDecode/Length ").getBytes(StandardCharsets.US_ASCII));
+            byte[] compressed = deflate(objects);
+            out.write((compressed.length + ">>stream\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(compressed);
+            out.write("\nendstream\nendobj\n".getBytes(StandardCharsets.US_ASCII));
+
+            int xrefNumber = objectStreamNumber + 1;
+            long xref = out.size();
+            entries[xrefNumber] = new long[]{1, xref, 0};
+
+            // righe di 7 byte (W [1 4 2]) con il predittore PNG Up
+            int columns = 7;
+            byte[] previous = new byte[columns];
+            ByteArrayOutputStream rows = new ByteArrayOutputStream();
+            for (long[] entry : entries) {
+                long[] e = entry == null ? new long[]{0, 0, 0} : entry;
+                byte[] row = {(byte) e[0], (byte) (e[1] >> 24), (byte) (e[1] >> 16), (byte) (e[1] >> 8), (byte) e[1],
+                        (byte) (e[2] >> 8), (byte) e[2]};
+                rows.write(2);
+                for (int k = 0; k < columns; k++) {
+                    rows.write(row[k] - previous[k]);
+                }
+                previous = row;
+            }
+            byte[] xrefData = deflate(rows.toByteArray());
+            out.write((xrefNumber + " 0 obj\n<</Type/XRef/Size " + entries.length + "/W[1 4 2]/Root " + root
+                    + " 0 R/Filter/FlateDecode/DecodeParms<</Columns " + columns + "/Predictor 12>>/Length "
+                    + xrefData.length + ">>stream\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(xrefData);
+            out.write(("\nendstream\nendobj\nstartxref\n" + xref + "\n%%EOF\n").getBytes(StandardCharsets.US_ASCII));
+            return out.toByteArray();
+        }
+
+        private static byte[] concat(byte[] a, byte[] b) {
+            byte[] result = Arrays.copyOf(a, a.length + b.length);
+            System.arraycopy(b, 0, result, a.length, b.length);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Rect;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Confronto con i risultati della versione originale su <code>input2.jpg</code>
+ */
+public class RadonDeskewerTest {
+
+    private static final double EXACT_ANGLE = -3.1023510872894717;
+
+    /**
+     * Ritagli delle checkbox marcate, in ordine di lettura
+     */
+    private static final List<Rect> MARKED = Arrays.asList(
+            new Rect(228, 267, 15, 14),
+            new Rect(305, 346, 14, 14),
+            new Rect(1059, 345, 14, 15),
+            new Rect(305, 385, 14, 14),
+            new Rect(266, 464, 15, 14),
+            new Rect(381, 464, 15, 14));
+
+    private static File sample;
+
+    @BeforeClass
+    public static void loadSample() throws Exception {
+        NativeLibrary.load();
+        sample = new File(RadonDeskewerTest.class.getResource("/input2.jpg").toURI());
+    }
+
+    @Test
+    public void exactAngle() throws Exception {
+        SkewEstimate skew = RadonDeskewer.estimateAngle(ImageSource.of(sample.toPath()), DeskewMode.EXACT);
+        assertEquals(EXACT_ANGLE, skew.getAngle(), 0);
+        assertEquals(EXACT_ANGLE, RadonDeskewer.calculateAngle(sample), 0);
+    }
+
+    @Test
+    public void exactModeMarksTheSameCheckboxes() throws Exception {
+        ImageProcessor processor = new ImageProcessor();
+        processor.setDeskewMode(DeskewMode.EXACT);
+
+        PageResult result = processor.evaluateCheckboxes(sample, null);
+        assertEquals(EXACT_ANGLE, result.getSkewAngle(), 0);
+        assertEquals(1022, result.getCheckboxes().size());
+
+        List<Rect> marked = new ArrayList<>();
+        for (CheckboxResult checkbox : result.getCheckboxes()) {
+            if (checkbox.isMarked()) {
+                marked.add(checkbox.getBox());
+            }
+        }
+        assertEquals(MARKED, marked);
+    }
+
+    @Test
+    public void coarseToFineStaysCloseToExact() throws Exception {
+        SkewEstimate skew = RadonDeskewer.estimateAngle(ImageSource.of(sample.toPath()), DeskewMode.COARSE_TO_FINE);
+        // uno o due passi della trasformata a piena risoluzione
+        assertEquals(EXACT_ANGLE, skew.getAngle(), 0.07);
+    }
+}
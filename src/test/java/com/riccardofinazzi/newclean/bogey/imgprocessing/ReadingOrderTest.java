@@ -0,0 +1,145 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.junit.Test;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class ReadingOrderTest {
+
+    private static final int SIDE = 30;
+    private static final int PITCH = 40;
+
+    /**
+     * Griglia di 3 righe e 4 colonne con le coordinate spostate di qualche pixel, come su una
+     * scansione leggermente inclinata, senza la cella (1, 2)
+     */
+    private static BoxList grid(long seed) {
+        List<int[]> cells = new ArrayList<>();
+        for (int row = 0; row < 3; row++) {
+            for (int column = 0; column < 4; column++) {
+                if (row != 1 || column != 2) {
+                    // la y cresce lungo la riga: su una riga pesa più dell'ordine dei candidati
+                    cells.add(new int[]{100 + column * PITCH + row, 200 + row * PITCH + 3 * column});
+                }
+            }
+        }
+        Collections.shuffle(cells, new Random(seed));
+
+        BoxList boxes = new BoxList(cells.size());
+        for (int[] cell : cells) {
+            boxes.add(cell[0], cell[1], SIDE, SIDE, SIDE * SIDE);
+        }
+        return boxes;
+    }
+
+    @Test
+    public void sortsInReadingOrder() {
+        for (long seed = 0; seed < 10; seed++) {
+            BoxList boxes = grid(seed);
+            ReadingOrder.sort(boxes);
+
+            assertEquals(11, boxes.size());
+            int k = 0;
+            for (int row = 0; row < 3; row++) {
+                for (int column = 0; column < 4; column++) {
+                    if (row == 1 && column == 2) {
+                        continue;
+                    }
+                    assertEquals(100 + column * PITCH + row, boxes.getX(k));
+                    assertEquals(200 + row * PITCH + 3 * column, boxes.getY(k));
+                    k++;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rowsAndColumns() {
+        BoxList boxes = grid(3);
+        ReadingOrder.sort(boxes);
+        ReadingOrder grid = ReadingOrder.of(boxes);
+
+        assertEquals(3, grid.rows());
+        assertEquals(4, grid.columns());
+        int[][] expected = {{0, 0}, {0, 1}, {0, 2}, {0, 3}, {1, 0}, {1, 1}, {1, 3}, {2, 0}, {2, 1}, {2, 2}, {2, 3}};
+        for (int i = 0; i < boxes.size(); i++) {
+            assertEquals(expected[i][0], grid.row(i));
+            assertEquals(expected[i][1], grid.column(i));
+            assertEquals(i, grid.at(expected[i][0], expected[i][1]));
+        }
+    }
+
+    @Test
+    public void emptyAndOutOfRangeCells() {
+        BoxList boxes = grid(5);
+        ReadingOrder grid = ReadingOrder.of(boxes);
+
+        assertEquals(-1, grid.at(1, 2));
+        assertEquals(-1, grid.at(-1, 0));
+        assertEquals(-1, grid.at(3, 0));
+        assertEquals(-1, grid.at(0, -1));
+        assertEquals(-1, grid.at(0, 4));
+    }
+
+    @Test
+    public void atReturnsTheFirstBoxOfACell() {
+        BoxList boxes = new BoxList();
+        boxes.add(100, 100, SIDE, SIDE, SIDE * SIDE);
+        // stessa cella, appena a destra: viene dopo nell'ordine di lettura
+        boxes.add(104, 101, SIDE, SIDE, SIDE * SIDE);
+        boxes.add(100 + PITCH, 100, SIDE, SIDE, SIDE * SIDE);
+        ReadingOrder grid = ReadingOrder.of(boxes);
+
+        assertEquals(1, grid.rows());
+        assertEquals(2, grid.columns());
+        assertEquals(0, grid.at(0, 0));
+        assertEquals(2, grid.at(0, 1));
+    }
+
+    @Test
+    public void checkboxesKeepTheGridOfTheirOuterBoxes() {
+        NativeLibrary.load();
+        ImageProcessor processor = new ImageProcessor();
+        ProcessingProfile profile = processor.getProfile();
+
+        BoxList boxes = grid(1);
+        ReadingOrder.sort(boxes);
+        Mat page = new Mat(400, 400, CvType.CV_8UC1, new Scalar(255));
+        // la prima checkbox è fuori dalla pagina e viene scartata, l'ultima viene ritagliata dal bordo
+        BoxList all = new BoxList(boxes.size() + 2);
+        all.add(-40, 200, SIDE, SIDE, SIDE * SIDE);
+        for (int i = 0; i < boxes.size(); i++) {
+            all.add(boxes.getRect(i));
+        }
+        all.add(384, 284, SIDE, SIDE, SIDE * SIDE);
+        ReadingOrder expected = ReadingOrder.of(all);
+
+        List<CheckboxResult> results = processor.scoreCheckboxes(page, all, new WorkBuffers(), null, profile);
+        assertEquals(12, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(expected.row(i + 1), results.get(i).getRow());
+            assertEquals(expected.column(i + 1), results.get(i).getColumn());
+        }
+        // il ritaglio dell'ultima è più stretto, ma resta nella colonna del suo rettangolo esterno
+        assertEquals(5, results.get(11).getColumn());
+    }
+
+    @Test
+    public void toleranceIsHalfTheMedianSide() {
+        assertEquals(SIDE / 2, ReadingOrder.tolerance(grid(0)));
+        assertEquals(1, ReadingOrder.tolerance(new BoxList()));
+
+        ReadingOrder empty = ReadingOrder.of(new BoxList());
+        assertEquals(0, empty.rows());
+        assertEquals(0, empty.columns());
+        assertEquals(-1, empty.at(0, 0));
+    }
+}
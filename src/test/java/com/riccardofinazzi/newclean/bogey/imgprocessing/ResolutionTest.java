@@ -0,0 +1,62 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ResolutionTest {
+
+    /**
+     * A4 a 200 dpi
+     */
+    private static final int COLS = 1654;
+    private static final int ROWS = 2339;
+
+    @Test
+    public void trustsDeclaredDpiThatMatchesThePage() {
+        assertEquals(200, Resolution.resolve(200, COLS, ROWS), 0);
+        // A4 a 300 dpi
+        assertEquals(300, Resolution.resolve(300, 2480, 3508), 0);
+        // scansione leggermente ritagliata: la stima sarebbe 180 dpi
+        assertEquals(200, Resolution.resolve(200, 1488, 2105), 0);
+        assertEquals(1200, Resolution.resolve(1200, 9921, 14031), 0);
+    }
+
+    @Test
+    public void estimatesWhenDeclaredDpiDisagreesWithThePage() {
+        // le scansioni incluse: 1653 pixel di larghezza, cioè un A4 a 200 dpi, dichiarate a 300 dpi
+        assertEquals(200, Resolution.resolve(300, 1653, 2338), 0.5);
+        assertEquals(200, Resolution.resolve(150, COLS, ROWS), 0.1);
+        assertEquals(200, Resolution.resolve(240, COLS, ROWS), 0.1);
+        // un A5 a 300 dpi viene trattato come un A4 a 211 dpi
+        assertEquals(211, Resolution.resolve(300, 1748, 2480), 0.5);
+    }
+
+    @Test
+    public void estimatesWhenDeclaredDpiIsAbsent() {
+        assertEquals(200, Resolution.resolve(Double.NaN, COLS, ROWS), 0.1);
+        // pagina in orizzontale
+        assertEquals(200, Resolution.resolve(Double.NaN, ROWS, COLS), 0.1);
+    }
+
+    @Test
+    public void estimatesWhenDeclaredDpiIsImplausible() {
+        assertEquals(200, Resolution.resolve(72, COLS, ROWS), 0.1);
+        assertEquals(200, Resolution.resolve(96, COLS, ROWS), 0.1);
+        assertEquals(200, Resolution.resolve(50, COLS, ROWS), 0.1);
+        assertEquals(200, Resolution.resolve(2400, COLS, ROWS), 0.1);
+        assertEquals(200, Resolution.resolve(Double.POSITIVE_INFINITY, COLS, ROWS), 0.1);
+    }
+
+    @Test
+    public void plausibleRange() {
+        assertTrue(Resolution.isPlausible(200));
+        assertFalse(Resolution.isPlausible(72));
+        assertFalse(Resolution.isPlausible(96));
+        assertFalse(Resolution.isPlausible(99.9));
+        assertFalse(Resolution.isPlausible(1200.1));
+        assertFalse(Resolution.isPlausible(Double.NaN));
+    }
+}
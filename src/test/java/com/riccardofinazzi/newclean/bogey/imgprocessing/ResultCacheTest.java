@@ -0,0 +1,137 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.Rect;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ResultCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String HASH = ResultCache.contentHash(ImageSource.of("scan".getBytes(StandardCharsets.US_ASCII)));
+
+    private static CachedPage page() {
+        List<CheckboxResult> results = Arrays.asList(
+                new CheckboxResult(0, 0, 0, new Rect(10, 20, 15, 14), 48.5F, true),
+                new CheckboxResult(1, 0, 2, new Rect(60, 21, 14, 15), 2.25F, false));
+        return CachedPage.of(new SkewEstimate(-3.1023510872894717, 124.7, true, false), results);
+    }
+
+    @Test
+    public void contentHashIsHexSha256() {
+        assertEquals(64, HASH.length());
+        assertTrue(HASH.matches("[0-9a-f]+"));
+        assertEquals(HASH, ResultCache.contentHash(ImageSource.of("scan".getBytes(StandardCharsets.US_ASCII))));
+    }
+
+    @Test
+    public void roundTripThroughDisk() throws Exception {
+        File directory = folder.newFolder("cache");
+        new ResultCache(4, directory).put(HASH, "exact.v1", page());
+
+        // nuova istanza: la voce viene letta dal file
+        ResultCache cache = new ResultCache(4, directory);
+        CachedPage cached = cache.get(HASH, "exact.v1");
+        assertNotNull(cached);
+        assertTrue(cached.isComplete());
+        assertEquals(1, cache.size());
+
+        SkewEstimate skew = cached.getSkew();
+        assertEquals(-3.1023510872894717, skew.getAngle(), 0);
+        assertEquals(124.7, skew.getConfidence(), 0);
+        assertTrue(skew.isRefined());
+        assertFalse(skew.isFallback());
+
+        List<CheckboxResult> results = cached.toResults(30F);
+        assertEquals(2, results.size());
+        assertEquals(new Rect(10, 20, 15, 14), results.get(0).getBox());
+        assertEquals(48.5F, results.get(0).getPercentage(), 0);
+        assertTrue(results.get(0).isMarked());
+        assertEquals(0, results.get(0).getRow());
+        assertEquals(0, results.get(0).getColumn());
+        assertEquals(new Rect(60, 21, 14, 15), results.get(1).getBox());
+        assertEquals(0, results.get(1).getRow());
+        assertEquals(2, results.get(1).getColumn());
+        assertEquals(2.25F, results.get(1).getPercentage(), 0);
+        assertFalse(results.get(1).isMarked());
+
+        // la soglia è quella corrente, non quella del salvataggio
+        assertFalse(cached.toResults(50F).get(0).isMarked());
+    }
+
+    @Test
+    public void angleOnlyRoundTrip() throws Exception {
+        File directory = folder.newFolder("cache");
+        new ResultCache(4, directory).put(HASH, "skew", CachedPage.angleOnly(new SkewEstimate(0.5, 7.7, false, true)));
+
+        CachedPage cached = new ResultCache(4, directory).get(HASH, "skew");
+        assertNotNull(cached);
+        assertFalse(cached.isComplete());
+        assertEquals(0.5, cached.getSkew().getAngle(), 0);
+        assertTrue(cached.getSkew().isFallback());
+    }
+
+    @Test
+    public void fingerprintIsPartOfTheKey() {
+        ResultCache cache = new ResultCache(4, null);
+        cache.put(HASH, "exact.v1", page());
+        assertNotNull(cache.get(HASH, "exact.v1"));
+        assertNull(cache.get(HASH, "exact.v2"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        ResultCache cache = new ResultCache(2, null);
+        cache.put("a", "f", page());
+        cache.put("b", "f", page());
+        assertNotNull(cache.get("a", "f"));
+        cache.put("c", "f", page());
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("a", "f"));
+        assertNull(cache.get("b", "f"));
+        assertNotNull(cache.get("c", "f"));
+    }
+
+    @Test
+    public void malformedEntryIsAMiss() throws Exception {
+        File directory = folder.newFolder("cache");
+        new ResultCache(4, directory).put(HASH, "f", page());
+        File entry = directory.listFiles()[0];
+        // voce nel formato della versione 1, senza riga e colonna
+        Files.write(entry.toPath(), "angle=0.0\nconfidence=1.0\nboxes=10,20,15,14,48.5\n".getBytes(StandardCharsets.ISO_8859_1));
+
+        assertNull(new ResultCache(4, directory).get(HASH, "f"));
+    }
+
+    @Test
+    public void unreadableEntryIsAMiss() throws Exception {
+        File directory = folder.newFolder("cache");
+        new ResultCache(4, directory).put(HASH, "f", page());
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        assertTrue(files[0].delete());
+        assertTrue(files[0].mkdir());
+
+        assertNull(new ResultCache(4, directory).get(HASH, "f"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsFingerprintsThatAreNotFileNames() {
+        new ResultCache(4, null).put(HASH, "../f", page());
+    }
+}
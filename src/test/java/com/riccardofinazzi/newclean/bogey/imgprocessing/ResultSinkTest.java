@@ -0,0 +1,67 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.junit.Test;
+import org.opencv.core.Rect;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class ResultSinkTest {
+
+    private static final SkewEstimate SKEW = new SkewEstimate(-1.5, 10, false);
+
+    private static PageResult page(String name, int page) {
+        return new PageResult(new File(name), page, SKEW, Arrays.asList(
+                new CheckboxResult(0, 0, 0, new Rect(10, 20, 14, 15), 42.5f, true),
+                new CheckboxResult(1, 0, 1, new Rect(40, 20, 14, 14), 3.0f, false)));
+    }
+
+    private static String write(ResultSink sink, StringWriter out, PageResult... pages) throws IOException {
+        for (PageResult page : pages) {
+            sink.write(page);
+        }
+        sink.close();
+        return out.toString();
+    }
+
+    @Test
+    public void csvQuotesFieldsWithSeparatorsAndQuotes() throws Exception {
+        StringWriter out = new StringWriter();
+        String csv = write(new CsvResultSink(out), out,
+                page("scansione, \"prima\".jpg", 0),
+                page("lotto.pdf", 2),
+                PageResult.failed(new File("rotta.jpg"), new IOException("Cannot read \"rotta.jpg\", line 1\nline 2")));
+
+        assertEquals(CsvResultSink.HEADER
+                + "\"scansione, \"\"prima\"\".jpg\",-1.5,0,0,0,10,20,14,15,42.5,true,\n"
+                + "\"scansione, \"\"prima\"\".jpg\",-1.5,1,0,1,40,20,14,14,3.0,false,\n"
+                + "lotto.pdf#2,-1.5,0,0,0,10,20,14,15,42.5,true,\n"
+                + "lotto.pdf#2,-1.5,1,0,1,40,20,14,14,3.0,false,\n"
+                // il messaggio su più righe resta un solo campo
+                + "rotta.jpg,,,,,,,,,,,\"Cannot read \"\"rotta.jpg\"\", line 1\nline 2\"\n", csv);
+    }
+
+    @Test
+    public void emptyCsvHasTheHeader() throws Exception {
+        StringWriter out = new StringWriter();
+        assertEquals(CsvResultSink.HEADER, write(new CsvResultSink(out), out));
+    }
+
+    @Test
+    public void jsonLinesEscapesStrings() throws Exception {
+        StringWriter out = new StringWriter();
+        String json = write(new JsonLinesResultSink(out), out,
+                new PageResult(new File("a\"b\\c\td.jpg"), SKEW, Collections.singletonList(
+                        new CheckboxResult(0, 0, 0, new Rect(10, 20, 14, 15), 42.5f, true))),
+                PageResult.failed(new File("rotta.jpg"), 3, new IOException("riga 1\r\nriga 2\u0001")));
+
+        assertEquals("{\"file\":\"a\\\"b\\\\c\\td.jpg\",\"skewAngle\":-1.5,\"index\":0,\"row\":0,\"column\":0,"
+                + "\"x\":10,\"y\":20,\"width\":14,\"height\":15,\"fill\":42.5,\"marked\":true}\n"
+                + "{\"file\":\"rotta.jpg#3\",\"error\":\"riga 1\\r\\nriga 2\\u0001\"}\n", json);
+    }
+}
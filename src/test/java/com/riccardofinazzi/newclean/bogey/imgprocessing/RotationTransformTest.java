@@ -0,0 +1,153 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RotationTransformTest {
+
+    private static final double[] ANGLES = {-10, -3.1023510872894717, -0.5, 0, 0.25, 7};
+
+    private static File sample;
+
+    @BeforeClass
+    public static void loadSample() throws Exception {
+        NativeLibrary.load();
+        sample = new File(RotationTransformTest.class.getResource("/input2.jpg").toURI());
+    }
+
+    @Test
+    public void inverseUndoesForward() {
+        for (double angle : ANGLES) {
+            RotationTransform transform = RotationTransform.of(angle, 1654, 2339);
+            for (int x = 0; x <= 2400; x += 300) {
+                for (int y = 0; y <= 2400; y += 300) {
+                    double fx = transform.forwardX(x, y);
+                    double fy = transform.forwardY(x, y);
+                    assertEquals(x, transform.inverseX(fx, fy), 1e-9);
+                    assertEquals(y, transform.inverseY(fx, fy), 1e-9);
+
+                    double ix = transform.inverseX(x, y);
+                    double iy = transform.inverseY(x, y);
+                    assertEquals(x, transform.forwardX(ix, iy), 1e-9);
+                    assertEquals(y, transform.forwardY(ix, iy), 1e-9);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void matrixIsTheOneUsedToWarp() {
+        for (double angle : ANGLES) {
+            RotationTransform transform = RotationTransform.of(angle, 2339, 1654);
+            // stesso centro di adjustRotation, con la divisione intera
+            Mat expected = Imgproc.getRotationMatrix2D(new Point(2339 / 2, 2339 / 2), angle, 1.0);
+            Mat actual = transform.toMat();
+            try {
+                for (int row = 0; row < 2; row++) {
+                    for (int col = 0; col < 3; col++) {
+                        assertEquals(expected.get(row, col)[0], actual.get(row, col)[0], 1e-9);
+                    }
+                }
+            } finally {
+                expected.release();
+                actual.release();
+            }
+        }
+    }
+
+    @Test
+    public void rectangleReturnsToItsPlace() {
+        RotationTransform transform = RotationTransform.of(-3.1023510872894717, 1654, 2339);
+        Rect original = new Rect(300, 400, 30, 29);
+
+        BoxList boxes = new BoxList();
+        boxes.add(original.x, original.y, original.width, original.height, original.width * original.height);
+        BoxList forward = transform.forward(boxes);
+        Rect back = transform.inverse(forward.getX(0), forward.getY(0), original.width, original.height);
+
+        // il centro viene arrotondato a ogni passaggio
+        assertEquals(original.x, back.x, 1);
+        assertEquals(original.y, back.y, 1);
+    }
+
+    /**
+     * Ruotare le coordinate invece della pagina deve trovare le stesse checkbox: anche quelle che sulla
+     * pagina inclinata superano il lato massimo del profilo, grazie alla finestra allargata. Il lato
+     * massimo è ridotto a ridosso delle checkbox del modulo, larghe 29 e 30 pixel: inclinate di 3° il
+     * loro rettangolo esterno arriva a 31 e 32
+     */
+    @Test
+    public void coordinatesMatchWarpOnTheSample() throws Exception {
+        ImageProcessor processor = new ImageProcessor();
+        ProcessingProfile tight = ProcessingProfile.DEFAULT.toBuilder().boxSize(ProcessingProfile.DEFAULT.getMinBoxSize(), 31).build();
+        processor.setProfile(tight);
+        processor.setRotationMode(RotationMode.WARP);
+        List<CheckboxResult> warp = processor.evaluateCheckboxes(sample, null).getCheckboxes();
+        processor.setRotationMode(RotationMode.COORDINATES);
+        List<CheckboxResult> coordinates = processor.evaluateCheckboxes(sample, null).getCheckboxes();
+
+        assertEquals(1005, warp.size());
+        assertMatched(warp, coordinates, tight);
+        assertMatched(coordinates, warp, tight);
+    }
+
+    /**
+     * Ogni checkbox di <code>found</code> ha in <code>other</code> una checkbox con lo stesso esito e
+     * i bordi spostati al più di un pixel (di due in meno dell'uno per cento dei casi). Fanno eccezione
+     * solo quelle con il lato a un pixel dai limiti del profilo, che possono cadere da una parte o
+     * dall'altra
+     */
+    private static void assertMatched(List<CheckboxResult> found, List<CheckboxResult> other, ProcessingProfile profile) {
+        int inset = profile.getInsetLeading() + profile.getInsetTrailing();
+        int offByTwo = 0;
+        for (CheckboxResult checkbox : found) {
+            Rect box = checkbox.getBox();
+            CheckboxResult nearest = null;
+            int distance = Integer.MAX_VALUE;
+            for (CheckboxResult candidate : other) {
+                int d = edgeDistance(box, candidate.getBox());
+                if (d < distance) {
+                    distance = d;
+                    nearest = candidate;
+                }
+            }
+
+            if (distance > 2) {
+                // ritaglio interno: il lato trovato comprende i margini del profilo
+                int width = box.width + inset;
+                int height = box.height + inset;
+                assertTrue("unmatched " + box, atLimit(width, profile) || atLimit(height, profile));
+                continue;
+            }
+            if (distance == 2) {
+                offByTwo++;
+            }
+            assertEquals(box.toString(), checkbox.isMarked(), nearest.isMarked());
+            // un pixel di bordo in più o in meno su un ritaglio di 14
+            assertEquals(box.toString(), checkbox.getPercentage(), nearest.getPercentage(), 5);
+        }
+        assertTrue("off by two pixels: " + offByTwo, offByTwo * 100 < found.size());
+    }
+
+    private static int edgeDistance(Rect a, Rect b) {
+        int left = Math.abs(a.x - b.x);
+        int top = Math.abs(a.y - b.y);
+        int right = Math.abs(a.x + a.width - b.x - b.width);
+        int bottom = Math.abs(a.y + a.height - b.y - b.height);
+        return Math.max(Math.max(left, top), Math.max(right, bottom));
+    }
+
+    private static boolean atLimit(int side, ProcessingProfile profile) {
+        return Math.abs(side - profile.getMinBoxSize()) <= 1 || Math.abs(side - profile.getMaxBoxSize()) <= 1;
+    }
+}
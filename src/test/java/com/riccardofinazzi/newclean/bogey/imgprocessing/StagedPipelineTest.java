@@ -0,0 +1,192 @@
+package com.riccardofinazzi.newclean.bogey.imgprocessing;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Pipeline con un thread per fase e code di una sola pagina, così che le fasi si blocchino a vicenda
+ */
+public class StagedPipelineTest {
+
+    private static final long TIMEOUT_MILLIS = 30000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static File sample;
+
+    @BeforeClass
+    public static void loadSample() throws Exception {
+        NativeLibrary.load();
+        sample = new File(StagedPipelineTest.class.getResource("/input2.jpg").toURI());
+    }
+
+    /**
+     * Raccoglie i risultati, per file
+     */
+    private static class Results implements StagedPipeline.Callback {
+        final Map<File, List<PageResult>> byFile = new ConcurrentHashMap<>();
+
+        @Override
+        public void completed(PageResult result) {
+            List<PageResult> list = new ArrayList<>();
+            List<PageResult> previous = byFile.putIfAbsent(result.getFile(), list);
+            list = previous != null ? previous : list;
+            synchronized (list) {
+                list.add(result);
+            }
+        }
+
+        void assertOnePerFile(List<File> files) {
+            assertEquals(files.size(), byFile.size());
+            for (File file : files) {
+                List<PageResult> results = byFile.get(file);
+                assertEquals(file.getName(), 1, results == null ? 0 : results.size());
+            }
+        }
+    }
+
+    private static StagedPipeline pipeline() {
+        return new StagedPipeline(new ImageProcessor(), null, 1, 1, 1, 1, 1);
+    }
+
+    @Test
+    public void everyPageIsNotifiedOnce() throws Exception {
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            // una pagina su due non esiste: la fase di lettura fallisce
+            files.add(i % 2 == 0 ? this.copy("pagina" + i + ".jpg") : new File(folder.getRoot(), "mancante" + i + ".jpg"));
+        }
+
+        Results results = new Results();
+        try (StagedPipeline pipeline = pipeline()) {
+            for (File file : files) {
+                pipeline.submit(file, null, results);
+            }
+        }
+
+        results.assertOnePerFile(files);
+        for (int i = 0; i < files.size(); i++) {
+            PageResult result = results.byFile.get(files.get(i)).get(0);
+            assertEquals(i % 2 == 0, result.isSuccess());
+        }
+    }
+
+    @Test
+    public void closeDrainsEveryPage() throws Exception {
+        List<File> files = new ArrayList<>();
+        List<File> outputs = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            files.add(this.copy("pagina" + i + ".jpg"));
+            outputs.add(new File(folder.getRoot(), "pagina" + i + "_out.png"));
+        }
+
+        Results results = new Results();
+        StagedPipeline pipeline = pipeline();
+        for (int i = 0; i < files.size(); i++) {
+            pipeline.submit(files.get(i), outputs.get(i), results);
+        }
+        pipeline.close();
+
+        // close() ritorna solo dopo l'ultima pagina
+        results.assertOnePerFile(files);
+        for (int i = 0; i < files.size(); i++) {
+            assertTrue(results.byFile.get(files.get(i)).get(0).isSuccess());
+            assertTrue(outputs.get(i).isFile());
+        }
+    }
+
+    @Test
+    public void interruptReleasesBlockedSubmit() throws Exception {
+        final CountDownLatch never = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final Results results = new Results();
+        final StagedPipeline.Callback blocking = new StagedPipeline.Callback() {
+            @Override
+            public void completed(PageResult result) {
+                results.completed(result);
+                if (calls.getAndIncrement() == 0) {
+                    // la prima pagina blocca la fase di lettura, e dietro di lei tutte le altre
+                    try {
+                        never.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+
+        final StagedPipeline pipeline = pipeline();
+        final List<File> accepted = new ArrayList<>();
+        final Exception[] submitError = new Exception[1];
+        Thread submitter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 10; i++) {
+                        File file = new File(folder.getRoot(), "mancante" + i + ".jpg");
+                        pipeline.submit(file, null, blocking);
+                        accepted.add(file);
+                    }
+                } catch (Exception e) {
+                    submitError[0] = e;
+                }
+            }
+        });
+        submitter.start();
+        awaitWaiting(submitter);
+
+        Thread closer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pipeline.close();
+            }
+        });
+        closer.start();
+        awaitWaiting(closer);
+        closer.interrupt();
+
+        closer.join(TIMEOUT_MILLIS);
+        submitter.join(TIMEOUT_MILLIS);
+        assertFalse(closer.isAlive());
+        assertFalse(submitter.isAlive());
+        assertTrue(String.valueOf(submitError[0]), submitError[0] instanceof IllegalStateException);
+
+        // le pagine accettate sono tutte notificate, quelle mai elaborate come errori
+        assertFalse(accepted.isEmpty());
+        results.assertOnePerFile(accepted);
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (thread.getState() != Thread.State.WAITING) {
+            if (System.currentTimeMillis() > deadline) {
+                fail(thread + " did not block");
+            }
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+    private File copy(String name) throws Exception {
+        File file = new File(folder.getRoot(), name);
+        Files.copy(sample.toPath(), file.toPath());
+        return file;
+    }
+}